@@ -4,15 +4,29 @@ package de.komoot.photon;
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.ParameterException;
 
+import de.komoot.photon.elasticsearch.BulkSettings;
+import de.komoot.photon.elasticsearch.JsonDumpLoader;
 import de.komoot.photon.elasticsearch.Server;
+import de.komoot.photon.nominatim.ImportCheckpoint;
 import de.komoot.photon.nominatim.NominatimConnector;
 import de.komoot.photon.nominatim.NominatimUpdater;
+import de.komoot.photon.nominatim.UpdateJournal;
+import de.komoot.photon.nominatim.UpdateScheduler;
+import de.komoot.photon.snapshot.SnapshotReader;
+import de.komoot.photon.snapshot.SnapshotWriter;
 import de.komoot.photon.utils.CorsFilter;
 
 import org.elasticsearch.client.Client;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import lombok.extern.slf4j.Slf4j;
 import spark.Request;
@@ -22,6 +36,7 @@ import static spark.Spark.before;
 import static spark.Spark.get;
 import static spark.Spark.ipAddress;
 import static spark.Spark.port;
+import static spark.Spark.stop;
 
 
 @Slf4j
@@ -36,6 +51,20 @@ public class App {
       if (args.isCorsAnyOrigin() && args.getCorsOrigin() != null) { // these are mutually exclusive
         throw new ParameterException("Use only one cors configuration type");
       }
+      try {
+        BulkSettings.parseContentType(args.getBulkFormat());
+      } catch (final IllegalArgumentException e) {
+        throw new ParameterException(e.getMessage());
+      }
+      for (final String mirror : args.getImportMirrors()) {
+        if (mirror.indexOf('@') < 1 || mirror.endsWith("@")) {
+          throw new ParameterException("import mirror must be given as cluster@address,address: " + mirror);
+        }
+      }
+      if (args.isNominatimImport() && args.isResume() && (args.getJsonDump() != null || args.getSnapshot() != null || !args.getImportMirrors().isEmpty())) {
+        // the checkpoint only covers the index of the import
+        throw new ParameterException("-resume cannot be combined with -json, -snapshot or -import-mirror");
+      }
     } catch (final ParameterException e) {
       log.warn("could not start photon: " + e.getMessage());
       jCommander.usage();
@@ -48,11 +77,17 @@ public class App {
       return;
     }
 
-    if (args.getJsonDump() != null) {
+    // together with -nominatim-import the dumps are written by the import
+    if (args.getJsonDump() != null && !args.isNominatimImport()) {
       startJsonDump(args);
       return;
     }
 
+    if (args.getSnapshot() != null && !args.isNominatimImport()) {
+      startSnapshot(args);
+      return;
+    }
+
     boolean shutdownES = false;
     final Server esServer = new Server(args).start();
     try {
@@ -64,6 +99,18 @@ public class App {
         return;
       }
 
+      if (args.getJsonImport() != null) {
+        shutdownES = true;
+        startJsonImport(args, esServer, esClient);
+        return;
+      }
+
+      if (args.getSnapshotImport() != null) {
+        shutdownES = true;
+        startSnapshotImport(args, esServer, esClient);
+        return;
+      }
+
       if (args.isNominatimImport()) {
         shutdownES = true;
         startNominatimImport(args, esServer, esClient);
@@ -94,15 +141,37 @@ public class App {
   }
 
 
+  /**
+   * create a new index for an import that replaces the index behind the photon alias once it is done
+   */
+  private static String createImportIndex(final Server esServer) {
+    final String index;
+    try {
+      index = esServer.createIndex();
+    } catch (final IOException e) {
+      throw new RuntimeException("cannot setup index, elastic search config files not readable", e);
+    }
+    esServer.applyImportSettings(index);
+    return index;
+  }
+
+
   /**
    * take nominatim data and dump it to json
    */
   private static void startJsonDump(final CommandLineArgs args) {
     try {
       final String filename = args.getJsonDump();
-      final JsonDumper jsonDumper = new JsonDumper(filename, args.getLanguages());
+      final JsonDumper jsonDumper = new JsonDumper(filename, args.getLanguages(), args.getJsonShards(), args.isJsonGzip(), args.getJsonPartSizeMb() * 1024L * 1024L);
       final NominatimConnector nominatimConnector = new NominatimConnector(args.getHost(), args.getPort(), args.getDatabase(), args.getUser(), args.getPassword());
       nominatimConnector.setImporter(jsonDumper);
+      nominatimConnector.setImportThreads(args.getImportThreads());
+      nominatimConnector.setImportPartitions(args.getImportPartitions());
+      nominatimConnector.setCountryConcurrency(args.getImportCountryConcurrency());
+      nominatimConnector.setImportBatchSize(args.getImportBatchSize());
+      nominatimConnector.setAddressCacheSize(args.getImportAddressCacheSize());
+      nominatimConnector.setImportCopy(args.isImportCopy());
+      nominatimConnector.setDocumentQueueBytes(args.getImportQueueSizeMb() * 1024L * 1024L);
       nominatimConnector.readEntireDatabase(args.getCountryCodes().split(","));
       log.info("json dump was created: " + filename);
     } catch (final FileNotFoundException e) {
@@ -112,20 +181,197 @@ public class App {
 
 
   /**
-   * take nominatim data to fill elastic search index
+   * take nominatim data and write it to a binary snapshot
    */
-  private static void startNominatimImport(final CommandLineArgs args, final Server esServer, final Client esNodeClient) {
+  private static void startSnapshot(final CommandLineArgs args) {
     try {
-      esServer.recreateIndex(); // dump previous data
+      final String filename = args.getSnapshot();
+      final SnapshotWriter snapshotWriter = new SnapshotWriter(new File(filename));
+      final NominatimConnector nominatimConnector = new NominatimConnector(args.getHost(), args.getPort(), args.getDatabase(), args.getUser(), args.getPassword());
+      nominatimConnector.setImporter(snapshotWriter);
+      nominatimConnector.setImportThreads(args.getImportThreads());
+      nominatimConnector.setImportPartitions(args.getImportPartitions());
+      nominatimConnector.setCountryConcurrency(args.getImportCountryConcurrency());
+      nominatimConnector.setImportBatchSize(args.getImportBatchSize());
+      nominatimConnector.setAddressCacheSize(args.getImportAddressCacheSize());
+      nominatimConnector.setImportCopy(args.isImportCopy());
+      nominatimConnector.setDocumentQueueBytes(args.getImportQueueSizeMb() * 1024L * 1024L);
+      nominatimConnector.readEntireDatabase(args.getCountryCodes().split(","));
+      log.info("snapshot was created: " + filename);
     } catch (final IOException e) {
-      throw new RuntimeException("cannot setup index, elastic search config files not readable", e);
+      log.error("cannot create snapshot", e);
+    }
+  }
+
+
+  /**
+   * fill a new elastic search index with a json dump
+   */
+  private static void startJsonImport(final CommandLineArgs args, final Server esServer, final Client esNodeClient) {
+    final File dump = new File(args.getJsonImport());
+    final String index = createImportIndex(esServer);
+
+    final JsonDumpLoader loader = new JsonDumpLoader(esNodeClient, index, new BulkSettings(args));
+    final long documents;
+    try {
+      documents = loader.load(dump);
+    } catch (final IOException e) {
+      throw new RuntimeException("cannot load json dump " + dump, e);
+    }
+
+    esServer.finishImport(index, args.getMergeSegments());
+    esServer.activateIndex(index, args.getIndexRetention(), documents, loader.getFailedDocuments());
+    log.info("imported json dump " + dump);
+  }
+
+
+  /**
+   * fill a new elastic search index with the documents of a snapshot
+   */
+  private static void startSnapshotImport(final CommandLineArgs args, final Server esServer, final Client esNodeClient) {
+    final File snapshot = new File(args.getSnapshotImport());
+    final String index = createImportIndex(esServer);
+
+    final de.komoot.photon.elasticsearch.Importer importer = new de.komoot.photon.elasticsearch.Importer(esNodeClient, index, args.getLanguages(), new BulkSettings(args));
+    try {
+      new SnapshotReader(args.getImportThreads()).read(snapshot, importer);
+    } catch (final IOException e) {
+      throw new RuntimeException("cannot load snapshot " + snapshot, e);
+    }
+
+    esServer.finishImport(index, args.getMergeSegments());
+    esServer.activateIndex(index, args.getIndexRetention(), importer.getDocuments(), importer.getFailedDocuments());
+    log.info("imported snapshot " + snapshot + " with languages: " + args.getLanguages());
+  }
+
+
+  /**
+   * connects to an additional cluster given as cluster@address,address
+   */
+  private static Server startMirror(final CommandLineArgs args, final String mirror) {
+    final int at = mirror.indexOf('@');
+    return new Server(mirror.substring(0, at), args.getDataDirectory(), args.getLanguages(), mirror.substring(at + 1)).start();
+  }
+
+
+  /**
+   * take nominatim data to fill elastic search index, optionally also the indices of mirrors and dumps
+   */
+  private static void startNominatimImport(final CommandLineArgs args, final Server esServer, final Client esNodeClient) {
+    final File checkpointFile = new File(args.getDataDirectory(), "photon_data/import_checkpoint.properties");
+    final ImportCheckpoint checkpoint;
+    final String index;
+    if (args.isResume()) {
+      try {
+        checkpoint = ImportCheckpoint.load(checkpointFile);
+      } catch (final IOException e) {
+        throw new RuntimeException("cannot resume import, no checkpoint readable at " + checkpointFile, e);
+      }
+      if (!args.getCountryCodes().equals(checkpoint.getParameter("country_codes")) || !args.getLanguages().equals(checkpoint.getParameter("languages"))) {
+        throw new IllegalArgumentException("cannot resume import, country codes and languages must be the same as for the interrupted import: "
+                                           + checkpoint.getParameter("country_codes") + " / " + checkpoint.getParameter("languages"));
+      }
+      if ((args.getImportCountryConcurrency() > 0) != Boolean.parseBoolean(checkpoint.getParameter("by_country"))) {
+        // the progress of the countries and of the sector partitions is recorded separately
+        throw new IllegalArgumentException("cannot resume import, -import-country-concurrency must be used if and only if the interrupted import used it");
+      }
+      // checkpoints of older versions imported into the photon index itself
+      index = checkpoint.getParameter("index") == null ? Server.ALIAS : checkpoint.getParameter("index");
+      log.info("resuming import into index " + index + " from checkpoint " + checkpointFile);
+      esServer.applyImportSettings(index);
+    } else {
+      // the index behind the photon alias keeps serving until the import is done
+      index = createImportIndex(esServer);
+      checkpoint = ImportCheckpoint.create(checkpointFile);
+      checkpoint.setParameter("country_codes", args.getCountryCodes());
+      checkpoint.setParameter("languages", args.getLanguages());
+      checkpoint.setParameter("by_country", String.valueOf(args.getImportCountryConcurrency() > 0));
+      checkpoint.setParameter("index", index);
+    }
+
+    final ImportMetrics metrics = new ImportMetrics();
+    metrics.register();
+    if (args.getImportStatusPort() > 0) {
+      port(args.getImportStatusPort());
+      ipAddress(args.getListenIp());
+      get("import-status", (Request request, Response response) -> {
+        response.type("application/json");
+        return metrics.toJson().toString();
+      });
+      log.info("import status available at http://" + args.getListenIp() + ":" + args.getImportStatusPort() + "/import-status");
     }
 
     log.info("starting import from nominatim to photon with languages: " + args.getLanguages());
-    final de.komoot.photon.elasticsearch.Importer importer = new de.komoot.photon.elasticsearch.Importer(esNodeClient, args.getLanguages());
-    final NominatimConnector nominatimConnector = new NominatimConnector(args.getHost(), args.getPort(), args.getDatabase(), args.getUser(), args.getPassword());
-    nominatimConnector.setImporter(importer);
-    nominatimConnector.readEntireDatabase(args.getCountryCodes().split(","));
+    final de.komoot.photon.elasticsearch.Importer importer = new de.komoot.photon.elasticsearch.Importer(esNodeClient, index, args.getLanguages(), new BulkSettings(args));
+    importer.setMetrics(metrics);
+    final List<Importer> importers = new ArrayList<>();
+    importers.add(importer);
+    final Map<Server, String> mirrors = new LinkedHashMap<>();
+    final Map<Server, de.komoot.photon.elasticsearch.Importer> mirrorImporters = new HashMap<>();
+    try {
+      for (final String mirror : args.getImportMirrors()) {
+        final Server mirrorServer = startMirror(args, mirror);
+        // registered before the index is created so the client is shut down in any case
+        mirrors.put(mirrorServer, null);
+        final String mirrorIndex = createImportIndex(mirrorServer);
+        mirrors.put(mirrorServer, mirrorIndex);
+        final de.komoot.photon.elasticsearch.Importer mirrorImporter = new de.komoot.photon.elasticsearch.Importer(mirrorServer.getClient(), mirrorIndex, args.getLanguages(), new BulkSettings(args));
+        mirrorImporters.put(mirrorServer, mirrorImporter);
+        importers.add(mirrorImporter);
+        log.info("importing into index " + mirrorIndex + " of mirror " + mirror);
+      }
+      if (args.getJsonDump() != null) {
+        importers.add(new JsonDumper(args.getJsonDump(), args.getLanguages(), args.getJsonShards(), args.isJsonGzip(), args.getJsonPartSizeMb() * 1024L * 1024L));
+      }
+      if (args.getSnapshot() != null) {
+        importers.add(new SnapshotWriter(new File(args.getSnapshot())));
+      }
+
+      final NominatimConnector nominatimConnector = new NominatimConnector(args.getHost(), args.getPort(), args.getDatabase(), args.getUser(), args.getPassword());
+      // all indices and dumps are written from a single pass over the database
+      nominatimConnector.setImporter(importers.size() == 1 ? importer : new TeeImporter(importers, args.getTeeMaxLag()));
+      nominatimConnector.setImportThreads(args.getImportThreads());
+      nominatimConnector.setImportPartitions(args.getImportPartitions());
+      nominatimConnector.setCountryConcurrency(args.getImportCountryConcurrency());
+      nominatimConnector.setImportBatchSize(args.getImportBatchSize());
+      nominatimConnector.setAddressCacheSize(args.getImportAddressCacheSize());
+      nominatimConnector.setImportCopy(args.isImportCopy());
+      nominatimConnector.setDocumentQueueBytes(args.getImportQueueSizeMb() * 1024L * 1024L);
+      nominatimConnector.setCheckpoint(checkpoint);
+      nominatimConnector.setMetrics(metrics);
+      try {
+        nominatimConnector.readEntireDatabase(args.getCountryCodes().split(","));
+      } finally {
+        metrics.unregister();
+        if (args.getImportStatusPort() > 0) {
+          stop();
+        }
+      }
+
+      // an interrupted import keeps the import settings until it is resumed
+      esServer.finishImport(index, args.getMergeSegments());
+      if (!Server.ALIAS.equals(index)) {
+        // the documents stored before the import was resumed are not counted
+        esServer.activateIndex(index, args.getIndexRetention(), args.isResume() ? -1 : importer.getDocuments(), importer.getFailedDocuments());
+      }
+      for (final Map.Entry<Server, String> mirror : mirrors.entrySet()) {
+        final de.komoot.photon.elasticsearch.Importer mirrorImporter = mirrorImporters.get(mirror.getKey());
+        mirror.getKey().finishImport(mirror.getValue(), args.getMergeSegments());
+        mirror.getKey().activateIndex(mirror.getValue(), args.getIndexRetention(), mirrorImporter.getDocuments(), mirrorImporter.getFailedDocuments());
+      }
+      if (args.getJsonDump() != null) {
+        log.info("json dump was created: " + args.getJsonDump());
+      }
+      if (args.getSnapshot() != null) {
+        log.info("snapshot was created: " + args.getSnapshot());
+      }
+    } catch (final IOException e) {
+      throw new UncheckedIOException("cannot create dump", e);
+    } finally {
+      for (final Server mirrorServer : mirrors.keySet()) {
+        mirrorServer.shutdown();
+      }
+    }
 
     log.info("imported data from nominatim to photon with languages: " + args.getLanguages());
   }
@@ -155,12 +401,23 @@ public class App {
 
     // setup update API
     final NominatimUpdater nominatimUpdater = new NominatimUpdater(args.getHost(), args.getPort(), args.getDatabase(), args.getUser(), args.getPassword());
-    final Updater updater = new de.komoot.photon.elasticsearch.Updater(esNodeClient, args.getLanguages());
+    final Updater updater = new de.komoot.photon.elasticsearch.Updater(esNodeClient, args.getLanguages(), new BulkSettings(args));
     nominatimUpdater.setUpdater(updater);
+    nominatimUpdater.setUpdateThreads(args.getUpdateThreads());
+    nominatimUpdater.setJournal(new UpdateJournal(new File(args.getDataDirectory(), "photon_data/update_journal")));
+
+    final UpdateScheduler updateScheduler = new UpdateScheduler(nominatimUpdater, args.getUpdateInterval(), args.getUpdateMaxBackoff());
+    updateScheduler.start();
 
     get("/nominatim-update", (Request request, Response response) -> {
-      new Thread(() -> nominatimUpdater.update()).start();
+      if (!updateScheduler.trigger()) {
+        return "nominatim update already queued (more information at /nominatim-update/status) ...";
+      }
       return "nominatim update started (more information in console output) ...";
     });
+    get("/nominatim-update/status", (Request request, Response response) -> {
+      response.type("application/json");
+      return updateScheduler.getStatus().toString();
+    });
   }
 }
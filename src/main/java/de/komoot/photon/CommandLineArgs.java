@@ -7,6 +7,8 @@ package de.komoot.photon;
 import com.beust.jcommander.Parameter;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 import lombok.Data;
 
@@ -19,7 +21,7 @@ public class CommandLineArgs {
   @Parameter(names = "-transport-addresses", description = "the comma separated addresses of external elasticsearch nodes where the client can connect to (default is an empty string which forces an internal node to start)")
   private String transportAddresses = "";
 
-  @Parameter(names = "-nominatim-import", description = "import nominatim database into photon (this will delete previous index)")
+  @Parameter(names = "-nominatim-import", description = "import nominatim database into a new index that replaces the index behind the photon alias once the import is done")
   private boolean nominatimImport;
 
   @Parameter(names = "-languages", description = "languages nominatim importer should import and use at run-time, comma separated (default is 'en,fr,de,it')")
@@ -28,9 +30,90 @@ public class CommandLineArgs {
   @Parameter(names = "-country-codes", description = "country codes filter that nominatim importer should import, comma separated. If empty full planet is done")
   private String countryCodes = "";
 
-  @Parameter(names = "-json", description = "import nominatim database and dump it to a json like files in (useful for developing)")
+  @Parameter(names = "-resume", description = "resume an interrupted nominatim import from its last checkpoint instead of deleting the index")
+  private boolean resume;
+
+  @Parameter(names = "-import-threads", description = "number of workers that complete documents with their address data during nominatim import, each uses its own database connection (default 1)")
+  private int importThreads = 1;
+
+  @Parameter(names = "-import-partitions", description = "number of geometry sector ranges of the nominatim tables that are read in parallel during import, each over its own database connection (default 1)")
+  private int importPartitions = 1;
+
+  @Parameter(names = "-import-country-concurrency", description = "number of countries read in parallel during nominatim import, each over its own database connection and the largest countries first, 0 to read -import-partitions sector ranges instead (default 0)")
+  private int importCountryConcurrency = 0;
+
+  @Parameter(names = "-import-batch-size", description = "number of documents whose address data is fetched with a single query during nominatim import (default 1000)")
+  private int importBatchSize = 1000;
+
+  @Parameter(names = "-import-address-cache-size", description = "number of address rows (streets, cities, states, ...) kept in memory during nominatim import (default 100000)")
+  private int importAddressCacheSize = 100000;
+
+  @Parameter(names = "-import-queue-size-mb", description = "estimated size in megabytes of the completed documents that may wait for elasticsearch during nominatim import (default 32)")
+  private int importQueueSizeMb = 32;
+
+  @Parameter(names = "-import-copy", description = "read placex and location_property_osmline with binary COPY instead of JDBC result sets during import")
+  private boolean importCopy;
+
+  @Parameter(names = "-import-status-port", description = "port of an http endpoint /import-status reporting the progress of a running import, 0 to disable (default 0)")
+  private int importStatusPort = 0;
+
+  @Parameter(names = "-update-threads", description = "number of geometry sectors of a rank whose changed places are read in parallel during an update from nominatim, each over its own database connection (default 1)")
+  private int updateThreads = 1;
+
+  @Parameter(names = "-update-interval", description = "seconds between the end of an update from nominatim and the start of the next, 0 to update on request of /nominatim-update only (default 0)")
+  private int updateInterval = 0;
+
+  @Parameter(names = "-update-max-backoff", description = "longest delay in seconds of the next update after failed updates from nominatim, the interval is doubled with every failure (default 3600)")
+  private int updateMaxBackoff = 3600;
+
+  @Parameter(names = "-bulk-actions", description = "maximum number of documents sent to elasticsearch in one bulk (default 10000)")
+  private int bulkActions = 10000;
+
+  @Parameter(names = "-bulk-size-mb", description = "maximum size in megabytes of a bulk sent to elasticsearch (default 15)")
+  private int bulkSizeMb = 15;
+
+  @Parameter(names = "-bulk-concurrency", description = "number of bulks that may be in flight to elasticsearch at the same time (default 2)")
+  private int bulkConcurrency = 2;
+
+  @Parameter(names = "-bulk-flush-interval", description = "seconds after which pending documents are sent to elasticsearch even if the bulk is not full (default 10)")
+  private int bulkFlushInterval = 10;
+
+  @Parameter(names = "-bulk-format", description = "format of the documents sent to elasticsearch during import and update: json, smile or cbor (default json)")
+  private String bulkFormat = "json";
+
+  @Parameter(names = "-merge-segments", description = "number of segments the index is force merged into after a nominatim import, 0 to skip the merge (default 5)")
+  private int mergeSegments = 5;
+
+  @Parameter(names = "-index-retention", description = "number of previous indices kept after an import has replaced the index behind the photon alias (default 1)")
+  private int indexRetention = 1;
+
+  @Parameter(names = "-import-mirror", description = "additional elasticsearch cluster a nominatim import writes into as cluster@address,address, may be given several times")
+  private List<String> importMirrors = new ArrayList<>();
+
+  @Parameter(names = "-tee-max-lag", description = "number of documents an index or dump written by the same nominatim import may lag behind the fastest one (default 100000)")
+  private int teeMaxLag = 100000;
+
+  @Parameter(names = "-json", description = "import nominatim database and dump it to a json like files in (useful for developing), together with -nominatim-import the index and the dump are written in one pass")
   private String jsonDump;
 
+  @Parameter(names = "-json-shards", description = "number of files the json dump is written to in parallel, more than one creates a manifest at the -json file name (default 1)")
+  private int jsonShards = 1;
+
+  @Parameter(names = "-json-gzip", description = "compress the json dump with gzip, creates a manifest at the -json file name")
+  private boolean jsonGzip;
+
+  @Parameter(names = "-json-part-size", description = "size in MB after which each shard of the json dump continues in a new file, 0 for no limit, creates a manifest at the -json file name (default 0)")
+  private int jsonPartSizeMb = 0;
+
+  @Parameter(names = "-json-import", description = "load a dump created with -json into a new index that replaces the index behind the photon alias")
+  private String jsonImport;
+
+  @Parameter(names = "-snapshot", description = "import nominatim database and write it to a compact binary snapshot, independent of the languages (useful to rebuild the index without the nominatim database), together with -nominatim-import the index and the snapshot are written in one pass")
+  private String snapshot;
+
+  @Parameter(names = "-snapshot-import", description = "load a snapshot created with -snapshot into a new index with the given languages that replaces the index behind the photon alias")
+  private String snapshotImport;
+
   @Parameter(names = "-recreate-index", description = "delete index and all documents, creates a new and empty photon index")
   private boolean recreateIndex;
 
@@ -0,0 +1,298 @@
+package de.komoot.photon;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.xcontent.XContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentType;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes the elasticsearch source of a photon document field by field, without collecting the names in intermediate
+ * maps. The keys of the names in the languages are prepared once per serializer. The output is byte-identical to that
+ * of {@link Utils#convert}, whose objects have the order of hash maps.
+ * <p>
+ * A serializer reuses its buffer and is not thread safe, each thread serializing documents needs its own.
+ */
+public class DocSerializer {
+
+  private static final String[] NAME_VARIANTS = {"alt", "int", "loc", "old", "reg"};
+  private static final String[] NAME_VARIANT_KEYS = {"alt_name", "int_name", "loc_name", "old_name", "reg_name"};
+
+  private final XContent xContent;
+  private final String[] languages;
+  private final String[] languageKeys;
+  private final BytesStreamOutput buffer = new BytesStreamOutput(4096);
+  /**
+   * the names of an object, in the order of the {@link java.util.HashMap} the names were collected in before
+   */
+  private final HashOrder fields = new HashOrder(16);
+  /**
+   * the context names were collected in a {@code HashMultimap}: a map expecting 12 keys of sets expecting 2 values
+   */
+  private final HashOrder contextFields = new HashOrder(17);
+  private final HashOrder contextValues = new HashOrder(3);
+  private final StringBuilder contextJoiner = new StringBuilder();
+
+  public DocSerializer(final String[] languages) {
+    this(languages, XContentType.JSON);
+  }
+
+  /**
+   * @param contentType format of the serialized documents, e.g. smile for bulks that elasticsearch parses faster
+   */
+  public DocSerializer(final String[] languages, final XContentType contentType) {
+    this.xContent = contentType.xContent();
+    // a language given twice would write the same field twice
+    this.languages = new LinkedHashSet<>(Arrays.asList(languages)).toArray(new String[0]);
+    this.languageKeys = new String[this.languages.length];
+    for (int i = 0; i < this.languages.length; i++) {
+      this.languageKeys[i] = "name:" + this.languages[i];
+    }
+  }
+
+  /**
+   * @return the source of the document, only valid until the serializer is called again
+   */
+  public BytesReference serialize(final PhotonDoc doc) throws IOException {
+    buffer.reset();
+    final XContentBuilder builder = new XContentBuilder(xContent, buffer);
+    write(doc, builder);
+    builder.close();
+    return buffer.bytes();
+  }
+
+  /**
+   * writes the document as an object into the builder
+   */
+  public void write(final PhotonDoc doc, final XContentBuilder builder) throws IOException {
+    builder.startObject()
+        .field(Constants.OSM_ID, doc.getOsmId())
+        .field(Constants.OSM_TYPE, doc.getOsmType())
+        .field(Constants.OSM_KEY, doc.getTagKey())
+        .field(Constants.OSM_VALUE, doc.getTagValue())
+        .field(Constants.IMPORTANCE, doc.getImportance());
+
+    if (doc.getCentroid() != null) {
+      builder.startObject("coordinate")
+          .field("lat", doc.getCentroid().getY())
+          .field("lon", doc.getCentroid().getX())
+          .endObject();
+    }
+
+    if (doc.getHouseNumber() != null) {
+      builder.field("housenumber", doc.getHouseNumber());
+    }
+
+    if (doc.getPostcode() != null) {
+      builder.field("postcode", doc.getPostcode());
+    }
+
+    writeName(builder, doc.getName());
+    writeIntlNames(builder, doc.getCity(), "city");
+    writeIntlNames(builder, doc.getCountry(), "country");
+    writeIntlNames(builder, doc.getState(), "state");
+    writeIntlNames(builder, doc.getStreet(), "street");
+    writeContext(builder, doc.getContext());
+    writeExtent(builder, doc.getBbox());
+
+    builder.endObject();
+  }
+
+  private void writeName(final XContentBuilder builder, final Map<String, String> names) throws IOException {
+    fillNames(names);
+    if (names != null) {
+      for (int i = 0; i < NAME_VARIANTS.length; i++) {
+        final String value = names.get(NAME_VARIANT_KEYS[i]);
+        if (value != null) {
+          fields.put(NAME_VARIANTS[i], value);
+        }
+      }
+    }
+    fields.write(builder, "name");
+  }
+
+  private void writeIntlNames(final XContentBuilder builder, final Map<String, String> names, final String name) throws IOException {
+    fillNames(names);
+    fields.write(builder, name);
+  }
+
+  /**
+   * collects the default and localized names in the fields
+   */
+  private void fillNames(final Map<String, String> names) {
+    fields.clear();
+    if (names == null) {
+      return;
+    }
+    final String defaultName = names.get("name");
+    if (defaultName != null) {
+      fields.put("default", defaultName);
+    }
+    for (int i = 0; i < languages.length; i++) {
+      final String value = names.get(languageKeys[i]);
+      if (value != null) {
+        fields.put(languages[i], value);
+      }
+    }
+  }
+
+  private void writeContext(final XContentBuilder builder, final Set<Map<String, String>> contexts) throws IOException {
+    contextFields.clear();
+    if (contexts != null) {
+      putContextField(contexts, "default", "name");
+      for (int i = 0; i < languages.length; i++) {
+        putContextField(contexts, languages[i], languageKeys[i]);
+      }
+    }
+    contextFields.write(builder, "context");
+  }
+
+  /**
+   * collects the distinct names of all contexts comma separated
+   */
+  private void putContextField(final Set<Map<String, String>> contexts, final String field, final String key) {
+    contextValues.clear();
+    for (final Map<String, String> context : contexts) {
+      final String value = context.get(key);
+      if (value != null) {
+        contextValues.put(value, value);
+      }
+    }
+    if (contextValues.size() == 0) {
+      return;
+    }
+    contextJoiner.setLength(0);
+    final int[] order = contextValues.order();
+    for (int i = 0; i < contextValues.size(); i++) {
+      if (i > 0) {
+        contextJoiner.append(", ");
+      }
+      contextJoiner.append(contextValues.getValue(order[i]));
+    }
+    contextFields.put(field, contextJoiner.toString());
+  }
+
+  private static void writeExtent(final XContentBuilder builder, final Envelope bbox) throws IOException {
+    if (bbox == null) {
+      return;
+    }
+
+    if (bbox.getArea() == 0.) {
+      return;
+    }
+
+    // http://www.elasticsearch.org/guide/en/elasticsearch/reference/current/mapping-geo-shape-type.html#_envelope
+    builder.startObject("extent");
+    builder.field("type", "envelope");
+
+    builder.startArray("coordinates");
+    builder.startArray().value(bbox.getMinX()).value(bbox.getMaxY()).endArray();
+    builder.startArray().value(bbox.getMaxX()).value(bbox.getMinY()).endArray();
+
+    builder.endArray();
+    builder.endObject();
+  }
+
+  /**
+   * Fields in the iteration order of a {@link java.util.HashMap} created with the same capacity and the same puts, so
+   * the objects are written byte for byte like the maps of {@link Utils#convert}. Bins the map would turn
+   * into trees are not reproduced, they need more than eight fields in the same bin.
+   */
+  private static final class HashOrder {
+
+    private final int initialCapacity;
+    private String[] keys = new String[16];
+    private String[] values = new String[16];
+    private int[] order = new int[16];
+    private int size;
+
+    /**
+     * @param initialCapacity initial capacity of the map whose order is reproduced
+     */
+    HashOrder(final int initialCapacity) {
+      this.initialCapacity = initialCapacity;
+    }
+
+    void clear() {
+      size = 0;
+    }
+
+    int size() {
+      return size;
+    }
+
+    String getValue(final int index) {
+      return values[index];
+    }
+
+    /**
+     * a key put again keeps its position and gets the new value
+     */
+    void put(final String key, final String value) {
+      for (int i = 0; i < size; i++) {
+        if (keys[i].equals(key)) {
+          values[i] = value;
+          return;
+        }
+      }
+      if (size == keys.length) {
+        keys = Arrays.copyOf(keys, size * 2);
+        values = Arrays.copyOf(values, size * 2);
+        order = Arrays.copyOf(order, size * 2);
+      }
+      keys[size] = key;
+      values[size] = value;
+      size++;
+    }
+
+    /**
+     * @return the indexes of the fields ordered by the bin of the map, fields of a bin in the order they were put
+     */
+    int[] order() {
+      int capacity = 1;
+      while (capacity < initialCapacity) {
+        capacity <<= 1;
+      }
+      // the map doubles its table once it holds more than three quarters of the capacity
+      while (size > (int) (capacity * 0.75f)) {
+        capacity <<= 1;
+      }
+      for (int i = 0; i < size; i++) {
+        // insertion sort keeps the fields of a bin in the order they were put
+        final int bin = bin(keys[i], capacity);
+        int j = i;
+        while (j > 0 && bin(keys[order[j - 1]], capacity) > bin) {
+          order[j] = order[j - 1];
+          j--;
+        }
+        order[j] = i;
+      }
+      return order;
+    }
+
+    private static int bin(final String key, final int capacity) {
+      final int hash = key.hashCode();
+      return (hash ^ (hash >>> 16)) & (capacity - 1);
+    }
+
+    void write(final XContentBuilder builder, final String name) throws IOException {
+      if (size == 0) {
+        return;
+      }
+      final int[] fieldOrder = order();
+      builder.startObject(name);
+      for (int i = 0; i < size; i++) {
+        builder.field(keys[fieldOrder[i]], values[fieldOrder[i]]);
+      }
+      builder.endObject();
+    }
+  }
+}
@@ -0,0 +1,34 @@
+package de.komoot.photon;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Some documents of a batch could not be stored, all other documents of the batch are stored.
+ */
+public class FailedDocumentsException extends IOException {
+
+  private final Set<String> ids;
+
+  /**
+   * @param ids ids of the documents that are not stored
+   */
+  public FailedDocumentsException(final String message, final Set<String> ids) {
+    super(message);
+    this.ids = Collections.unmodifiableSet(new HashSet<>(ids));
+  }
+
+  public Set<String> getIds() {
+    return ids;
+  }
+
+  /**
+   * @return the place of a document id, documents of a place with several house numbers have ids like 1234.12a
+   */
+  public static long getPlaceId(final String id) {
+    final int dot = id.indexOf('.');
+    return Long.parseLong(dot < 0 ? id : id.substring(0, dot));
+  }
+}
@@ -0,0 +1,358 @@
+package de.komoot.photon;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Counters of the stages of an import: reading rows, completing documents with their address, serializing documents
+ * and sending bulks. All methods are thread safe.
+ */
+@Slf4j
+public class ImportMetrics implements ImportMetricsMXBean {
+
+  private static final String OBJECT_NAME = "de.komoot.photon:type=ImportMetrics";
+
+  private final long startNanos = System.nanoTime();
+  private final LongAdder rowsRead = new LongAdder();
+  private volatile long expectedRows;
+  private final LongAdder documentsCompleted = new LongAdder();
+  private final LongAdder completionNanos = new LongAdder();
+  private final LongAdder documentsSerialized = new LongAdder();
+  private final LongAdder serializationNanos = new LongAdder();
+  private final LongAdder bulks = new LongAdder();
+  private final AtomicLong bulksInFlight = new AtomicLong();
+  private final LongAdder bulkActions = new LongAdder();
+  private final LongAdder bulkFailedActions = new LongAdder();
+  private final LongAdder bulkLatencyMillis = new LongAdder();
+  private volatile IntSupplier completionQueue = () -> 0;
+  private volatile IntSupplier documentQueue = () -> 0;
+  private volatile LongSupplier documentQueueBytes = () -> 0;
+  private final List<CountryProgress> countries = new ArrayList<>();
+
+  public void rowRead() {
+    rowsRead.increment();
+  }
+
+  /**
+   * @param expectedRows estimated number of rows the import reads, used for the ETA
+   */
+  public void setExpectedRows(final long expectedRows) {
+    this.expectedRows = expectedRows;
+  }
+
+  /**
+   * @param nanos time to complete all documents of the batch
+   */
+  public void documentsCompleted(final int documents, final long nanos) {
+    documentsCompleted.add(documents);
+    completionNanos.add(nanos);
+  }
+
+  public void documentSerialized(final long nanos) {
+    documentsSerialized.increment();
+    serializationNanos.add(nanos);
+  }
+
+  public void bulkStarted() {
+    bulksInFlight.incrementAndGet();
+  }
+
+  public void bulkDone(final int actions, final int failedActions, final long latencyMillis) {
+    bulksInFlight.decrementAndGet();
+    bulks.increment();
+    bulkActions.add(actions);
+    bulkFailedActions.add(failedActions);
+    bulkLatencyMillis.add(latencyMillis);
+  }
+
+  /**
+   * @param completionQueue number of batches waiting for address completion
+   * @param documentQueue   number of documents or chunks of documents waiting for the importer
+   */
+  public void setQueues(final IntSupplier completionQueue, final IntSupplier documentQueue) {
+    setQueues(completionQueue, documentQueue, () -> 0);
+  }
+
+  /**
+   * @param documentQueueBytes estimated size of the documents waiting for the importer
+   */
+  public void setQueues(final IntSupplier completionQueue, final IntSupplier documentQueue, final LongSupplier documentQueueBytes) {
+    this.completionQueue = completionQueue;
+    this.documentQueue = documentQueue;
+    this.documentQueueBytes = documentQueueBytes;
+  }
+
+  /**
+   * @param expectedRows estimated number of rows of the country
+   * @return progress of a country that is read on its own, countries are reported in the order they are added
+   */
+  public CountryProgress addCountry(final String name, final long expectedRows) {
+    final CountryProgress country = new CountryProgress(name, expectedRows);
+    synchronized (countries) {
+      countries.add(country);
+    }
+    return country;
+  }
+
+  private List<CountryProgress> getCountries() {
+    synchronized (countries) {
+      return new ArrayList<>(countries);
+    }
+  }
+
+  @Override
+  public long getRowsRead() {
+    return rowsRead.sum();
+  }
+
+  @Override
+  public double getRowsPerSecond() {
+    return perSecond(getRowsRead());
+  }
+
+  @Override
+  public long getExpectedRows() {
+    return expectedRows;
+  }
+
+  @Override
+  public long getEtaSeconds() {
+    final double rowsPerSecond = getRowsPerSecond();
+    if (expectedRows <= 0 || rowsPerSecond <= 0) {
+      return -1;
+    }
+    return (long) (Math.max(0, expectedRows - getRowsRead()) / rowsPerSecond);
+  }
+
+  @Override
+  public long getDocumentsCompleted() {
+    return documentsCompleted.sum();
+  }
+
+  @Override
+  public double getDocumentsPerSecond() {
+    return perSecond(getDocumentsCompleted());
+  }
+
+  @Override
+  public double getAverageCompletionMillis() {
+    final long documents = documentsCompleted.sum();
+    return documents == 0 ? 0d : completionNanos.sum() / 1e6 / documents;
+  }
+
+  @Override
+  public double getAverageSerializationMicros() {
+    final long documents = documentsSerialized.sum();
+    return documents == 0 ? 0d : serializationNanos.sum() / 1e3 / documents;
+  }
+
+  @Override
+  public long getBulks() {
+    return bulks.sum();
+  }
+
+  @Override
+  public long getBulksInFlight() {
+    return bulksInFlight.get();
+  }
+
+  @Override
+  public long getBulkActions() {
+    return bulkActions.sum();
+  }
+
+  @Override
+  public long getBulkFailedActions() {
+    return bulkFailedActions.sum();
+  }
+
+  @Override
+  public double getAverageBulkLatencyMillis() {
+    final long count = bulks.sum();
+    return count == 0 ? 0d : (double) bulkLatencyMillis.sum() / count;
+  }
+
+  @Override
+  public int getCompletionQueueDepth() {
+    return completionQueue.getAsInt();
+  }
+
+  @Override
+  public int getDocumentQueueDepth() {
+    return documentQueue.getAsInt();
+  }
+
+  @Override
+  public long getDocumentQueueBytes() {
+    return documentQueueBytes.getAsLong();
+  }
+
+  @Override
+  public long getHeapUsedBytes() {
+    return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+  }
+
+  @Override
+  public long getHeapMaxBytes() {
+    final MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+    return heap.getMax() < 0 ? heap.getCommitted() : heap.getMax();
+  }
+
+  private double perSecond(final long count) {
+    final long elapsedNanos = System.nanoTime() - startNanos;
+    return elapsedNanos == 0 ? 0d : count * 1e9 / elapsedNanos;
+  }
+
+  /**
+   * makes the metrics available over JMX, replacing the metrics of a previous import
+   */
+  public void register() {
+    try {
+      final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      final ObjectName name = new ObjectName(OBJECT_NAME);
+      if (server.isRegistered(name)) {
+        server.unregisterMBean(name);
+      }
+      server.registerMBean(this, name);
+    } catch (final JMException e) {
+      log.warn("could not register import metrics with JMX", e);
+    }
+  }
+
+  public void unregister() {
+    try {
+      final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      final ObjectName name = new ObjectName(OBJECT_NAME);
+      if (server.isRegistered(name)) {
+        server.unregisterMBean(name);
+      }
+    } catch (final JMException e) {
+      log.warn("could not unregister import metrics from JMX", e);
+    }
+  }
+
+  public JSONObject toJson() {
+    final JSONObject json = new JSONObject();
+    json.put("rows_read", getRowsRead());
+    json.put("rows_per_second", Math.round(getRowsPerSecond()));
+    json.put("expected_rows", getExpectedRows());
+    json.put("eta_seconds", getEtaSeconds());
+    json.put("documents_completed", getDocumentsCompleted());
+    json.put("documents_per_second", Math.round(getDocumentsPerSecond()));
+    json.put("average_completion_millis", getAverageCompletionMillis());
+    json.put("average_serialization_micros", getAverageSerializationMicros());
+    json.put("bulks", getBulks());
+    json.put("bulks_in_flight", getBulksInFlight());
+    json.put("bulk_actions", getBulkActions());
+    json.put("bulk_failed_actions", getBulkFailedActions());
+    json.put("average_bulk_latency_millis", getAverageBulkLatencyMillis());
+    json.put("completion_queue_depth", getCompletionQueueDepth());
+    json.put("document_queue_depth", getDocumentQueueDepth());
+    json.put("document_queue_bytes", getDocumentQueueBytes());
+    json.put("heap_used_bytes", getHeapUsedBytes());
+    json.put("heap_max_bytes", getHeapMaxBytes());
+    final List<CountryProgress> countries = getCountries();
+    if (!countries.isEmpty()) {
+      final JSONArray countriesJson = new JSONArray();
+      for (final CountryProgress country : countries) {
+        countriesJson.put(country.toJson());
+      }
+      json.put("countries", countriesJson);
+    }
+    return json;
+  }
+
+  @Override
+  public String toString() {
+    final List<CountryProgress> countries = getCountries();
+    int countriesDone = 0;
+    for (final CountryProgress country : countries) {
+      if (country.isDone()) {
+        countriesDone++;
+      }
+    }
+    return String.format("read %d rows [%.1f/second], completed %d documents [%.1f/second, %.2f ms each], serialization %.1f us/document, "
+                         + "%d bulks (%d in flight, %d of %d actions failed, latency avg %.0f ms), queues %d batches / %d documents (%d KB), heap %d of %d MB%s",
+                         getRowsRead(), getRowsPerSecond(), getDocumentsCompleted(), getDocumentsPerSecond(), getAverageCompletionMillis(),
+                         getAverageSerializationMicros(), getBulks(), getBulksInFlight(), getBulkFailedActions(), getBulkActions(),
+                         getAverageBulkLatencyMillis(), getCompletionQueueDepth(), getDocumentQueueDepth(), getDocumentQueueBytes() / 1024, getHeapUsedBytes() / 1048576,
+                         getHeapMaxBytes() / 1048576, getEtaSeconds() < 0 ? "" : String.format(", eta %d min", getEtaSeconds() / 60))
+           + (countries.isEmpty() ? "" : String.format(", %d of %d countries done", countriesDone, countries.size()));
+  }
+
+  /**
+   * Rows read and time taken for one country of an import that reads the countries on their own.
+   */
+  public static class CountryProgress {
+
+    private final String name;
+    private final long expectedRows;
+    private final LongAdder rowsRead = new LongAdder();
+    private volatile long startMillis;
+    private volatile long endMillis;
+
+    CountryProgress(final String name, final long expectedRows) {
+      this.name = name;
+      this.expectedRows = expectedRows;
+    }
+
+    public void start() {
+      startMillis = System.currentTimeMillis();
+    }
+
+    public void rowRead() {
+      rowsRead.increment();
+    }
+
+    public void finish() {
+      endMillis = System.currentTimeMillis();
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public long getRowsRead() {
+      return rowsRead.sum();
+    }
+
+    public boolean isDone() {
+      return endMillis != 0;
+    }
+
+    /**
+     * @return time the country has been read so far or took to read, 0 if it was not started yet
+     */
+    public long getMillis() {
+      if (startMillis == 0) {
+        return 0;
+      }
+      return (endMillis == 0 ? System.currentTimeMillis() : endMillis) - startMillis;
+    }
+
+    JSONObject toJson() {
+      final JSONObject json = new JSONObject();
+      json.put("country", name);
+      json.put("state", isDone() ? "done" : startMillis == 0 ? "waiting" : "reading");
+      json.put("rows_read", getRowsRead());
+      json.put("expected_rows", expectedRows);
+      json.put("seconds", getMillis() / 1000);
+      return json;
+    }
+  }
+}
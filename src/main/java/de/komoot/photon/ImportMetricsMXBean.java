@@ -0,0 +1,49 @@
+package de.komoot.photon;
+
+/**
+ * JMX view of the {@link ImportMetrics} of a running import
+ */
+public interface ImportMetricsMXBean {
+
+  long getRowsRead();
+
+  double getRowsPerSecond();
+
+  long getExpectedRows();
+
+  /**
+   * @return estimated seconds until all rows are read, -1 if unknown
+   */
+  long getEtaSeconds();
+
+  long getDocumentsCompleted();
+
+  double getDocumentsPerSecond();
+
+  /**
+   * @return average time to complete a document with its address rows
+   */
+  double getAverageCompletionMillis();
+
+  double getAverageSerializationMicros();
+
+  long getBulks();
+
+  long getBulksInFlight();
+
+  long getBulkActions();
+
+  long getBulkFailedActions();
+
+  double getAverageBulkLatencyMillis();
+
+  int getCompletionQueueDepth();
+
+  int getDocumentQueueDepth();
+
+  long getDocumentQueueBytes();
+
+  long getHeapUsedBytes();
+
+  long getHeapMaxBytes();
+}
@@ -1,5 +1,8 @@
 package de.komoot.photon;
 
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
 /**
  * interface for bulk imports from a data source like nominatim
  *
@@ -12,6 +15,25 @@ public interface Importer {
    */
   void add(PhotonDoc doc);
 
+  /**
+   * Adds a batch of documents. Sinks that cannot tell when their documents are stored complete the future as soon as
+   * the documents are added, only {@link #flush()} guarantees that they are stored.
+   *
+   * @return completes once the documents are stored, exceptionally if they could not be stored
+   */
+  default CompletableFuture<Void> addAll(final List<PhotonDoc> docs) {
+    for (final PhotonDoc doc : docs) {
+      add(doc);
+    }
+    return CompletableFuture.completedFuture(null);
+  }
+
+  /**
+   * sends all documents added so far to their destination and waits until they are stored there
+   */
+  default void flush() {
+  }
+
   /**
    * import is finished
    */
@@ -1,43 +1,321 @@
 package de.komoot.photon;
 
-import org.elasticsearch.common.Strings;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.json.JSONArray;
+import org.json.JSONObject;
 
+import java.io.BufferedOutputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
 
 import lombok.extern.slf4j.Slf4j;
 
 /**
- * useful to create json files that can be used for fast re imports
+ * useful to create json files that can be used for fast re imports with -json-import, the files are in the format of
+ * the elasticsearch bulk api
+ * <p>
+ * The documents are spread over a number of shards, each serialized and written by a thread of its own. Unless a single
+ * uncompressed file is written, every shard is split into parts of a maximum size and a manifest listing all parts and
+ * their number of documents is written next to them.
  *
  * @author christoph
  */
 @Slf4j
 public class JsonDumper implements Importer {
 
+  private static final Object END = new Object();
+
+  private final String filename;
   private final String[] languages;
-  private PrintWriter writer;
+  private final boolean gzip;
+  private final long maxPartBytes;
+  private final boolean manifest;
+  private final List<ShardWriter> shards = new ArrayList<>();
+  private final List<Thread> threads = new ArrayList<>();
+  private int nextShard;
+  private boolean finished;
 
   public JsonDumper(final String filename, final String languages) throws FileNotFoundException {
-    this.writer = new PrintWriter(filename);
+    this(filename, languages, 1, false, 0);
+  }
+
+  /**
+   * @param filename     name of the dump if it is a single uncompressed file, otherwise name of the manifest
+   * @param shards       number of files that are written in parallel
+   * @param gzip         compress the files with gzip
+   * @param maxPartBytes a shard continues in a new file after this number of (compressed) bytes, 0 for no limit
+   */
+  public JsonDumper(final String filename, final String languages, final int shards, final boolean gzip, final long maxPartBytes) throws FileNotFoundException {
+    this.filename = filename;
     this.languages = languages.split(",");
+    this.gzip = gzip;
+    this.maxPartBytes = maxPartBytes;
+    this.manifest = shards > 1 || gzip || maxPartBytes > 0;
+
+    // all files are opened before the first thread starts, so a file that cannot be opened leaves nothing running
+    try {
+      for (int i = 0; i < Math.max(1, shards); i++) {
+        final ShardWriter shard = new ShardWriter(i);
+        shard.open();
+        this.shards.add(shard);
+      }
+    } catch (final FileNotFoundException | RuntimeException e) {
+      for (final ShardWriter shard : this.shards) {
+        shard.closeQuietly();
+      }
+      throw e;
+    }
+    for (final ShardWriter shard : this.shards) {
+      final Thread thread = new Thread(shard, "json dump shard " + shard.shard);
+      thread.start();
+      this.threads.add(thread);
+    }
+  }
+
+  /**
+   * @return name of a part file, the manifest lists them without directory
+   */
+  private String getPartName(final int shard, final int part) {
+    if (!manifest) {
+      return filename;
+    }
+    final String base = filename.endsWith(".json") ? filename.substring(0, filename.length() - 5) : filename;
+    return String.format("%s.%03d.%04d.json%s", base, shard, part, gzip ? ".gz" : "");
   }
 
   @Override
   public void add(final PhotonDoc doc) {
+    final ShardWriter shard = shards.get(nextShard);
+    nextShard = (nextShard + 1) % shards.size();
+    shard.put(doc);
+  }
+
+  @Override
+  public void flush() {
+    final CountDownLatch flushed = new CountDownLatch(shards.size());
+    for (final ShardWriter shard : shards) {
+      shard.put(flushed);
+    }
     try {
-      writer.println("{\"index\": {}}");
-      writer.println(Strings.toString(Utils.convert(doc, this.languages)));
-    } catch (final IOException e) {
-      log.error("error writing json file", e);
+      // a shard that failed meanwhile may never count down
+      while (!flushed.await(1, TimeUnit.SECONDS)) {
+        checkFailures();
+      }
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("interrupted while flushing json dump", e);
+    }
+    checkFailures();
+  }
+
+  private void checkFailures() {
+    for (final ShardWriter shard : shards) {
+      shard.checkFailure();
     }
   }
 
   @Override
   public void finish() {
-    if (writer != null) {
-      writer.close();
+    if (finished) {
+      return;
+    }
+    finished = true;
+
+    RuntimeException failure = null;
+    for (final ShardWriter shard : shards) {
+      try {
+        shard.put(END);
+      } catch (final RuntimeException e) {
+        // the other shards are closed all the same
+        if (failure == null) {
+          failure = e;
+        }
+      }
+    }
+    for (final Thread thread : threads) {
+      try {
+        thread.join();
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("interrupted while finishing json dump", e);
+      }
+    }
+    checkFailures();
+    if (failure != null) {
+      throw failure;
+    }
+
+    if (manifest) {
+      writeManifest();
+    }
+  }
+
+  private void writeManifest() {
+    final JSONArray parts = new JSONArray();
+    long documents = 0;
+    for (final ShardWriter shard : shards) {
+      for (final JSONObject part : shard.parts) {
+        parts.put(part);
+        documents += part.getLong("documents");
+      }
+    }
+
+    final JSONObject json = new JSONObject();
+    json.put("compression", gzip ? "gzip" : "none");
+    json.put("shards", shards.size());
+    json.put("documents", documents);
+    json.put("parts", parts);
+
+    try (Writer writer = new OutputStreamWriter(new FileOutputStream(filename), StandardCharsets.UTF_8)) {
+      writer.write(json.toString(2));
+    } catch (final IOException e) {
+      throw new IllegalStateException("cannot write json dump manifest " + filename, e);
+    }
+    log.info("wrote json dump manifest {} with {} parts and {} documents", filename, parts.length(), documents);
+  }
+
+  /**
+   * Serializes and writes the documents of one shard.
+   */
+  private class ShardWriter implements Runnable {
+
+    private final int shard;
+    private final BlockingQueue<Object> queue = new ArrayBlockingQueue<>(1000);
+    private final List<JSONObject> parts = new ArrayList<>();
+    private final DocSerializer serializer = new DocSerializer(languages);
+    private int part;
+    private CountingOutputStream counter;
+    private OutputStream out;
+    private long partDocuments;
+    private volatile RuntimeException failure;
+
+    ShardWriter(final int shard) {
+      this.shard = shard;
+    }
+
+    /**
+     * @throws IllegalStateException if the shard failed, also while waiting for room in the queue
+     */
+    void put(final Object item) {
+      checkFailure();
+      try {
+        while (!queue.offer(item, 1, TimeUnit.SECONDS)) {
+          checkFailure();
+        }
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("interrupted while handing over to json dump shard " + shard, e);
+      }
+    }
+
+    void checkFailure() {
+      if (failure != null) {
+        throw failure;
+      }
+    }
+
+    void open() throws FileNotFoundException {
+      counter = new CountingOutputStream(new FileOutputStream(getPartName(shard, part)));
+      try {
+        out = gzip ? new BufferedOutputStream(new GZIPOutputStream(counter, 65536), 65536) : new BufferedOutputStream(counter, 65536);
+      } catch (final IOException e) {
+        try {
+          counter.close();
+        } catch (final IOException closing) {
+          e.addSuppressed(closing);
+        }
+        throw new IllegalStateException("cannot open json dump " + getPartName(shard, part), e);
+      }
+      partDocuments = 0;
+    }
+
+    private void close() throws IOException {
+      out.close();
+      final JSONObject json = new JSONObject();
+      json.put("file", new File(getPartName(shard, part)).getName());
+      json.put("shard", shard);
+      json.put("documents", partDocuments);
+      parts.add(json);
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (true) {
+          final Object item = queue.take();
+          if (item == END) {
+            close();
+            return;
+          }
+          if (item instanceof CountDownLatch) {
+            out.flush();
+            ((CountDownLatch) item).countDown();
+            continue;
+          }
+          write((PhotonDoc) item);
+        }
+      } catch (final IOException | RuntimeException e) {
+        log.error("error writing json file", e);
+        failure = new IllegalStateException("cannot write json dump shard " + shard, e);
+      } catch (final InterruptedException e) {
+        failure = new IllegalStateException("interrupted while writing json dump shard " + shard, e);
+      } finally {
+        discard();
+      }
+    }
+
+    /**
+     * Releases everything waiting in the queue once the shard stopped. Producers see the failure before they put the
+     * next item, flush and finish report it.
+     */
+    private void discard() {
+      final List<Object> items = new ArrayList<>();
+      queue.drainTo(items);
+      for (final Object item : items) {
+        if (item instanceof CountDownLatch) {
+          ((CountDownLatch) item).countDown();
+        }
+      }
+      if (failure != null) {
+        closeQuietly();
+      }
+    }
+
+    /**
+     * closes the file of a shard that failed or never started
+     */
+    void closeQuietly() {
+      try {
+        out.close();
+      } catch (final IOException | RuntimeException e) {
+        log.debug("cannot close json dump shard {} after failure", shard, e);
+      }
+    }
+
+    private void write(final PhotonDoc doc) throws IOException {
+      if (maxPartBytes > 0 && partDocuments > 0 && counter.getByteCount() >= maxPartBytes) {
+        close();
+        part++;
+        open();
+      }
+
+      out.write(("{\"index\": {\"_id\": " + JSONObject.quote(doc.getUid()) + "}}\n").getBytes(StandardCharsets.UTF_8));
+      serializer.serialize(doc).writeTo(out);
+      out.write('\n');
+      partDocuments++;
     }
   }
 }
@@ -0,0 +1,237 @@
+package de.komoot.photon;
+
+import de.komoot.photon.utils.HandOffQueue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Passes all documents to several importers, e.g. an elasticsearch index and a dump, so they are read only once.
+ * <p>
+ * Every importer is called from a thread of its own, with a queue of the documents it has not taken yet. A slow importer
+ * blocks the others only once it lags behind by more documents than its queue holds. The documents are shared by the
+ * importers and must not be changed after they are added.
+ */
+@Slf4j
+public class TeeImporter implements Importer {
+
+  private static final int CHUNK_DOCUMENTS = 1000;
+
+  private final List<Sink> sinks = new ArrayList<>();
+  private List<PhotonDoc> pending = new ArrayList<>();
+  private boolean finished;
+
+  /**
+   * @param maxLag number of documents an importer may lag behind the fastest one
+   */
+  public TeeImporter(final List<? extends Importer> importers, final int maxLag) {
+    for (int i = 0; i < importers.size(); i++) {
+      final Sink sink = new Sink(importers.get(i), maxLag);
+      sink.thread = new Thread(sink, "tee importer " + i);
+      sink.thread.start();
+      sinks.add(sink);
+    }
+  }
+
+  @Override
+  public void add(final PhotonDoc doc) {
+    pending.add(doc);
+    if (pending.size() >= CHUNK_DOCUMENTS) {
+      handOver(pending, null);
+      pending = new ArrayList<>();
+    }
+  }
+
+  /**
+   * @return completes once all importers acknowledged the documents
+   */
+  @Override
+  public CompletableFuture<Void> addAll(final List<PhotonDoc> docs) {
+    if (!pending.isEmpty()) {
+      handOver(pending, null);
+      pending = new ArrayList<>();
+    }
+    final List<CompletableFuture<Void>> stored = new ArrayList<>(sinks.size());
+    for (int i = 0; i < sinks.size(); i++) {
+      stored.add(new CompletableFuture<>());
+    }
+    handOver(docs, stored);
+    return CompletableFuture.allOf(stored.toArray(new CompletableFuture<?>[0]));
+  }
+
+  /**
+   * @param stored one future per sink, completed with the acknowledgement of the sink, null if not needed
+   */
+  private void handOver(final List<PhotonDoc> docs, final List<CompletableFuture<Void>> stored) {
+    for (int i = 0; i < sinks.size(); i++) {
+      sinks.get(i).put(new Chunk(docs, stored == null ? null : stored.get(i)));
+    }
+  }
+
+  /**
+   * waits until every importer has flushed all documents added so far
+   */
+  @Override
+  public void flush() {
+    final List<CompletableFuture<Void>> flushed = new ArrayList<>(sinks.size());
+    if (!pending.isEmpty()) {
+      handOver(pending, null);
+      pending = new ArrayList<>();
+    }
+    for (final Sink sink : sinks) {
+      final CompletableFuture<Void> done = new CompletableFuture<>();
+      sink.put(new Chunk(null, done));
+      flushed.add(done);
+    }
+    await(flushed, "flushing");
+  }
+
+  /**
+   * waits until every importer has taken all documents and is finished
+   */
+  @Override
+  public void finish() {
+    if (finished) {
+      return;
+    }
+    finished = true;
+
+    if (!pending.isEmpty()) {
+      handOver(pending, null);
+      pending = new ArrayList<>();
+    }
+    for (final Sink sink : sinks) {
+      sink.queue.complete();
+    }
+    final List<CompletableFuture<Void>> done = new ArrayList<>(sinks.size());
+    for (final Sink sink : sinks) {
+      done.add(sink.finished);
+    }
+    await(done, "finishing");
+    for (final Sink sink : sinks) {
+      log.info("{}: {}", sink.thread.getName(), sink.queue);
+    }
+  }
+
+  /**
+   * waits for the futures or the failure of an importer, a failed importer drops the chunks it has not taken
+   */
+  private void await(final List<CompletableFuture<Void>> futures, final String action) {
+    final List<CompletableFuture<?>> watched = new ArrayList<>();
+    watched.add(CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])));
+    for (final Sink sink : sinks) {
+      watched.add(sink.finished);
+    }
+    try {
+      CompletableFuture.anyOf(watched.toArray(new CompletableFuture<?>[0])).get();
+      watched.get(0).get();
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("interrupted while " + action + " importers", e);
+    } catch (final ExecutionException e) {
+      throw new IllegalStateException("an importer failed while " + action, e.getCause());
+    }
+  }
+
+  /**
+   * Documents for a sink, a chunk without documents asks the sink to flush.
+   */
+  private static class Chunk {
+
+    private final List<PhotonDoc> docs;
+    private final CompletableFuture<Void> stored;
+
+    Chunk(final List<PhotonDoc> docs, final CompletableFuture<Void> stored) {
+      this.docs = docs;
+      this.stored = stored;
+    }
+
+    void fail(final Throwable cause) {
+      if (stored != null) {
+        stored.completeExceptionally(cause);
+      }
+    }
+  }
+
+  /**
+   * Passes the chunks of its queue to one importer.
+   */
+  private static class Sink implements Runnable {
+
+    private final Importer importer;
+    private final HandOffQueue<Chunk> queue;
+    private final CompletableFuture<Void> finished = new CompletableFuture<>();
+    private Thread thread;
+
+    Sink(final Importer importer, final int maxLag) {
+      this.importer = importer;
+      this.queue = new HandOffQueue<>(Math.max(1, maxLag), chunk -> chunk.docs == null ? 0 : chunk.docs.size());
+    }
+
+    void put(final Chunk chunk) {
+      try {
+        queue.put(chunk);
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+        chunk.fail(e);
+        throw new IllegalStateException("interrupted while handing over documents", e);
+      } catch (final IllegalStateException e) {
+        chunk.fail(e.getCause() == null ? e : e.getCause());
+        throw e;
+      }
+    }
+
+    @Override
+    public void run() {
+      Chunk chunk = null;
+      boolean finishing = false;
+      try {
+        while ((chunk = queue.take()) != null) {
+          if (chunk.docs == null) {
+            importer.flush();
+            chunk.stored.complete(null);
+          } else if (chunk.stored == null) {
+            for (final PhotonDoc doc : chunk.docs) {
+              importer.add(doc);
+            }
+          } else {
+            final CompletableFuture<Void> stored = chunk.stored;
+            importer.addAll(chunk.docs).whenComplete((result, failure) -> {
+              if (failure == null) {
+                stored.complete(null);
+              } else {
+                stored.completeExceptionally(failure);
+              }
+            });
+          }
+        }
+        finishing = true;
+        importer.finish();
+        finished.complete(null);
+      } catch (final InterruptedException | RuntimeException e) {
+        log.error("{} failed", thread.getName(), e);
+        // the producer gets the failure with the next documents, the documents waiting for this importer are lost
+        if (chunk != null) {
+          chunk.fail(e);
+        }
+        for (final Chunk discarded : queue.fail(e)) {
+          discarded.fail(e);
+        }
+        try {
+          if (!finishing) {
+            // the importer releases its threads and files also after a failure
+            importer.finish();
+          }
+        } catch (final RuntimeException secondary) {
+          log.error("{} could not finish its importer after the failure", thread.getName(), secondary);
+        } finally {
+          finished.completeExceptionally(e);
+        }
+      }
+    }
+  }
+}
@@ -1,5 +1,8 @@
 package de.komoot.photon;
 
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
 /**
  * @author felix
  */
@@ -11,7 +14,31 @@ public interface Updater {
 
   void delete(Long id);
 
+  /**
+   * Replaces all documents of a place, a place with house numbers has one document per number. Documents the place no
+   * longer has are deleted, no documents delete the place.
+   *
+   * @param osmId osm id of the place, used to find its documents
+   */
+  default void replace(long placeId, long osmId, List<PhotonDoc> docs) {
+    delete(placeId);
+    for (final PhotonDoc doc : docs) {
+      create(doc);
+    }
+  }
+
   void finish();
 
+  /**
+   * Sends the changes made so far. Updaters that cannot tell when their changes are stored complete the future once
+   * they are sent.
+   *
+   * @return completes once the changes are stored, exceptionally if they could not be stored
+   */
+  default CompletableFuture<Void> commit() {
+    finish();
+    return CompletableFuture.completedFuture(null);
+  }
+
   void updateOrCreate(PhotonDoc updatedDoc);
 }
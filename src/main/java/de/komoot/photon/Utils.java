@@ -24,6 +24,10 @@ public class Utils {
 
   private static final Joiner commaJoiner = Joiner.on(", ").skipNulls();
 
+  /**
+   * converts a single document, a {@link DocSerializer} writes the same bytes without the intermediate maps and should be
+   * kept to convert many documents
+   */
   public static XContentBuilder convert(final PhotonDoc doc, final String[] languages) throws IOException {
     final XContentBuilder builder = XContentFactory.jsonBuilder().startObject()
         .field(Constants.OSM_ID, doc.getOsmId())
@@ -0,0 +1,342 @@
+package de.komoot.photon.elasticsearch;
+
+import de.komoot.photon.FailedDocumentsException;
+import de.komoot.photon.ImportMetrics;
+
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BackoffPolicy;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkProcessor;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentType;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Sends write requests to elasticsearch in bulks.
+ * <p>
+ * A bulk is sent as soon as it reaches the configured number of actions or size in bytes, or when the flush interval
+ * has passed. Several bulks can be in flight at the same time; once all of them are busy {@link #add(DocWriteRequest)}
+ * blocks until one returns. Items that elasticsearch rejects because it is overloaded are retried with exponential
+ * backoff. Requests added with {@link #addAll(List)} are acknowledged once their bulk has returned.
+ *
+ * @see BulkSettings
+ */
+@Slf4j
+public class BulkIndexer implements BulkProcessor.Listener {
+
+  private final String name;
+  private final BulkProcessor processor;
+  private final long startNanos = System.nanoTime();
+  private final Map<Long, Long> bulkStartNanos = new ConcurrentHashMap<>();
+  private final Map<DocWriteRequest<?>, Acknowledgement> acknowledgements = Collections.synchronizedMap(new IdentityHashMap<>());
+  private final Object inFlightLock = new Object();
+  private final AtomicLong bulks = new AtomicLong();
+  private final AtomicLong actions = new AtomicLong();
+  private final AtomicLong failedActions = new AtomicLong();
+  private final AtomicLong bytes = new AtomicLong();
+  private final AtomicLong totalLatencyMillis = new AtomicLong();
+  private final AtomicLong maxLatencyMillis = new AtomicLong();
+  private ImportMetrics metrics;
+
+  /**
+   * @param name used in log messages
+   */
+  public BulkIndexer(final Client esClient, final BulkSettings settings, final String name) {
+    this.name = name;
+    this.processor = BulkProcessor.builder(esClient, this)
+        .setBulkActions(settings.getBulkActions())
+        .setBulkSize(settings.getBulkSize())
+        .setConcurrentRequests(settings.getConcurrentRequests())
+        .setFlushInterval(settings.getFlushInterval())
+        .setBackoffPolicy(BackoffPolicy.exponentialBackoff(settings.getInitialRetryDelay(), settings.getMaxRetries()))
+        .build();
+  }
+
+  /**
+   * @param metrics bulks are also counted in the metrics, may be null
+   */
+  public void setMetrics(final ImportMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  public void add(final DocWriteRequest<?> request) {
+    processor.add(request);
+  }
+
+  /**
+   * adds requests whose storage is acknowledged
+   *
+   * @return completes once all requests are stored, exceptionally if one of them failed, with a
+   * {@link FailedDocumentsException} listing the failed requests if the others are stored
+   */
+  public CompletableFuture<Void> addAll(final List<? extends DocWriteRequest<?>> requests) {
+    if (requests.isEmpty()) {
+      return CompletableFuture.completedFuture(null);
+    }
+
+    final Acknowledgement acknowledgement = new Acknowledgement(requests.size());
+    // a bulk may be sent while the requests are added
+    for (final DocWriteRequest<?> request : requests) {
+      acknowledgements.put(request, acknowledgement);
+    }
+    for (final DocWriteRequest<?> request : requests) {
+      processor.add(request);
+    }
+    return acknowledgement.future;
+  }
+
+  /**
+   * adds the requests of a chunk of the bulk api format, an action line followed by the source of the document
+   */
+  public void add(final BytesReference data, final String defaultIndex, final String defaultType) throws IOException {
+    try {
+      processor.add(data, defaultIndex, defaultType, XContentType.JSON);
+    } catch (final IOException e) {
+      throw e;
+    } catch (final Exception e) {
+      throw new IOException("invalid bulk data", e);
+    }
+  }
+
+  /**
+   * sends the pending requests without waiting for the response
+   */
+  public void flush() {
+    processor.flush();
+  }
+
+  /**
+   * sends the pending requests and waits until all bulks in flight have returned, more requests can be added afterwards
+   */
+  public void flushAndWait() {
+    processor.flush();
+    synchronized (inFlightLock) {
+      while (!bulkStartNanos.isEmpty()) {
+        try {
+          inFlightLock.wait(100);
+        } catch (final InterruptedException e) {
+          Thread.currentThread().interrupt();
+          log.error("{}: interrupted while waiting for bulks in flight", name, e);
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * sends the pending requests and waits until all bulks in flight have returned
+   */
+  public void close() {
+    try {
+      if (!processor.awaitClose(1, TimeUnit.DAYS)) {
+        log.error("{}: bulks still in flight after waiting for a day", name);
+      }
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      log.error("{}: interrupted while waiting for bulks in flight", name, e);
+    }
+  }
+
+  @Override
+  public void beforeBulk(final long executionId, final BulkRequest request) {
+    bulkStartNanos.put(executionId, System.nanoTime());
+    if (metrics != null) {
+      metrics.bulkStarted();
+    }
+  }
+
+  @Override
+  public void afterBulk(final long executionId, final BulkRequest request, final BulkResponse response) {
+    int failures = 0;
+    String firstFailure = null;
+    if (response.hasFailures()) {
+      for (final BulkItemResponse item : response.getItems()) {
+        if (item.isFailed()) {
+          failures++;
+          if (firstFailure == null) {
+            firstFailure = item.getId() + ": " + item.getFailureMessage();
+          }
+        }
+      }
+    }
+
+    acknowledge(request, response);
+    final long latencyMillis = recordBulk(executionId, request, failures);
+    if (failures > 0) {
+      log.error("{}: {} of {} actions of bulk failed, first failure {}", name, failures, request.numberOfActions(), firstFailure);
+    }
+
+    log.debug("{}: bulk of {} actions ({} bytes) took {} ms", name, request.numberOfActions(), request.estimatedSizeInBytes(), latencyMillis);
+  }
+
+  @Override
+  public void afterBulk(final long executionId, final BulkRequest request, final Throwable failure) {
+    for (final DocWriteRequest<?> action : request.requests()) {
+      final Acknowledgement acknowledgement = acknowledgements.remove(action);
+      if (acknowledgement != null) {
+        acknowledgement.done(action.id(), failure.toString());
+      }
+    }
+    recordBulk(executionId, request, request.numberOfActions());
+    log.error("{}: bulk of {} actions failed", name, request.numberOfActions(), failure);
+  }
+
+  /**
+   * Completes the acknowledgements of the requests before the bulk counts as returned. Failed items are matched by
+   * their id, the item positions refer to the last retry of the bulk.
+   */
+  private void acknowledge(final BulkRequest request, final BulkResponse response) {
+    if (acknowledgements.isEmpty()) {
+      return;
+    }
+
+    final Map<String, String> failures = new HashMap<>();
+    if (response.hasFailures()) {
+      for (final BulkItemResponse item : response.getItems()) {
+        if (item.isFailed()) {
+          failures.put(item.getId(), item.getFailureMessage());
+        }
+      }
+    }
+    for (final DocWriteRequest<?> action : request.requests()) {
+      final Acknowledgement acknowledgement = acknowledgements.remove(action);
+      if (acknowledgement != null) {
+        acknowledgement.done(action.id(), action.id() == null ? null : failures.get(action.id()));
+      }
+    }
+  }
+
+  private long recordBulk(final long executionId, final BulkRequest request, final int failures) {
+    final Long start = bulkStartNanos.remove(executionId);
+    synchronized (inFlightLock) {
+      inFlightLock.notifyAll();
+    }
+    final long latencyMillis = start == null ? 0 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+    bulks.incrementAndGet();
+    actions.addAndGet(request.numberOfActions());
+    bytes.addAndGet(request.estimatedSizeInBytes());
+    totalLatencyMillis.addAndGet(latencyMillis);
+    maxLatencyMillis.accumulateAndGet(latencyMillis, Math::max);
+    failedActions.addAndGet(failures);
+    if (metrics != null) {
+      metrics.bulkDone(request.numberOfActions(), failures, latencyMillis);
+    }
+    return latencyMillis;
+  }
+
+  /**
+   * @return number of bulks that returned
+   */
+  public long getBulks() {
+    return bulks.get();
+  }
+
+  /**
+   * @return number of actions in returned bulks, including failed ones
+   */
+  public long getActions() {
+    return actions.get();
+  }
+
+  public long getFailedActions() {
+    return failedActions.get();
+  }
+
+  /**
+   * @return estimated size of the returned bulks
+   */
+  public long getBytes() {
+    return bytes.get();
+  }
+
+  /**
+   * @return number of bulks sent but not returned yet
+   */
+  public int getBulksInFlight() {
+    return bulkStartNanos.size();
+  }
+
+  public double getAverageLatencyMillis() {
+    final long count = bulks.get();
+    return count == 0 ? 0d : (double) totalLatencyMillis.get() / count;
+  }
+
+  public long getMaxLatencyMillis() {
+    return maxLatencyMillis.get();
+  }
+
+  /**
+   * @return actions per second since this indexer was created
+   */
+  public double getActionsPerSecond() {
+    final long elapsedNanos = System.nanoTime() - startNanos;
+    return elapsedNanos == 0 ? 0d : actions.get() * 1e9 / elapsedNanos;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s: %d bulks, %d actions (%d failed), %.1f MB, %.1f actions/second, latency avg %.0f ms max %d ms",
+                         name, getBulks(), getActions(), getFailedActions(), getBytes() / 1048576d, getActionsPerSecond(),
+                         getAverageLatencyMillis(), getMaxLatencyMillis());
+  }
+
+  /**
+   * Completes a future once all requests of a call to {@link #addAll(List)} have returned.
+   */
+  private static class Acknowledgement {
+
+    private final CompletableFuture<Void> future = new CompletableFuture<>();
+    private final AtomicInteger pending;
+    private final Set<String> failedIds = ConcurrentHashMap.newKeySet();
+    private volatile String failure;
+    private volatile boolean failedWithoutId;
+
+    Acknowledgement(final int requests) {
+      this.pending = new AtomicInteger(requests);
+    }
+
+    /**
+     * @param id      id of the request, null if elasticsearch generates it
+     * @param failure reason why the request was not stored, null if it was stored
+     */
+    void done(final String id, final String failure) {
+      if (failure != null) {
+        if (this.failure == null) {
+          this.failure = failure;
+        }
+        if (id == null) {
+          failedWithoutId = true;
+        } else {
+          failedIds.add(id);
+        }
+      }
+      if (pending.decrementAndGet() == 0) {
+        if (this.failure == null) {
+          future.complete(null);
+        } else if (failedWithoutId) {
+          future.completeExceptionally(new IOException("could not store all documents, " + this.failure));
+        } else {
+          future.completeExceptionally(new FailedDocumentsException("could not store " + failedIds.size() + " documents, " + this.failure, failedIds));
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,55 @@
+package de.komoot.photon.elasticsearch;
+
+import de.komoot.photon.CommandLineArgs;
+
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentType;
+
+import java.util.Locale;
+
+import lombok.Data;
+
+/**
+ * Limits that decide when a bulk is sent to elasticsearch and how many bulks may be in flight at the same time, and the
+ * format the documents are sent in.
+ */
+@Data
+public class BulkSettings {
+
+  private int bulkActions = 10000;
+  private ByteSizeValue bulkSize = new ByteSizeValue(15, ByteSizeUnit.MB);
+  private int concurrentRequests = 2;
+  private TimeValue flushInterval = TimeValue.timeValueSeconds(10);
+  private TimeValue initialRetryDelay = TimeValue.timeValueMillis(100);
+  private int maxRetries = 8;
+  private XContentType contentType = XContentType.JSON;
+
+  public BulkSettings() {
+  }
+
+  public BulkSettings(final CommandLineArgs args) {
+    this.bulkActions = args.getBulkActions();
+    this.bulkSize = new ByteSizeValue(args.getBulkSizeMb(), ByteSizeUnit.MB);
+    this.concurrentRequests = args.getBulkConcurrency();
+    this.flushInterval = TimeValue.timeValueSeconds(args.getBulkFlushInterval());
+    this.contentType = parseContentType(args.getBulkFormat());
+  }
+
+  /**
+   * @param format json or one of the binary formats smile and cbor, which elasticsearch parses faster
+   */
+  public static XContentType parseContentType(final String format) {
+    switch (format.toLowerCase(Locale.ROOT)) {
+      case "json":
+        return XContentType.JSON;
+      case "smile":
+        return XContentType.SMILE;
+      case "cbor":
+        return XContentType.CBOR;
+      default:
+        throw new IllegalArgumentException("unknown bulk format " + format + ", use json, smile or cbor");
+    }
+  }
+}
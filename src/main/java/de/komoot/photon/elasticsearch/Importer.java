@@ -1,70 +1,155 @@
 package de.komoot.photon.elasticsearch;
 
+import de.komoot.photon.DocSerializer;
+import de.komoot.photon.ImportMetrics;
 import de.komoot.photon.PhotonDoc;
-import de.komoot.photon.Utils;
 
-import org.elasticsearch.action.bulk.BulkRequestBuilder;
-import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.client.Requests;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.search.builder.SearchSourceBuilder;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
 
 import lombok.extern.slf4j.Slf4j;
 
 /**
- * elasticsearch importer
+ * elasticsearch importer, documents are sent in concurrent bulks by a {@link BulkIndexer}
  *
  * @author felix
  */
 @Slf4j
 public class Importer implements de.komoot.photon.Importer {
 
-  private final String indexName = "photon";
+  private final String indexName;
   private final String indexType = "place";
   private final Client esClient;
-  private final String[] languages;
-  private int documentCount;
-  private BulkRequestBuilder bulkRequest;
+  private final DocSerializer serializer;
+  private final BulkSettings bulkSettings;
+  private final AtomicLong documents = new AtomicLong();
+  private final AtomicLong failedDocuments = new AtomicLong();
+  private BulkIndexer bulkIndexer;
+  private ImportMetrics metrics;
 
   public Importer(final Client esClient, final String languages) {
+    this(esClient, languages, new BulkSettings());
+  }
+
+  public Importer(final Client esClient, final String languages, final BulkSettings bulkSettings) {
+    this(esClient, Server.ALIAS, languages, bulkSettings);
+  }
+
+  /**
+   * @param indexName index the documents are added to, e.g. a new index created by {@link Server#createIndex()}
+   */
+  public Importer(final Client esClient, final String indexName, final String languages, final BulkSettings bulkSettings) {
     this.esClient = esClient;
-    this.bulkRequest = esClient.prepareBulk();
-    this.languages = languages.split(",");
+    this.indexName = indexName;
+    this.serializer = new DocSerializer(languages.split(","), bulkSettings.getContentType());
+    this.bulkSettings = bulkSettings;
+  }
+
+  /**
+   * @param metrics serialization and bulks are counted in the metrics, may be null
+   */
+  public void setMetrics(final ImportMetrics metrics) {
+    this.metrics = metrics;
+    if (this.bulkIndexer != null) {
+      this.bulkIndexer.setMetrics(metrics);
+    }
   }
 
   @Override
   public void add(final PhotonDoc doc) {
     try {
-      this.bulkRequest.add(this.esClient.prepareIndex(indexName, indexType).
-          setSource(Utils.convert(doc, languages)).setId(doc.getUid()));
+      getBulkIndexer().add(createRequest(doc));
+      documents.incrementAndGet();
     } catch (final IOException e) {
       log.error("could not bulk add document {}", doc.getUid(), e);
-      return;
+      failedDocuments.incrementAndGet();
     }
-    this.documentCount += 1;
-    if (this.documentCount > 0 && this.documentCount % 10000 == 0) {
-      this.saveDocuments();
+  }
+
+  /**
+   * the documents are acknowledged once the bulks they are sent in have returned
+   */
+  @Override
+  public CompletableFuture<Void> addAll(final List<PhotonDoc> docs) {
+    final List<IndexRequest> requests = new ArrayList<>(docs.size());
+    for (final PhotonDoc doc : docs) {
+      try {
+        requests.add(createRequest(doc));
+      } catch (final IOException e) {
+        log.error("could not bulk add document {}", doc.getUid(), e);
+        failedDocuments.addAndGet(docs.size());
+        final CompletableFuture<Void> failed = new CompletableFuture<>();
+        failed.completeExceptionally(e);
+        return failed;
+      }
     }
+    final CompletableFuture<Void> stored = getBulkIndexer().addAll(requests);
+    documents.addAndGet(requests.size());
+    return stored;
   }
 
-  private void saveDocuments() {
-    if (this.documentCount < 1) {
-      return;
+  private IndexRequest createRequest(final PhotonDoc doc) throws IOException {
+    final long start = System.nanoTime();
+    // the request keeps the source, it must not share the buffer of the serializer
+    final BytesArray source = new BytesArray(BytesReference.toBytes(serializer.serialize(doc)));
+    if (this.metrics != null) {
+      this.metrics.documentSerialized(System.nanoTime() - start);
     }
+    return this.esClient.prepareIndex(indexName, indexType).setSource(source, bulkSettings.getContentType()).setId(doc.getUid()).request();
+  }
+
+  /**
+   * @return the indexer sending the bulks of the running import, it is replaced by a new one after {@link #finish()}
+   */
+  public BulkIndexer getBulkIndexer() {
+    if (this.bulkIndexer == null) {
+      this.bulkIndexer = new BulkIndexer(this.esClient, this.bulkSettings, "import");
+      this.bulkIndexer.setMetrics(this.metrics);
+    }
+    return this.bulkIndexer;
+  }
 
-    final BulkResponse bulkResponse = bulkRequest.execute().actionGet();
-    if (bulkResponse.hasFailures()) {
-      log.error("error while bulk import:{}", bulkResponse.buildFailureMessage());
+  @Override
+  public void flush() {
+    if (this.bulkIndexer != null) {
+      this.bulkIndexer.flushAndWait();
     }
-    this.bulkRequest = this.esClient.prepareBulk();
   }
 
   @Override
   public void finish() {
-    this.saveDocuments();
-    this.documentCount = 0;
+    if (this.bulkIndexer == null) {
+      return;
+    }
+
+    this.bulkIndexer.close();
+    failedDocuments.addAndGet(this.bulkIndexer.getFailedActions());
+    log.info("finished bulk import, {}", this.bulkIndexer);
+    this.bulkIndexer = null;
+  }
+
+  /**
+   * @return number of documents sent to elasticsearch, including failed ones
+   */
+  public long getDocuments() {
+    return documents.get();
+  }
+
+  /**
+   * @return number of documents that could not be serialized or stored, complete after {@link #finish()}
+   */
+  public long getFailedDocuments() {
+    return failedDocuments.get();
   }
 
   public long count() {
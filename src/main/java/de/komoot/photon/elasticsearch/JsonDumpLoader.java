@@ -0,0 +1,221 @@
+package de.komoot.photon.elasticsearch;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.bytes.BytesArray;
+
+import org.apache.commons.io.FileUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Loads a dump written by {@link de.komoot.photon.JsonDumper} into a photon index.
+ * <p>
+ * The dump is read in chunks that end at a document boundary. The chunks are handed to a {@link BulkIndexer} as raw
+ * bulk data, so the documents are sent without being parsed and serialized again, in as many concurrent bulks as the
+ * {@link BulkSettings} allow.
+ * <p>
+ * A dump split into several parts is loaded through its manifest, the parts are read in parallel.
+ */
+@Slf4j
+public class JsonDumpLoader {
+
+  private static final int CHUNK_SIZE = 4 * 1024 * 1024;
+  private static final long PROGRESS_INTERVAL = 1000000;
+
+  private final Client esClient;
+  private final String indexName;
+  private final BulkSettings bulkSettings;
+  private long failedDocuments;
+
+  public JsonDumpLoader(final Client esClient, final BulkSettings bulkSettings) {
+    this(esClient, Server.ALIAS, bulkSettings);
+  }
+
+  /**
+   * @param indexName index the documents are loaded into
+   */
+  public JsonDumpLoader(final Client esClient, final String indexName, final BulkSettings bulkSettings) {
+    this.esClient = esClient;
+    this.indexName = indexName;
+    this.bulkSettings = bulkSettings;
+  }
+
+  /**
+   * @param file a single dump, possibly gzip compressed, or the manifest of a dump in several parts
+   * @return number of documents read
+   */
+  public long load(final File file) throws IOException {
+    log.info("loading json dump " + file);
+    final BulkIndexer indexer = new BulkIndexer(esClient, bulkSettings, "json import");
+    final long documents;
+    try {
+      documents = isManifest(file) ? loadParts(file, indexer) : loadPart(file, indexer);
+    } finally {
+      indexer.close();
+      failedDocuments += indexer.getFailedActions();
+    }
+    log.info(String.format("loaded %s documents from %s, %s", MessageFormat.format("{0}", documents), file, indexer));
+    return documents;
+  }
+
+  /**
+   * @return number of documents of the loaded dumps that elasticsearch did not store
+   */
+  public long getFailedDocuments() {
+    return failedDocuments;
+  }
+
+  /**
+   * a dump starts with the action line of its first document
+   */
+  private static boolean isManifest(final File file) throws IOException {
+    if (file.getName().endsWith(".gz")) {
+      return false;
+    }
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+      final String firstLine = reader.readLine();
+      return firstLine != null && !firstLine.startsWith("{\"index\"");
+    }
+  }
+
+  private long loadParts(final File manifestFile, final BulkIndexer indexer) throws IOException {
+    final JSONObject manifest = new JSONObject(FileUtils.readFileToString(manifestFile, StandardCharsets.UTF_8));
+    final JSONArray parts = manifest.getJSONArray("parts");
+    final AtomicLong documents = new AtomicLong();
+    final ExecutorService readers = Executors.newFixedThreadPool(Math.max(1, Math.min(parts.length(), Runtime.getRuntime().availableProcessors())));
+    try {
+      final List<Future<?>> futures = new ArrayList<>();
+      for (int i = 0; i < parts.length(); i++) {
+        final JSONObject part = parts.getJSONObject(i);
+        final File file = new File(manifestFile.getAbsoluteFile().getParentFile(), part.getString("file"));
+        futures.add(readers.submit(() -> {
+          final long read = loadPart(file, indexer);
+          if (read != part.getLong("documents")) {
+            log.warn("{} contains {} documents but the manifest lists {}", file, read, part.getLong("documents"));
+          }
+          documents.addAndGet(read);
+          return null;
+        }));
+      }
+
+      for (final Future<?> future : futures) {
+        try {
+          future.get();
+        } catch (final InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("interrupted while loading " + manifestFile, e);
+        } catch (final ExecutionException e) {
+          if (e.getCause() instanceof IOException) {
+            throw (IOException) e.getCause();
+          }
+          throw new IOException("cannot load " + manifestFile, e.getCause());
+        }
+      }
+    } finally {
+      readers.shutdownNow();
+    }
+    return documents.get();
+  }
+
+  private long loadPart(final File file, final BulkIndexer indexer) throws IOException {
+    try (InputStream in = file.getName().endsWith(".gz") ? new GZIPInputStream(new FileInputStream(file), 65536) : new FileInputStream(file)) {
+      return load(in, indexer);
+    }
+  }
+
+  private long load(final InputStream in, final BulkIndexer indexer) throws IOException {
+    final long startMillis = System.currentTimeMillis();
+    byte[] buffer = new byte[CHUNK_SIZE];
+    int length = 0;
+    long documents = 0;
+    long nextProgress = PROGRESS_INTERVAL;
+
+    while (true) {
+      final int read = in.read(buffer, length, buffer.length - length);
+      if (read < 0) {
+        break;
+      }
+      length += read;
+
+      final int end = findDocumentsEnd(buffer, length);
+      if (end == 0) {
+        if (length == buffer.length) {
+          // a single document larger than the buffer
+          buffer = Arrays.copyOf(buffer, 2 * buffer.length);
+        }
+        continue;
+      }
+
+      // the requests keep slices of the chunk, it must not be reused
+      indexer.add(new BytesArray(Arrays.copyOf(buffer, end)), indexName, "place");
+      documents += countLines(buffer, end) / 2;
+      System.arraycopy(buffer, end, buffer, 0, length - end);
+      length -= end;
+
+      if (documents >= nextProgress) {
+        final double documentsPerSecond = 1000d * documents / (System.currentTimeMillis() - startMillis);
+        log.info(String.format("loaded %s documents [%.1f/second]", MessageFormat.format("{0}", documents), documentsPerSecond));
+        nextProgress += PROGRESS_INTERVAL;
+      }
+    }
+
+    if (length > 0) {
+      // the last source line may lack its line break
+      final boolean lineBreak = buffer[length - 1] == '\n';
+      final byte[] rest = Arrays.copyOf(buffer, lineBreak ? length : length + 1);
+      rest[rest.length - 1] = '\n';
+      if (countLines(rest, rest.length) % 2 != 0) {
+        throw new IOException("json dump ends with an incomplete document");
+      }
+      indexer.add(new BytesArray(rest), indexName, "place");
+      documents += countLines(rest, rest.length) / 2;
+    }
+
+    return documents;
+  }
+
+  /**
+   * @return the position after the last complete document in the buffer, a document is an action line followed by a
+   * source line; 0 if the buffer does not contain a complete document
+   */
+  static int findDocumentsEnd(final byte[] buffer, final int length) {
+    int end = 0;
+    int lines = 0;
+    for (int i = 0; i < length; i++) {
+      if (buffer[i] == '\n' && ++lines % 2 == 0) {
+        end = i + 1;
+      }
+    }
+    return end;
+  }
+
+  private static int countLines(final byte[] buffer, final int length) {
+    int lines = 0;
+    for (int i = 0; i < length; i++) {
+      if (buffer[i] == '\n') {
+        lines++;
+      }
+    }
+    return lines;
+  }
+}
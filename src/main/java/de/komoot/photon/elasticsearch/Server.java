@@ -1,14 +1,22 @@
 package de.komoot.photon.elasticsearch;
 
 import de.komoot.photon.CommandLineArgs;
+import de.komoot.photon.query.PhotonQueryBuilder;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.SystemUtils;
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthResponse;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequest;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequestBuilder;
+import org.elasticsearch.action.search.SearchType;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.client.transport.TransportClient;
+import org.elasticsearch.cluster.health.ClusterHealthStatus;
+import org.elasticsearch.cluster.metadata.MetaData;
 import org.elasticsearch.common.settings.Settings;
 
 import org.elasticsearch.common.transport.TransportAddress;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.index.IndexNotFoundException;
 import org.elasticsearch.node.InternalSettingsPreparer;
 import org.elasticsearch.node.Node;
@@ -27,8 +35,13 @@ import java.net.URISyntaxException;
 import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -44,6 +57,18 @@ import lombok.extern.slf4j.Slf4j;
 @Slf4j
 public class Server {
 
+  /**
+   * name of the alias that searches and updates use
+   */
+  public static final String ALIAS = "photon";
+  private static final String INDEX_PREFIX = ALIAS + "-";
+  private static final DateTimeFormatter INDEX_TIMESTAMP = DateTimeFormatter.ofPattern("yyyyMMddHHmmssSSS").withZone(ZoneOffset.UTC);
+
+  private static final String REFRESH_INTERVAL = "index.refresh_interval";
+  private static final String NUMBER_OF_REPLICAS = "index.number_of_replicas";
+  private static final String TRANSLOG_DURABILITY = "index.translog.durability";
+  private static final String[] WARM_UP_QUERIES = {"berlin", "paris", "london", "new york", "main street"};
+
   private final String[] languages;
   private Node esNode;
   private Client esClient;
@@ -170,9 +195,26 @@ public class Server {
 
   }
 
+  /**
+   * deletes all photon indices and creates a new and empty index behind the photon alias
+   */
   public void recreateIndex() throws IOException {
     deleteIndex();
 
+    final String index = createIndex();
+    this.getClient().admin().indices().prepareAliases().addAlias(index, ALIAS).execute().actionGet();
+    log.info("photon alias points to new index {}", index);
+  }
+
+  /**
+   * Creates a new and empty index named after the current time. Searches and updates keep using the index behind the
+   * photon alias until the new index is activated with {@link #activateIndex(String, int, long, long)}.
+   *
+   * @return name of the new index
+   */
+  public String createIndex() throws IOException {
+    final String index = INDEX_PREFIX + INDEX_TIMESTAMP.format(Instant.now());
+
     final Client client = this.getClient();
     final InputStream mappings = Thread.currentThread().getContextClassLoader()
         .getResourceAsStream("mappings.json");
@@ -186,11 +228,131 @@ public class Server {
 
     // add all langs to the mapping
     mappingsJSON = addLangsToMapping(mappingsJSON);
-    client.admin().indices().prepareCreate("photon").setSettings(createMapFromJson(indexJson)).execute()
+    client.admin().indices().prepareCreate(index).setSettings(createMapFromJson(indexJson)).execute()
         .actionGet();
-    client.admin().indices().preparePutMapping("photon").setType("place").setSource(mappingsJSON.toString())
+    client.admin().indices().preparePutMapping(index).setType("place").setSource(mappingsJSON.toString())
+        .execute().actionGet();
+    log.info("created index {} with mapping: {}", index, mappingsJSON.toString());
+    return index;
+  }
+
+  /**
+   * switches an index to settings for a bulk import: no refreshes, no replicas and an asynchronous translog
+   */
+  public void applyImportSettings(final String index) {
+    this.getClient().admin().indices().prepareUpdateSettings(index).setSettings(Settings.builder()
+        .put(REFRESH_INTERVAL, "-1")
+        .put(NUMBER_OF_REPLICAS, 0)
+        .put(TRANSLOG_DURABILITY, "async"))
+        .execute().actionGet();
+    log.info("applied import settings to index {}", index);
+  }
+
+  /**
+   * Restores the settings an index was created with and prepares it for searching: the index is force merged,
+   * refreshed and warmed up with a few queries.
+   *
+   * @param maxSegments number of segments to merge the index into, 0 to skip the merge
+   */
+  public void finishImport(final String index, final int maxSegments) {
+    final Client client = this.getClient();
+    client.admin().indices().prepareUpdateSettings(index).setSettings(Settings.builder()
+        .putNull(REFRESH_INTERVAL)
+        .putNull(NUMBER_OF_REPLICAS)
+        .putNull(TRANSLOG_DURABILITY))
         .execute().actionGet();
-    log.info("mapping created: " + mappingsJSON.toString());
+    log.info("restored serving settings of index {}", index);
+
+    if (maxSegments > 0) {
+      final long start = System.currentTimeMillis();
+      client.admin().indices().prepareForceMerge(index).setMaxNumSegments(maxSegments).execute().actionGet();
+      log.info("force merged index {} into at most {} segments in {} s", index, maxSegments, (System.currentTimeMillis() - start) / 1000);
+    }
+
+    client.admin().indices().prepareRefresh(index).execute().actionGet();
+
+    // the first queries load the terms and doc values of the fresh segments
+    for (final String query : WARM_UP_QUERIES) {
+      client.prepareSearch(index).setSearchType(SearchType.DEFAULT)
+          .setQuery(PhotonQueryBuilder.builder(query, languages[0]).buildQuery()).setSize(10)
+          .execute().actionGet();
+    }
+    log.info("warmed up index {}", index);
+  }
+
+  /**
+   * Atomically points the photon alias to an imported index, a photon index of older versions that is not an alias is
+   * deleted in the same step. Afterwards previous indices beyond the retention are deleted, newest first kept.
+   *
+   * @param retention         number of previous indices that are kept to switch back to
+   * @param expectedDocuments number of documents the import sent to the index, -1 if unknown, e.g. after a resumed import
+   * @param failedDocuments   number of documents the import could not store in the index
+   * @throws IllegalStateException if documents failed, or the index is not healthy, empty or does not hold the expected
+   *                               number of documents, the alias is not changed then
+   */
+  public void activateIndex(final String index, final int retention, final long expectedDocuments, final long failedDocuments) {
+    if (failedDocuments > 0) {
+      throw new IllegalStateException(failedDocuments + " documents could not be stored in index " + index + ", the photon alias is not changed");
+    }
+
+    final Client client = this.getClient();
+    final ClusterHealthResponse health = client.admin().cluster().prepareHealth(index).setWaitForYellowStatus()
+        .setTimeout(TimeValue.timeValueMinutes(5)).execute().actionGet();
+    if (health.isTimedOut() || health.getStatus() == ClusterHealthStatus.RED) {
+      throw new IllegalStateException("index " + index + " is not ready to be activated, status " + health.getStatus());
+    }
+    client.admin().indices().prepareRefresh(index).execute().actionGet();
+    final long documents = client.prepareSearch(index).setSize(0).setTrackTotalHits(true).execute().actionGet().getHits().getTotalHits().value;
+    if (documents == 0) {
+      throw new IllegalStateException("index " + index + " is empty, the photon alias is not changed");
+    }
+    if (expectedDocuments >= 0 && documents != expectedDocuments) {
+      throw new IllegalStateException("index " + index + " holds " + documents + " documents instead of " + expectedDocuments
+                                      + ", the photon alias is not changed");
+    }
+
+    final MetaData metaData = getMetaData();
+    final IndicesAliasesRequestBuilder aliases = client.admin().indices().prepareAliases();
+    if (metaData.hasIndex(ALIAS)) {
+      aliases.addAliasAction(IndicesAliasesRequest.AliasActions.removeIndex().index(ALIAS));
+    }
+    for (final String previous : getIndices(metaData)) {
+      if (!previous.equals(index) && metaData.index(previous).getAliases().containsKey(ALIAS)) {
+        aliases.removeAlias(previous, ALIAS);
+      }
+    }
+    aliases.addAlias(index, ALIAS).execute().actionGet();
+    log.info("photon alias points to index {} with {} documents", index, documents);
+
+    // only indices older than the activated one, a newer index may still be imported
+    final List<String> previous = new ArrayList<>();
+    for (final String name : getIndices(metaData)) {
+      if (name.compareTo(index) < 0) {
+        previous.add(name);
+      }
+    }
+    previous.sort(Comparator.reverseOrder());
+    for (final String name : previous.subList(Math.min(Math.max(0, retention), previous.size()), previous.size())) {
+      client.admin().indices().prepareDelete(name).execute().actionGet();
+      log.info("deleted previous index {}", name);
+    }
+  }
+
+  private MetaData getMetaData() {
+    return this.getClient().admin().cluster().prepareState().setMetaData(true).execute().actionGet().getState().getMetaData();
+  }
+
+  /**
+   * @return the indices created by {@link #createIndex()}
+   */
+  private static List<String> getIndices(final MetaData metaData) {
+    final List<String> indices = new ArrayList<>();
+    for (final String name : metaData.getConcreteAllIndices()) {
+      if (name.startsWith(INDEX_PREFIX)) {
+        indices.add(name);
+      }
+    }
+    return indices;
   }
 
   private static Map<String, Object> createMapFromJson(final JSONObject indexJson) {
@@ -201,9 +363,20 @@ public class Server {
     return sourceMap;
   }
 
+  /**
+   * deletes all photon indices including the one behind the photon alias
+   */
   public void deleteIndex() {
+    final MetaData metaData = getMetaData();
+    final List<String> indices = getIndices(metaData);
+    if (metaData.hasIndex(ALIAS)) {
+      indices.add(ALIAS);
+    }
+    if (indices.isEmpty()) {
+      return;
+    }
     try {
-      this.getClient().admin().indices().prepareDelete("photon").execute().actionGet();
+      this.getClient().admin().indices().prepareDelete(indices.toArray(new String[0])).execute().actionGet();
     } catch (final IndexNotFoundException e) {
       // ignore
     }
@@ -1,51 +1,90 @@
 package de.komoot.photon.elasticsearch;
 
+import de.komoot.photon.Constants;
+import de.komoot.photon.DocSerializer;
+import de.komoot.photon.FailedDocumentsException;
 import de.komoot.photon.PhotonDoc;
-import de.komoot.photon.Utils;
 
-import org.elasticsearch.action.bulk.BulkRequestBuilder;
-import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 import lombok.extern.slf4j.Slf4j;
 
 /**
- * Updater for elasticsearch
+ * Updater for elasticsearch, the changes are sent in concurrent bulks by a {@link BulkIndexer} while they are made.
  *
  * @author felix
  */
 @Slf4j
 public class Updater implements de.komoot.photon.Updater {
 
+  /**
+   * number of changes acknowledged together, the bulks are sized by the {@link BulkSettings}
+   */
+  private static final int CHUNK_ACTIONS = 1000;
+
+  private static final TimeValue SCROLL_TIMEOUT = TimeValue.timeValueMinutes(1);
+
   private final Client esClient;
-  private final String[] languages;
-  private BulkRequestBuilder bulkRequest;
+  private final DocSerializer serializer;
+  private final BulkSettings bulkSettings;
+  private final BulkIndexer bulkIndexer;
+  private List<DocWriteRequest<?>> chunk = new ArrayList<>();
+  private final List<CompletableFuture<Void>> stored = new ArrayList<>();
+  /**
+   * place id -> ids of its new documents, for the replaced places whose old documents are not looked up yet
+   */
+  private final Map<Long, Set<String>> replaced = new HashMap<>();
+  private final Set<Long> replacedOsmIds = new HashSet<>();
 
   public Updater(final Client esClient, final String languages) {
+    this(esClient, languages, new BulkSettings());
+  }
+
+  public Updater(final Client esClient, final String languages, final BulkSettings bulkSettings) {
     this.esClient = esClient;
-    this.bulkRequest = esClient.prepareBulk();
-    this.languages = languages.split(",");
+    this.serializer = new DocSerializer(languages.split(","), bulkSettings.getContentType());
+    this.bulkSettings = bulkSettings;
+    this.bulkIndexer = new BulkIndexer(esClient, bulkSettings, "update");
   }
 
+  /**
+   * sends the pending changes and waits until they are stored
+   */
   @Override public void finish() {
-    this.updateDocuments();
+    commit();
+    this.bulkIndexer.flushAndWait();
+    log.info(this.bulkIndexer.toString());
   }
 
+  /**
+   * indexes the whole document in the bulk, which replaces an existing document without looking it up first
+   */
   @Override
   public void updateOrCreate(final PhotonDoc updatedDoc) {
-    final boolean exists = this.esClient.get(this.esClient.prepareGet("photon", "place", String.valueOf(updatedDoc.getPlaceId())).request()).actionGet().isExists();
-    if (exists) {
-      this.update(updatedDoc);
-    } else {
-      this.create(updatedDoc);
-    }
+    // a partial update would keep fields the place no longer has, e.g. a removed house number
+    this.create(updatedDoc);
   }
 
   @Override public void create(final PhotonDoc doc) {
     try {
-      this.bulkRequest.add(this.esClient.prepareIndex("photon", "place").setSource(Utils.convert(doc, this.languages)).setId(String.valueOf(doc.getPlaceId())));
+      add(this.esClient.prepareIndex(Server.ALIAS, "place").setSource(serialize(doc), this.bulkSettings.getContentType()).setId(doc.getUid()).request());
     } catch (final IOException e) {
       log.error(String.format("creation of new doc [%s] failed", doc), e);
     }
@@ -53,25 +92,110 @@ public class Updater implements de.komoot.photon.Updater {
 
   @Override public void update(final PhotonDoc doc) {
     try {
-      this.bulkRequest.add(this.esClient.prepareUpdate("photon", "place", String.valueOf(doc.getPlaceId())).setDoc(Utils.convert(doc, this.languages)));
+      add(this.esClient.prepareUpdate(Server.ALIAS, "place", doc.getUid()).setDoc(serialize(doc), this.bulkSettings.getContentType()).request());
     } catch (final IOException e) {
       log.error(String.format("update of new doc [%s] failed", doc), e);
     }
   }
 
   @Override public void delete(final Long id) {
-    this.bulkRequest.add(this.esClient.prepareDelete("photon", "place", String.valueOf(id)));
+    add(this.esClient.prepareDelete(Server.ALIAS, "place", String.valueOf(id)).request());
   }
 
-  private void updateDocuments() {
-    if (this.bulkRequest.numberOfActions() == 0) {
-      log.warn("Update empty");
+  /**
+   * Indexes the new documents of the place. Its old documents are looked up when the chunk is handed over and those
+   * that are not replaced by a new document with the same id are deleted, so the changes of a place may be spread
+   * over concurrent bulks.
+   */
+  @Override
+  public void replace(final long placeId, final long osmId, final List<PhotonDoc> docs) {
+    final Set<String> uids = new HashSet<>();
+    for (final PhotonDoc doc : docs) {
+      uids.add(doc.getUid());
+    }
+    this.replaced.put(placeId, uids);
+    this.replacedOsmIds.add(osmId);
+    for (final PhotonDoc doc : docs) {
+      create(doc);
+    }
+  }
+
+  /**
+   * adds deletes for the documents of the replaced places that have no new document, only refreshed documents are found
+   */
+  private void deleteReplacedDocuments() {
+    if (this.replaced.isEmpty()) {
       return;
     }
-    final BulkResponse bulkResponse = bulkRequest.execute().actionGet();
-    if (bulkResponse.hasFailures()) {
-      log.error("error while bulk update: " + bulkResponse.buildFailureMessage());
+    SearchResponse response = this.esClient.prepareSearch(Server.ALIAS).setQuery(QueryBuilders.termsQuery(Constants.OSM_ID, this.replacedOsmIds))
+        .setFetchSource(false).setSize(CHUNK_ACTIONS).setScroll(SCROLL_TIMEOUT).get();
+    try {
+      while (response.getHits().getHits().length > 0) {
+        for (final SearchHit hit : response.getHits().getHits()) {
+          // places of other osm types share the osm id
+          final Set<String> uids = this.replaced.get(FailedDocumentsException.getPlaceId(hit.getId()));
+          if (uids != null && !uids.contains(hit.getId())) {
+            this.chunk.add(this.esClient.prepareDelete(Server.ALIAS, "place", hit.getId()).request());
+          }
+        }
+        response = this.esClient.prepareSearchScroll(response.getScrollId()).setScroll(SCROLL_TIMEOUT).get();
+      }
+    } finally {
+      this.esClient.prepareClearScroll().addScrollId(response.getScrollId()).get();
+    }
+    this.replaced.clear();
+    this.replacedOsmIds.clear();
+  }
+
+  private BytesArray serialize(final PhotonDoc doc) throws IOException {
+    // the request keeps the source, it must not share the buffer of the serializer
+    return new BytesArray(BytesReference.toBytes(this.serializer.serialize(doc)));
+  }
+
+  private void add(final DocWriteRequest<?> request) {
+    this.chunk.add(request);
+    if (this.chunk.size() >= CHUNK_ACTIONS) {
+      handOver();
     }
-    this.bulkRequest = this.esClient.prepareBulk();
+  }
+
+  private void handOver() {
+    deleteReplacedDocuments();
+    if (!this.chunk.isEmpty()) {
+      this.stored.add(this.bulkIndexer.addAll(this.chunk));
+      this.chunk = new ArrayList<>();
+    }
+  }
+
+  /**
+   * Sends the pending changes without waiting for them.
+   *
+   * @return completes once all changes since the last commit are stored, exceptionally with a
+   * {@link FailedDocumentsException} listing the failed documents if only some of them failed
+   */
+  @Override
+  public CompletableFuture<Void> commit() {
+    handOver();
+    this.bulkIndexer.flush();
+    final List<CompletableFuture<Void>> chunks = new ArrayList<>(this.stored);
+    this.stored.clear();
+    return CompletableFuture.allOf(chunks.toArray(new CompletableFuture<?>[0])).handle((result, failure) -> {
+      if (failure == null) {
+        return null;
+      }
+      // allOf only reports the failure of one chunk, the failed documents of all chunks are needed
+      final Set<String> failedIds = new HashSet<>();
+      for (final CompletableFuture<Void> future : chunks) {
+        try {
+          future.join();
+        } catch (final CompletionException e) {
+          if (!(e.getCause() instanceof FailedDocumentsException)) {
+            throw e;
+          }
+          failedIds.addAll(((FailedDocumentsException) e.getCause()).getIds());
+        }
+      }
+      throw new CompletionException(new FailedDocumentsException("could not store " + failedIds.size() + " changes", failedIds));
+    });
   }
 }
@@ -0,0 +1,199 @@
+package de.komoot.photon.nominatim;
+
+import com.google.common.collect.Maps;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKBReader;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+/**
+ * Decodes the output of {@code COPY (SELECT ...) TO STDOUT (FORMAT binary)} row by row.
+ * <p>
+ * The columns must be selected with the types the getters expect: {@code int8}, {@code int4}, {@code float8},
+ * {@code text}, {@code hstore} and geometries as EWKB {@code bytea}. A reader is not thread safe, every partition uses
+ * its own.
+ */
+class BinaryCopyReader implements Closeable {
+
+  private static final byte[] SIGNATURE = {'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xff, '\r', '\n', 0};
+
+  private final DataInputStream in;
+  private final Map<String, Integer> columnIndex = new HashMap<>();
+  private final int[] offsets;
+  private final int[] lengths;
+  private final WKBReader wkbReader = new WKBReader();
+  private byte[] row = new byte[4096];
+
+  /**
+   * @param columns names of the selected columns in the order of the select
+   */
+  BinaryCopyReader(final InputStream in, final List<String> columns) throws IOException {
+    this.in = new DataInputStream(new BufferedInputStream(in, 65536));
+    for (int i = 0; i < columns.size(); i++) {
+      columnIndex.put(columns.get(i), i);
+    }
+    this.offsets = new int[columns.size()];
+    this.lengths = new int[columns.size()];
+    readHeader();
+  }
+
+  private void readHeader() throws IOException {
+    final byte[] signature = new byte[SIGNATURE.length];
+    this.in.readFully(signature);
+    if (!Arrays.equals(signature, SIGNATURE)) {
+      throw new IOException("not a binary copy stream");
+    }
+    this.in.readInt(); // flags
+    final int extensionLength = this.in.readInt();
+    this.in.skipBytes(extensionLength);
+  }
+
+  /**
+   * reads the next row, the getters return the values of this row
+   *
+   * @return false if all rows are read
+   */
+  boolean next() throws IOException {
+    final short fieldCount;
+    try {
+      fieldCount = in.readShort();
+    } catch (final EOFException e) {
+      return false;
+    }
+    if (fieldCount == -1) {
+      return false;
+    }
+    if (fieldCount != offsets.length) {
+      throw new IOException("expected " + offsets.length + " columns in copy row but got " + fieldCount);
+    }
+
+    int position = 0;
+    for (int i = 0; i < fieldCount; i++) {
+      final int length = in.readInt();
+      offsets[i] = position;
+      lengths[i] = length;
+      if (length > 0) {
+        if (position + length > row.length) {
+          row = Arrays.copyOf(row, Math.max(2 * row.length, position + length));
+        }
+        in.readFully(row, position, length);
+        position += length;
+      }
+    }
+    return true;
+  }
+
+  boolean isNull(final String column) {
+    return lengths[index(column)] < 0;
+  }
+
+  /**
+   * @return the value of an int8 column, 0 if null
+   */
+  long getLong(final String column) {
+    final int i = index(column);
+    return lengths[i] < 0 ? 0 : readLong(offsets[i]);
+  }
+
+  /**
+   * @return the value of an int4 column, 0 if null
+   */
+  int getInt(final String column) {
+    final int i = index(column);
+    return lengths[i] < 0 ? 0 : readInt(offsets[i]);
+  }
+
+  /**
+   * @return the value of a float8 column, 0 if null
+   */
+  double getDouble(final String column) {
+    final int i = index(column);
+    return lengths[i] < 0 ? 0d : Double.longBitsToDouble(readLong(offsets[i]));
+  }
+
+  @Nullable
+  String getString(final String column) {
+    final int i = index(column);
+    return lengths[i] < 0 ? null : new String(row, offsets[i], lengths[i], StandardCharsets.UTF_8);
+  }
+
+  /**
+   * @return the entries of an hstore column, an empty map if null
+   */
+  Map<String, String> getMap(final String column) {
+    final int i = index(column);
+    if (lengths[i] < 0) {
+      return Maps.newHashMapWithExpectedSize(0);
+    }
+
+    int position = offsets[i];
+    final int count = readInt(position);
+    position += 4;
+    final Map<String, String> map = Maps.newHashMapWithExpectedSize(count);
+    for (int entry = 0; entry < count; entry++) {
+      final int keyLength = readInt(position);
+      final String key = new String(row, position + 4, keyLength, StandardCharsets.UTF_8);
+      position += 4 + keyLength;
+      final int valueLength = readInt(position);
+      position += 4;
+      if (valueLength < 0) {
+        map.put(key, null);
+      } else {
+        map.put(key, new String(row, position, valueLength, StandardCharsets.UTF_8));
+        position += valueLength;
+      }
+    }
+    return map;
+  }
+
+  /**
+   * @return the geometry of an EWKB bytea column or null, callers cast it to the type of the column
+   */
+  @Nullable
+  Geometry getGeometry(final String column) throws IOException {
+    final int i = index(column);
+    if (lengths[i] < 0) {
+      return null;
+    }
+    try {
+      return wkbReader.read(Arrays.copyOfRange(row, offsets[i], offsets[i] + lengths[i]));
+    } catch (final ParseException e) {
+      throw new IOException("invalid geometry in column " + column, e);
+    }
+  }
+
+  private int index(final String column) {
+    final Integer i = columnIndex.get(column);
+    if (i == null) {
+      throw new IllegalArgumentException("unknown column " + column);
+    }
+    return i;
+  }
+
+  private int readInt(final int position) {
+    return (row[position] & 0xff) << 24 | (row[position + 1] & 0xff) << 16 | (row[position + 2] & 0xff) << 8 | row[position + 3] & 0xff;
+  }
+
+  private long readLong(final int position) {
+    return (long) readInt(position) << 32 | readInt(position + 4) & 0xffffffffL;
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+}
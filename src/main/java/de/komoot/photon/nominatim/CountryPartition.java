@@ -0,0 +1,66 @@
+package de.komoot.photon.nominatim;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import lombok.Getter;
+
+/**
+ * The places of one country, read independently of all other countries during a country parallel import.
+ */
+@Getter
+class CountryPartition {
+
+  /**
+   * name of the partition with the places of all countries not listed, including the places without country
+   */
+  static final String OTHER = "other";
+
+  private final String name;
+  private final String conditions;
+  private long expectedRows;
+
+  private CountryPartition(final String name, final String conditions) {
+    this.name = name;
+    this.conditions = conditions;
+  }
+
+  void setExpectedRows(final long expectedRows) {
+    this.expectedRows = expectedRows;
+  }
+
+  /**
+   * @param countryCodes country codes of two letters, empty codes are skipped
+   * @param others       also read the places of all other countries and the places without country
+   * @return one partition per country, the partition of the other places last
+   */
+  static List<CountryPartition> create(final List<String> countryCodes, final boolean others) {
+    final List<CountryPartition> partitions = new ArrayList<>();
+    final List<String> codes = new ArrayList<>();
+    for (final String countryCode : countryCodes) {
+      final String code = NominatimConnector.convertCountryCode(countryCode);
+      if (!code.isEmpty() && !codes.contains(code)) {
+        codes.add(code);
+        partitions.add(new CountryPartition(countryCode.toLowerCase(), "AND country_code = " + code));
+      }
+    }
+    if (others) {
+      partitions.add(new CountryPartition(OTHER, codes.isEmpty() ? ""
+                                                 : "AND (country_code IS NULL OR country_code NOT IN (" + String.join(",", codes) + "))"));
+    }
+    return partitions;
+  }
+
+  /**
+   * orders the partitions by their expected rows, so the largest countries do not start last and hold up the import
+   */
+  static void sortLargestFirst(final List<CountryPartition> partitions) {
+    partitions.sort(Comparator.comparingLong(CountryPartition::getExpectedRows).reversed());
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+}
@@ -0,0 +1,139 @@
+package de.komoot.photon.nominatim;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Durable record of how far a nominatim import got, so that an interrupted import can be resumed.
+ * <p>
+ * For every table the checkpoint stores the sector ranges of the partitions and, per partition, the highest geometry
+ * sector whose documents are all stored. The file is replaced atomically on every {@link #save()}.
+ */
+@Slf4j
+public class ImportCheckpoint {
+
+  private final File file;
+  private final Properties properties = new Properties();
+  private final Map<String, SectorProgress> trackedPartitions = new HashMap<>();
+
+  private ImportCheckpoint(final File file) {
+    this.file = file;
+  }
+
+  /**
+   * @return an empty checkpoint that replaces an existing checkpoint file on the first {@link #save()}
+   */
+  public static ImportCheckpoint create(final File file) {
+    return new ImportCheckpoint(file);
+  }
+
+  /**
+   * @return the checkpoint stored in the file
+   */
+  public static ImportCheckpoint load(final File file) throws IOException {
+    final ImportCheckpoint checkpoint = new ImportCheckpoint(file);
+    try (InputStream in = new FileInputStream(file)) {
+      checkpoint.properties.load(in);
+    }
+    return checkpoint;
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  public synchronized String getParameter(final String name) {
+    return properties.getProperty("parameter." + name);
+  }
+
+  /**
+   * stores a parameter of the import, e.g. to check that a resumed import uses the same settings
+   */
+  public synchronized void setParameter(final String name, final String value) {
+    properties.setProperty("parameter." + name, value);
+  }
+
+  /**
+   * @return the partitions of the table as stored in the checkpoint or null if the table was not started yet
+   */
+  synchronized List<SectorRange> getRanges(final String table) {
+    final String count = properties.getProperty(table + ".partitions");
+    if (count == null) {
+      return null;
+    }
+
+    final List<SectorRange> ranges = new ArrayList<>();
+    for (int i = 0; i < Integer.parseInt(count); i++) {
+      ranges.add(new SectorRange(Long.parseLong(properties.getProperty(table + "." + i + ".from")),
+                                 Long.parseLong(properties.getProperty(table + "." + i + ".to"))));
+    }
+    return ranges;
+  }
+
+  synchronized void setRanges(final String table, final List<SectorRange> ranges) {
+    properties.setProperty(table + ".partitions", String.valueOf(ranges.size()));
+    for (int i = 0; i < ranges.size(); i++) {
+      properties.setProperty(table + "." + i + ".from", String.valueOf(ranges.get(i).getFrom()));
+      properties.setProperty(table + "." + i + ".to", String.valueOf(ranges.get(i).getTo()));
+    }
+  }
+
+  /**
+   * @return the highest sector of the partition that is completely imported, {@link SectorProgress#NO_SECTOR} if none
+   */
+  synchronized long getCompletedSector(final String table, final int partition) {
+    final String sector = properties.getProperty(table + "." + partition + ".completed");
+    return sector == null ? SectorProgress.NO_SECTOR : Long.parseLong(sector);
+  }
+
+  /**
+   * the completed sector of the partition is taken from the progress on every {@link #save()}
+   */
+  synchronized void track(final String table, final int partition, final SectorProgress progress) {
+    trackedPartitions.put(table + "." + partition, progress);
+  }
+
+  /**
+   * Writes the checkpoint. Must only be called when all documents of the batches marked as done in the tracked
+   * progresses are stored.
+   */
+  public synchronized void save() throws IOException {
+    for (final Map.Entry<String, SectorProgress> partition : trackedPartitions.entrySet()) {
+      final String key = partition.getKey() + ".completed";
+      final long completed = partition.getValue().getCompletedSector();
+      final String previous = properties.getProperty(key);
+      if (completed != SectorProgress.NO_SECTOR && (previous == null || Long.parseLong(previous) < completed)) {
+        properties.setProperty(key, String.valueOf(completed));
+      }
+    }
+
+    final File temporary = new File(file.getPath() + ".tmp");
+    try (FileOutputStream out = new FileOutputStream(temporary)) {
+      properties.store(out, "photon import checkpoint");
+      out.getFD().sync();
+    }
+    Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    log.debug("saved import checkpoint {}", file);
+  }
+
+  /**
+   * removes the checkpoint file once the import is complete
+   */
+  public synchronized void delete() {
+    if (file.exists() && !file.delete()) {
+      log.warn("could not delete import checkpoint {}", file);
+    }
+  }
+}
@@ -1,6 +1,8 @@
 package de.komoot.photon.nominatim;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterators;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 import com.neovisionaries.i18n.CountryCode;
 import com.vividsolutions.jts.geom.Envelope;
@@ -9,42 +11,73 @@ import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.geom.Point;
 import com.vividsolutions.jts.linearref.LengthIndexedLine;
 
+import de.komoot.photon.ImportMetrics;
 import de.komoot.photon.Importer;
 import de.komoot.photon.PhotonDoc;
 import de.komoot.photon.nominatim.model.AddressRow;
+import de.komoot.photon.utils.HandOffQueue;
+import de.komoot.photon.utils.LongLruCache;
 
 import org.apache.commons.dbcp.BasicDataSource;
+import org.apache.commons.dbcp.DelegatingConnection;
 import org.postgis.jts.JtsWrapper;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.PGCopyInputStream;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementSetter;
 import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.core.RowMapper;
 
+import java.io.IOException;
+import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 
 /**
  * A Nominatim result consisting of the basic PhotonDoc for the object
- * and a map of attached house numbers together with their respective positions.
+ * and the house numbers attached to it.
+ * <p>
+ * The documents for the single house numbers are created one at a time while iterating over
+ * {@link #iterateDocsWithHousenumber()}. They share all data but house number and centroid with the base document, so
+ * even an interpolation line with a thousand house numbers needs no more memory than the documents the importer
+ * currently holds.
  */
 class NominatimResult {
 
   private final PhotonDoc doc;
-  private Map<String, Point> housenumbers;
+  private String[] housenumbers; // located at the centroid of the doc
+  private Interpolation interpolation;
 
   public NominatimResult(final PhotonDoc baseobj) {
     doc = baseobj;
-    housenumbers = null;
   }
 
   PhotonDoc getBaseDoc() {
@@ -52,23 +85,52 @@ class NominatimResult {
   }
 
   boolean isUsefulForIndex() {
-    return housenumbers != null && !housenumbers.isEmpty() || doc.isUsefulForIndex();
+    return hasHousenumbers() || doc.isUsefulForIndex();
   }
 
-  List<PhotonDoc> getDocsWithHousenumber() {
-    if (housenumbers == null || housenumbers.isEmpty()) {
-      return ImmutableList.of(doc);
-    }
+  private boolean hasHousenumbers() {
+    return housenumbers != null && housenumbers.length > 0 || interpolation != null && interpolation.count > 0;
+  }
 
-    final List<PhotonDoc> results = new ArrayList<PhotonDoc>(housenumbers.size());
-    for (final Map.Entry<String, Point> e : housenumbers.entrySet()) {
-      final PhotonDoc copy = new PhotonDoc(doc);
-      copy.setHouseNumber(e.getKey());
-      copy.setCentroid(e.getValue());
-      results.add(copy);
+  /**
+   * @return the base document if there are no house numbers, otherwise a document per house number
+   */
+  Iterator<PhotonDoc> iterateDocsWithHousenumber() {
+    if (!hasHousenumbers()) {
+      return Iterators.singletonIterator(doc);
     }
 
-    return results;
+    final int stringCount = housenumbers == null ? 0 : housenumbers.length;
+    final int count = stringCount + (interpolation == null ? 0 : interpolation.count);
+    return new Iterator<PhotonDoc>() {
+      private int next;
+
+      @Override
+      public boolean hasNext() {
+        return next < count;
+      }
+
+      @Override
+      public PhotonDoc next() {
+        if (next >= count) {
+          throw new NoSuchElementException();
+        }
+
+        final PhotonDoc copy = new PhotonDoc(doc);
+        if (next < stringCount) {
+          copy.setHouseNumber(housenumbers[next]);
+          copy.setCentroid(doc.getCentroid());
+        } else {
+          interpolation.apply(next - stringCount, copy);
+        }
+        next++;
+        return copy;
+      }
+    };
+  }
+
+  List<PhotonDoc> getDocsWithHousenumber() {
+    return ImmutableList.copyOf(iterateDocsWithHousenumber());
   }
 
   /**
@@ -85,17 +147,17 @@ class NominatimResult {
       return;
     }
 
-    if (housenumbers == null) {
-      housenumbers = new HashMap<String, Point>();
+    final Set<String> numbers = new LinkedHashSet<>();
+    if (housenumbers != null) {
+      Collections.addAll(numbers, housenumbers);
     }
-
-    final String[] parts = str.split(";");
-    for (final String part : parts) {
+    for (final String part : str.split(";")) {
       final String h = part.trim();
       if (!h.isEmpty()) {
-        housenumbers.put(h, doc.getCentroid());
+        numbers.add(h);
       }
     }
+    housenumbers = numbers.toArray(new String[0]);
   }
 
   public void addHouseNumbersFromInterpolation(final long first, final long last, final String interpoltype, final Geometry geom) {
@@ -103,15 +165,6 @@ class NominatimResult {
       return;
     }
 
-    if (housenumbers == null) {
-      housenumbers = new HashMap<String, Point>();
-    }
-
-    final LengthIndexedLine line = new LengthIndexedLine(geom);
-    final double si = line.getStartIndex();
-    final double ei = line.getEndIndex();
-    final double lstep = (ei - si) / (double) (last - first);
-
     // leave out first and last, they have a distinct OSM node that is already indexed
     long step = 2;
     long num = 1;
@@ -127,9 +180,38 @@ class NominatimResult {
       step = 1;
     }
 
-    final GeometryFactory fac = geom.getFactory();
-    for (; first + num < last; num += step) {
-      housenumbers.put(String.valueOf(num + first), fac.createPoint(line.extractPoint(si + lstep * num)));
+    interpolation = new Interpolation(first, last, num, step, geom);
+  }
+
+  /**
+   * House numbers evenly spread between the two ends of a line, the positions are computed when a document is created.
+   */
+  private static class Interpolation {
+
+    private final long first;
+    private final long firstNum;
+    private final long step;
+    private final int count;
+    private final LengthIndexedLine line;
+    private final GeometryFactory factory;
+    private final double startIndex;
+    private final double lstep;
+
+    Interpolation(final long first, final long last, final long firstNum, final long step, final Geometry geom) {
+      this.first = first;
+      this.firstNum = firstNum;
+      this.step = step;
+      this.count = (int) Math.max(0, (last - first - firstNum + step - 1) / step);
+      this.line = new LengthIndexedLine(geom);
+      this.factory = geom.getFactory();
+      this.startIndex = line.getStartIndex();
+      this.lstep = (line.getEndIndex() - startIndex) / (double) (last - first);
+    }
+
+    void apply(final int index, final PhotonDoc copy) {
+      final long num = firstNum + index * step;
+      copy.setHouseNumber(String.valueOf(num + first));
+      copy.setCentroid(factory.createPoint(line.extractPoint(startIndex + lstep * num)));
     }
   }
 }
@@ -142,10 +224,25 @@ class NominatimResult {
 @Slf4j
 public class NominatimConnector {
 
-  private static final PhotonDoc FINAL_DOCUMENT = new PhotonDoc(0, null, 0, null, null, null, null, null, null, 0, 0, null, null, 0, 0);
+  private static final long CHECKPOINT_INTERVAL_MILLIS = 5 * 60 * 1000;
+  private static final Pattern PLAN_ROWS = Pattern.compile("rows=(\\d+)");
+  private final BasicDataSource dataSource;
   private final JdbcTemplate template;
-  private final String selectColsPlaceX = "place_id, osm_type, osm_id, class, type, name, housenumber, postcode, extratags, ST_Envelope(geometry) AS bbox, parent_place_id, linked_place_id, rank_search, importance, country_code, centroid";
-  private final String selectColsOsmline = "place_id, osm_id, parent_place_id, startnumber, endnumber, interpolationtype, postcode, country_code, linegeo";
+  private final String selectColsPlaceX = "place_id, osm_type, osm_id, class, type, name, housenumber, postcode, extratags, ST_Envelope(geometry) AS bbox, parent_place_id, linked_place_id, rank_search, importance, country_code, centroid, geometry_sector";
+  private final String selectColsOsmline = "place_id, osm_id, parent_place_id, startnumber, endnumber, interpolationtype, postcode, country_code, linegeo, geometry_sector";
+  /**
+   * columns of placex and location_property_osmline for binary copy, cast to the types {@link BinaryCopyReader} decodes
+   */
+  private final List<String> copyColsPlaceX = ImmutableList.of(
+      "place_id::int8 AS place_id", "osm_type::text AS osm_type", "osm_id::int8 AS osm_id", "class::text AS class", "type::text AS type",
+      "name AS name", "housenumber::text AS housenumber", "postcode::text AS postcode", "extratags AS extratags",
+      "ST_AsEWKB(ST_Envelope(geometry)) AS bbox", "parent_place_id::int8 AS parent_place_id", "linked_place_id::int8 AS linked_place_id",
+      "rank_search::int4 AS rank_search", "importance::float8 AS importance", "country_code::text AS country_code",
+      "ST_AsEWKB(centroid) AS centroid", "geometry_sector::int8 AS geometry_sector");
+  private final List<String> copyColsOsmline = ImmutableList.of(
+      "place_id::int8 AS place_id", "osm_id::int8 AS osm_id", "parent_place_id::int8 AS parent_place_id", "startnumber::int8 AS startnumber",
+      "endnumber::int8 AS endnumber", "interpolationtype::text AS interpolationtype", "postcode::text AS postcode",
+      "country_code::text AS country_code", "ST_AsEWKB(linegeo) AS linegeo", "geometry_sector::int8 AS geometry_sector");
   private final String selectColsAddress = "p.place_id, p.osm_type, p.osm_id, p.name, p.class, p.type, p.rank_address, p.admin_level, p.postcode, p.extratags->'place' as place";
   private Map<String, Map<String, String>> countryNames;
   /**
@@ -226,7 +323,117 @@ public class NominatimConnector {
       return result;
     }
   };
+  /**
+   * same as {@link #osmlineRowMapper} for rows read with binary copy
+   */
+  private final CopyRowMapper osmlineCopyMapper = new CopyRowMapper() {
+    @Override
+    public NominatimResult mapRow(final BinaryCopyReader row) throws IOException {
+      final Geometry geometry = row.getGeometry("linegeo");
+
+      final PhotonDoc doc = new PhotonDoc(
+          row.getLong("place_id"),
+          "W",
+          row.getLong("osm_id"),
+          "place",
+          "house_number",
+          Collections.emptyMap(), // no name
+          null,
+          Collections.emptyMap(), // no extratags
+          null,
+          row.getLong("parent_place_id"),
+          0d, // importance
+          CountryCode.getByCode(row.getString("country_code")),
+          null, // centroid
+          0,
+          30
+      );
+      doc.setPostcode(row.getString("postcode"));
+      doc.setCountry(getCountryNames(row.getString("country_code")));
+
+      final NominatimResult result = new NominatimResult(doc);
+      result.addHouseNumbersFromInterpolation(row.getLong("startnumber"), row.getLong("endnumber"), row.getString("interpolationtype"), geometry);
+
+      return result;
+    }
+  };
+  /**
+   * same as {@link #placeRowMapper} for rows read with binary copy
+   */
+  private final CopyRowMapper placeCopyMapper = new CopyRowMapper() {
+    @Override
+    public NominatimResult mapRow(final BinaryCopyReader row) throws IOException {
+      double importance = row.getDouble("importance");
+      if (row.isNull("importance")) {
+        // https://github.com/komoot/photon/issues/12
+        importance = 0.75 - row.getInt("rank_search") / 40d;
+      }
+
+      final Geometry geometry = row.getGeometry("bbox");
+      final Envelope envelope = geometry != null ? geometry.getEnvelopeInternal() : null;
+
+      final PhotonDoc doc = new PhotonDoc(
+          row.getLong("place_id"),
+          row.getString("osm_type"),
+          row.getLong("osm_id"),
+          row.getString("class"),
+          row.getString("type"),
+          row.getMap("name"),
+          null,
+          row.getMap("extratags"),
+          envelope,
+          row.getLong("parent_place_id"),
+          importance,
+          CountryCode.getByCode(row.getString("country_code")),
+          (Point) row.getGeometry("centroid"),
+          row.getLong("linked_place_id"),
+          row.getInt("rank_search")
+      );
+
+      doc.setPostcode(row.getString("postcode"));
+      doc.setCountry(getCountryNames(row.getString("country_code")));
+
+      final NominatimResult result = new NominatimResult(doc);
+      result.addHousenumbersFromString(row.getString("housenumber"));
+
+      return result;
+    }
+  };
+  /**
+   * maps a placex row that is part of the address of another place
+   */
+  private final RowMapper<AddressRow> addressRowMapper = new RowMapper<AddressRow>() {
+    @Override
+    public AddressRow mapRow(final ResultSet rs, final int rowNum) throws SQLException {
+      Integer adminLevel = rs.getInt("admin_level");
+      if (rs.wasNull()) {
+        adminLevel = null;
+      }
+
+      return new AddressRow(
+          adminLevel,
+          rs.getLong("place_id"),
+          DBUtils.getMap(rs, "name"),
+          rs.getString("class"),
+          rs.getString("type"),
+          rs.getInt("rank_address"),
+          rs.getString("postcode"),
+          rs.getString("place"),
+          rs.getString("osm_type"),
+          rs.getLong("osm_id")
+      );
+    }
+  };
   private Importer importer;
+  private int importThreads = 1;
+  private int importPartitions = 1;
+  private int countryConcurrency;
+  private int importBatchSize = 1;
+  private int addressCacheSize = 100000;
+  private long documentQueueBytes = 32L * 1024 * 1024;
+  private ImportCheckpoint checkpoint;
+  private boolean importCopy;
+  private ImportMetrics metrics = new ImportMetrics();
 
   /**
    * @param host     database host
@@ -236,13 +443,15 @@ public class NominatimConnector {
    * @param password db username's password
    */
   public NominatimConnector(final String host, final int port, final String database, final String username, final String password) {
-    final BasicDataSource dataSource = new BasicDataSource();
+    dataSource = new BasicDataSource();
 
     dataSource.setUrl(String.format("jdbc:postgres_jts://%s:%d/%s", host, port, database));
     dataSource.setUsername(username);
     dataSource.setPassword(password);
     dataSource.setDriverClassName(JtsWrapper.class.getCanonicalName());
     dataSource.setDefaultAutoCommit(false);
+    // needed to reach the copy API of the postgres connection
+    dataSource.setAccessToUnderlyingConnectionAllowed(true);
 
     template = new JdbcTemplate(dataSource);
     template.setFetchSize(100000);
@@ -266,7 +475,7 @@ public class NominatimConnector {
     return countryCodeStr;
   }
 
-  private Map<String, String> getCountryNames(final String countrycode) {
+  private synchronized Map<String, String> getCountryNames(final String countrycode) {
     if (countryNames == null) {
       countryNames = new HashMap<String, Map<String, String>>();
       template.query("SELECT country_code, name FROM country_name;", new RowCallbackHandler() {
@@ -281,10 +490,83 @@ public class NominatimConnector {
     return countryNames.get(countrycode);
   }
 
+  /**
+   * @param maxConnections maximum number of database connections, e.g. for parallel calls of {@link #getByPlaceId(long)}.
+   *                       {@link #readEntireDatabase(String...)} sets the number it needs itself.
+   */
+  public void setMaxConnections(final int maxConnections) {
+    dataSource.setMaxActive(Math.max(1, maxConnections));
+  }
+
   public void setImporter(final Importer importer) {
     this.importer = importer;
   }
 
+  /**
+   * @param importThreads number of workers that complete documents with their address hierarchy during {@link #readEntireDatabase(String...)}
+   */
+  public void setImportThreads(final int importThreads) {
+    this.importThreads = Math.max(1, importThreads);
+  }
+
+  /**
+   * @param importPartitions number of geometry sector ranges that are read in parallel during {@link #readEntireDatabase(String...)}
+   */
+  public void setImportPartitions(final int importPartitions) {
+    this.importPartitions = Math.max(1, importPartitions);
+  }
+
+  /**
+   * @param countryConcurrency number of countries that are read in parallel during {@link #readEntireDatabase(String...)}, 0 to read
+   *                           sector ranges as set with {@link #setImportPartitions(int)} instead
+   */
+  public void setCountryConcurrency(final int countryConcurrency) {
+    this.countryConcurrency = Math.max(0, countryConcurrency);
+  }
+
+  /**
+   * @param importBatchSize number of documents whose address rows are fetched with a single query during {@link #readEntireDatabase(String...)}
+   */
+  public void setImportBatchSize(final int importBatchSize) {
+    this.importBatchSize = Math.max(1, importBatchSize);
+  }
+
+  /**
+   * @param addressCacheSize maximum number of address rows that are kept in memory during {@link #readEntireDatabase(String...)}
+   */
+  public void setAddressCacheSize(final int addressCacheSize) {
+    this.addressCacheSize = Math.max(1, addressCacheSize);
+  }
+
+  /**
+   * @param documentQueueBytes estimated size of the completed documents that may wait for the importer during {@link #readEntireDatabase(String...)}
+   */
+  public void setDocumentQueueBytes(final long documentQueueBytes) {
+    this.documentQueueBytes = Math.max(1, documentQueueBytes);
+  }
+
+  /**
+   * @param checkpoint progress of {@link #readEntireDatabase(String...)} is saved to the checkpoint regularly, partitions
+   *                   that are already imported according to the checkpoint are skipped. May be null.
+   */
+  public void setCheckpoint(final ImportCheckpoint checkpoint) {
+    this.checkpoint = checkpoint;
+  }
+
+  /**
+   * @param importCopy read placex and location_property_osmline with binary copy instead of a JDBC result set during {@link #readEntireDatabase(String...)}
+   */
+  public void setImportCopy(final boolean importCopy) {
+    this.importCopy = importCopy;
+  }
+
+  /**
+   * @param metrics counters of the stages of {@link #readEntireDatabase(String...)}
+   */
+  public void setMetrics(final ImportMetrics metrics) {
+    this.metrics = metrics;
+  }
+
   public List<PhotonDoc> getByPlaceId(final long placeId) {
     final NominatimResult result = template.queryForObject("SELECT " + selectColsPlaceX + " FROM placex WHERE place_id = ?", new Object[] {placeId}, placeRowMapper);
     completePlace(result.getBaseDoc());
@@ -298,141 +580,383 @@ public class NominatimConnector {
   }
 
   List<AddressRow> getAddresses(final PhotonDoc doc) {
-    final RowMapper<AddressRow> rowMapper = new RowMapper<AddressRow>() {
-      @Override
-      public AddressRow mapRow(final ResultSet rs, final int rowNum) throws SQLException {
-        Integer adminLevel = rs.getInt("admin_level");
-        if (rs.wasNull()) {
-          adminLevel = null;
+    final boolean isPoi = isPoi(doc);
+    final long placeId = getAddressPlaceId(doc);
+
+    final List<AddressRow> terms = template.query("SELECT " + selectColsAddress + " FROM placex p, place_addressline pa WHERE p.place_id = pa.address_place_id and pa.place_id = ? and pa.cached_rank_address > 4 and pa.address_place_id != ? and pa.isaddress order by rank_address desc,fromarea desc,distance asc,rank_search desc", new Object[] {placeId, placeId}, addressRowMapper);
+
+    if (isPoi) {
+      // need to add the term for the parent place ID itself
+      terms.addAll(0, template.query("SELECT " + selectColsAddress + " FROM placex p WHERE p.place_id = ?", new Object[] {placeId}, addressRowMapper));
+    }
+
+    return terms;
+  }
+
+  /**
+   * Fetches the address rows of several documents with one query per table instead of one per document.
+   * Address rows found in the cache are reused, missing ones are read from placex and added to the cache.
+   *
+   * @return the address rows of each document in the same order as {@link #getAddresses(PhotonDoc)} would return them
+   */
+  List<List<AddressRow>> getAddresses(final List<PhotonDoc> docs, final LongLruCache<AddressRow> cache) {
+    final Set<Long> placeIds = new HashSet<>();
+    for (final PhotonDoc doc : docs) {
+      placeIds.add(getAddressPlaceId(doc));
+    }
+
+    // only the ids of the address places are read here, the places themselves are mostly shared between documents
+    final Map<Long, List<Long>> addressIdsByPlace = new HashMap<>();
+    template.query("SELECT pa.place_id, pa.address_place_id FROM placex p, place_addressline pa WHERE p.place_id = pa.address_place_id and pa.place_id = ANY(?) and pa.cached_rank_address > 4 and pa.address_place_id != pa.place_id and pa.isaddress order by pa.place_id,rank_address desc,fromarea desc,distance asc,rank_search desc",
+                   placeIdArraySetter(placeIds), new RowCallbackHandler() {
+          @Override
+          public void processRow(final ResultSet rs) throws SQLException {
+            addressIdsByPlace.computeIfAbsent(rs.getLong("place_id"), k -> new ArrayList<>()).add(rs.getLong("address_place_id"));
+          }
+        });
+
+    final Map<Long, AddressRow> rows = new HashMap<>();
+    final Set<Long> missingIds = new HashSet<>();
+    for (final PhotonDoc doc : docs) {
+      if (isPoi(doc)) {
+        lookupAddressRow(doc.getParentPlaceId(), cache, rows, missingIds);
+      }
+    }
+    for (final List<Long> addressIds : addressIdsByPlace.values()) {
+      for (final Long addressId : addressIds) {
+        lookupAddressRow(addressId, cache, rows, missingIds);
+      }
+    }
+
+    if (!missingIds.isEmpty()) {
+      template.query("SELECT " + selectColsAddress + " FROM placex p WHERE p.place_id = ANY(?)", placeIdArraySetter(missingIds), new RowCallbackHandler() {
+        @Override
+        public void processRow(final ResultSet rs) throws SQLException {
+          final AddressRow row = addressRowMapper.mapRow(rs, 0);
+          rows.put(row.getPlaceId(), row);
+          cache.put(row.getPlaceId(), row);
         }
+      });
+    }
 
-        return new AddressRow(
-            adminLevel,
-            rs.getLong("place_id"),
-            DBUtils.getMap(rs, "name"),
-            rs.getString("class"),
-            rs.getString("type"),
-            rs.getInt("rank_address"),
-            rs.getString("postcode"),
-            rs.getString("place"),
-            rs.getString("osm_type"),
-            rs.getLong("osm_id")
-        );
+    final List<List<AddressRow>> result = new ArrayList<>(docs.size());
+    for (final PhotonDoc doc : docs) {
+      final List<AddressRow> terms = new ArrayList<>();
+      if (isPoi(doc) && rows.containsKey(doc.getParentPlaceId())) {
+        // need to add the term for the parent place ID itself
+        terms.add(rows.get(doc.getParentPlaceId()));
       }
-    };
+      for (final Long addressId : addressIdsByPlace.getOrDefault(getAddressPlaceId(doc), Collections.emptyList())) {
+        final AddressRow row = rows.get(addressId);
+        if (row != null) {
+          terms.add(row);
+        }
+      }
+      result.add(terms);
+    }
 
-    final boolean isPoi = doc.getRankSearch() > 28;
-    final long placeId = isPoi ? doc.getParentPlaceId() : doc.getPlaceId();
+    return result;
+  }
 
-    final List<AddressRow> terms = template.query("SELECT " + selectColsAddress + " FROM placex p, place_addressline pa WHERE p.place_id = pa.address_place_id and pa.place_id = ? and pa.cached_rank_address > 4 and pa.address_place_id != ? and pa.isaddress order by rank_address desc,fromarea desc,distance asc,rank_search desc", new Object[] {placeId, placeId}, rowMapper);
+  private static void lookupAddressRow(final long placeId, final LongLruCache<AddressRow> cache, final Map<Long, AddressRow> rows, final Set<Long> missingIds) {
+    if (rows.containsKey(placeId) || missingIds.contains(placeId)) {
+      return;
+    }
 
-    if (isPoi) {
-      // need to add the term for the parent place ID itself
-      terms.addAll(0, template.query("SELECT " + selectColsAddress + " FROM placex p WHERE p.place_id = ?", new Object[] {placeId}, rowMapper));
+    final AddressRow row = cache.get(placeId);
+    if (row == null) {
+      missingIds.add(placeId);
+    } else {
+      rows.put(placeId, row);
     }
+  }
 
-    return terms;
+  private static boolean isPoi(final PhotonDoc doc) {
+    return doc.getRankSearch() > 28;
+  }
+
+  /**
+   * @return the place whose address lines make up the address of the document
+   */
+  private static long getAddressPlaceId(final PhotonDoc doc) {
+    return isPoi(doc) ? doc.getParentPlaceId() : doc.getPlaceId();
+  }
+
+  private static PreparedStatementSetter placeIdArraySetter(final Collection<Long> placeIds) {
+    return ps -> ps.setArray(1, ps.getConnection().createArrayOf("int8", placeIds.toArray()));
   }
 
   /**
    * parses every relevant row in placex, creates a corresponding document and calls the {@link #importer} for every document
    */
   public void readEntireDatabase(final String... countryCodes) {
-    final int progressInterval = 50000;
-    final long startMillis = System.currentTimeMillis();
-
-    String andCountryCodeStr = "", whereCountryCodeStr = "";
+    String andCountryCodeStr = "";
     final String countryCodeStr = convertCountryCode(countryCodes);
     if (!countryCodeStr.isEmpty()) {
       andCountryCodeStr = "AND country_code in (" + countryCodeStr + ")";
-      whereCountryCodeStr = "WHERE country_code in (" + countryCodeStr + ")";
     }
 
-    log.info("start importing documents from nominatim (" + (countryCodeStr.isEmpty() ? "global" : countryCodeStr) + ")");
+    final int readerThreads = countryConcurrency > 0 ? countryConcurrency : importPartitions;
+    log.info("start importing documents from nominatim (" + (countryCodeStr.isEmpty() ? "global" : countryCodeStr) + ") using "
+             + (countryConcurrency > 0 ? countryConcurrency + " countries at a time, " : importPartitions + " partitions, ")
+             + importThreads + " import threads and batches of " + importBatchSize + (importCopy ? ", reading with binary copy" : ""));
 
-    final BlockingQueue<PhotonDoc> documents = new LinkedBlockingDeque<>(20);
+    // one connection per reader, one per worker and a spare one for other queries
+    dataSource.setMaxActive(readerThreads + importThreads + 1);
+    // every reader keeps a fetch buffer of its own
+    template.setFetchSize(Math.max(10000, 100000 / readerThreads));
+
+    final HandOffQueue<DocumentChunk> documents = new HandOffQueue<>(documentQueueBytes, DocumentChunk::estimateSize);
     final Thread importThread = new Thread(new ImportThread(documents));
     importThread.start();
-    final AtomicLong counter = new AtomicLong();
-    template.query("SELECT " + selectColsPlaceX +
-                   " FROM placex " +
-                   " WHERE linked_place_id IS NULL AND centroid IS NOT NULL " + andCountryCodeStr +
-                   " ORDER BY geometry_sector; ", new RowCallbackHandler() {
-      @Override
-      public void processRow(final ResultSet rs) throws SQLException {
-        // turns a placex row into a photon document that gathers all de-normalised information
+    final LongLruCache<AddressRow> addressCache = new LongLruCache<>(addressCacheSize);
+    final CompletionWorkers workers = new CompletionWorkers(importThreads, addressCache, documents);
+    final ExecutorService readers = Executors.newFixedThreadPool(readerThreads);
+    metrics.setQueues(workers::getQueueDepth, documents::size, documents::getBytes);
+    boolean success = false;
+    try {
+      final String placeConditions = "AND linked_place_id IS NULL AND centroid IS NOT NULL ";
+      if (countryConcurrency > 0) {
+        readCountries(readers, workers, placeConditions, countryCodes);
+      } else {
+        metrics.setExpectedRows(estimateRows("placex", placeConditions + andCountryCodeStr) + estimateRows("location_property_osmline", andCountryCodeStr));
+        log.info("expecting about " + MessageFormat.format("{0}", metrics.getExpectedRows()) + " rows");
+
+        readPartitions(readers, workers, "placex", selectColsPlaceX, copyColsPlaceX, placeConditions + andCountryCodeStr, placeRowMapper, placeCopyMapper);
+        readPartitions(readers, workers, "location_property_osmline", selectColsOsmline, copyColsOsmline, andCountryCodeStr,
+                       osmlineRowMapper, osmlineCopyMapper);
+      }
 
-        final NominatimResult docs = placeRowMapper.mapRow(rs, 0);
+      workers.finish();
+      success = true;
+    } finally {
+      readers.shutdownNow();
+      workers.shutdownNow();
+      // the import thread passes the remaining documents to the importer and finishes it
+      documents.complete();
+      Uninterruptibles.joinUninterruptibly(importThread);
+    }
+    if (documents.getFailure() != null) {
+      throw new IllegalStateException("could not import documents", documents.getFailure());
+    }
+    log.info(String.format("finished import of %s photon documents.", MessageFormat.format("{0}", workers.getCount())));
+    log.info("address cache: " + addressCache);
+    log.info("document queue: " + documents);
+    log.info("import status: " + metrics);
+    if (success && checkpoint != null) {
+      checkpoint.delete();
+    }
+  }
 
-        if (!docs.isUsefulForIndex()) {
-          return; // do not import document
-        }
+  /**
+   * reads all rows of a table split into ranges of geometry sectors, each range is read in parallel over its own connection
+   */
+  private void readPartitions(final ExecutorService readers, final CompletionWorkers workers, final String table, final String columns,
+                              final List<String> copyColumns, final String conditions, final RowMapper<NominatimResult> rowMapper,
+                              final CopyRowMapper copyMapper) {
+    final List<SectorRange> ranges = getRanges(table, table, importPartitions);
+    log.info(String.format("reading %s in %d partitions", table, ranges.size()));
+
+    final List<Future<?>> partitions = new ArrayList<>(ranges.size());
+    for (int i = 0; i < ranges.size(); i++) {
+      final int partition = i;
+      partitions.add(readers.submit(() -> readRange(workers, table, table, ranges, partition, columns, copyColumns, conditions, rowMapper, copyMapper, null)));
+    }
+    awaitReads(partitions, table);
+  }
 
-        // finalize document by taking into account the higher level placex rows assigned to this row
-        completePlace(docs.getBaseDoc());
+  /**
+   * Reads the places country by country, each country over its own connection. The largest countries are started
+   * first, so that a large country started late does not leave the other connections idle at the end of the import.
+   */
+  private void readCountries(final ExecutorService readers, final CompletionWorkers workers, final String placeConditions, final String... countryCodes) {
+    final List<String> codes = new ArrayList<>();
+    for (final String countryCode : countryCodes) {
+      if (!countryCode.isEmpty()) {
+        codes.add(countryCode);
+      }
+    }
+    // the planet is split into the known countries and the remaining places
+    final boolean planet = codes.isEmpty();
+    if (planet) {
+      codes.addAll(template.queryForList("SELECT country_code FROM country_name ORDER BY country_code", String.class));
+    }
+    final List<CountryPartition> countries = CountryPartition.create(codes, planet);
 
-        for (final PhotonDoc doc : docs.getDocsWithHousenumber()) {
-          while (true) {
-            try {
-              documents.put(doc);
-            } catch (final InterruptedException e) {
-              log.warn("Thread interrupted while placing document in queue.");
-              continue;
-            }
-            break;
-          }
-          if (counter.incrementAndGet() % progressInterval == 0) {
-            final double documentsPerSecond = 1000d * counter.longValue() / (System.currentTimeMillis() - startMillis);
-            log.info(String.format("imported %s documents [%.1f/second]", MessageFormat.format("{0}", counter.longValue()), documentsPerSecond));
-          }
-        }
+    long expectedRows = 0;
+    for (final CountryPartition country : countries) {
+      country.setExpectedRows(estimateRows("placex", placeConditions + country.getConditions())
+                              + estimateRows("location_property_osmline", country.getConditions()));
+      expectedRows += country.getExpectedRows();
+    }
+    CountryPartition.sortLargestFirst(countries);
+    metrics.setExpectedRows(expectedRows);
+    log.info(String.format("reading %d countries, %d at a time, expecting about %s rows, largest first: %s", countries.size(), countryConcurrency,
+                           MessageFormat.format("{0}", expectedRows), countries.subList(0, Math.min(10, countries.size()))));
+
+    final AtomicInteger countriesDone = new AtomicInteger();
+    final List<Future<?>> reads = new ArrayList<>(countries.size());
+    for (final CountryPartition country : countries) {
+      final ImportMetrics.CountryProgress progress = metrics.addCountry(country.getName(), country.getExpectedRows());
+      // the pool starts the countries in the order they are submitted
+      reads.add(readers.submit(() -> {
+        progress.start();
+        readCountryTable(workers, "placex", country, selectColsPlaceX, copyColsPlaceX, placeConditions + country.getConditions(),
+                         placeRowMapper, placeCopyMapper, progress);
+        readCountryTable(workers, "location_property_osmline", country, selectColsOsmline, copyColsOsmline, country.getConditions(),
+                         osmlineRowMapper, osmlineCopyMapper, progress);
+        progress.finish();
+        log.info(String.format("country %s: read %s of about %s rows in %.1f minutes, %d of %d countries done", country.getName(),
+                               MessageFormat.format("{0}", progress.getRowsRead()), MessageFormat.format("{0}", country.getExpectedRows()),
+                               progress.getMillis() / 60000d, countriesDone.incrementAndGet(), countries.size()));
+      }));
+    }
+    awaitReads(reads, "countries");
+  }
+
+  /**
+   * reads the rows of a table of one country in the current thread, the checkpoint tracks every country on its own
+   */
+  private void readCountryTable(final CompletionWorkers workers, final String table, final CountryPartition country, final String columns,
+                                final List<String> copyColumns, final String conditions, final RowMapper<NominatimResult> rowMapper,
+                                final CopyRowMapper copyMapper, final ImportMetrics.CountryProgress progress) {
+    final String key = table + "@" + country.getName();
+    readRange(workers, key, table, getRanges(key, table, 1), 0, columns, copyColumns, conditions, rowMapper, copyMapper, progress);
+  }
+
+  /**
+   * @param key checkpoint key of the ranges
+   * @return the ranges stored in the checkpoint or the table split into the number of partitions
+   */
+  private List<SectorRange> getRanges(final String key, final String table, final int partitions) {
+    List<SectorRange> ranges = checkpoint == null ? null : checkpoint.getRanges(key);
+    if (ranges == null) {
+      ranges = partitions > 1 ? SectorRange.split(getSectorBounds(table), partitions) : SectorRange.split(Collections.emptyList(), 1);
+      if (checkpoint != null) {
+        checkpoint.setRanges(key, ranges);
       }
-    });
+    }
+    return ranges;
+  }
 
-    template.query("SELECT place_id, osm_id, parent_place_id, startnumber, endnumber, interpolationtype, postcode, country_code, linegeo " +
-                   " FROM location_property_osmline " +
-                   whereCountryCodeStr +
-                   " ORDER BY geometry_sector; ", new RowCallbackHandler() {
-      @Override
-      public void processRow(final ResultSet rs) throws SQLException {
-        final NominatimResult docs = osmlineRowMapper.mapRow(rs, 0);
+  /**
+   * reads one range of geometry sectors in the current thread, starting after the sectors completed according to the checkpoint
+   *
+   * @param key     checkpoint key of the ranges
+   * @param country progress of the country the rows belong to, may be null
+   */
+  private void readRange(final CompletionWorkers workers, final String key, final String table, final List<SectorRange> ranges, final int partition,
+                         final String columns, final List<String> copyColumns, final String conditions, final RowMapper<NominatimResult> rowMapper,
+                         final CopyRowMapper copyMapper, final ImportMetrics.CountryProgress country) {
+    final SectorRange range = ranges.get(partition);
+    final String name = String.format("%s %d/%d %s", key, partition + 1, ranges.size(), range);
+    final long completedSector = checkpoint == null ? SectorProgress.NO_SECTOR : checkpoint.getCompletedSector(key, partition);
+    if (completedSector == SectorProgress.ALL_SECTORS) {
+      log.info(name + ": already imported");
+      return;
+    }
+    final long from = completedSector == SectorProgress.NO_SECTOR ? range.getFrom() : Math.max(range.getFrom(), completedSector + 1);
+    if (from != range.getFrom()) {
+      log.info(String.format("%s: resuming at sector %d", name, from));
+    }
 
-        if (!docs.isUsefulForIndex()) {
-          return; // do not import document
+    final SectorProgress progress = new SectorProgress();
+    if (checkpoint != null) {
+      checkpoint.track(key, partition, progress);
+    }
+    final PartitionReader reader = new PartitionReader(name, rowMapper, workers, progress, country);
+    // the rows without sector are read by the last range, they are sorted after all sectors
+    final String sectors = range.getCondition(from, partition == ranges.size() - 1);
+    try {
+      if (importCopy) {
+        // copy does not take parameters, the sectors are plain numbers
+        copy("SELECT " + String.join(", ", copyColumns) + " FROM " + table
+             + " WHERE " + sectors + " " + conditions
+             + " ORDER BY geometry_sector", copyColumns, copyMapper, reader);
+      } else {
+        template.query("SELECT " + columns + " FROM " + table
+                       + " WHERE " + sectors + " " + conditions
+                       + " ORDER BY geometry_sector; ", reader);
+      }
+      reader.finish();
+    } catch (final RuntimeException e) {
+      // stop the other readers as well
+      workers.abort(e);
+      throw e;
+    }
+  }
+
+  private static void awaitReads(final List<Future<?>> reads, final String what) {
+    for (final Future<?> read : reads) {
+      try {
+        read.get();
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("interrupted while reading " + what, e);
+      } catch (final ExecutionException e) {
+        if (e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) e.getCause();
         }
+        throw new IllegalStateException("could not read " + what, e.getCause());
+      }
+    }
+  }
 
-        // finalize document by taking into account the higher level placex rows assigned to this row
-        completePlace(docs.getBaseDoc());
+  /**
+   * streams the result of the query with binary copy and passes every row to the reader
+   *
+   * @param columns the selected columns, each named with AS
+   */
+  private void copy(final String query, final List<String> columns, final CopyRowMapper copyMapper, final PartitionReader reader) {
+    final List<String> names = new ArrayList<>(columns.size());
+    for (final String column : columns) {
+      names.add(column.substring(column.lastIndexOf(" AS ") + 4));
+    }
 
-        for (final PhotonDoc doc : docs.getDocsWithHousenumber()) {
-          while (true) {
-            try {
-              documents.put(doc);
-            } catch (final InterruptedException e) {
-              log.warn("Thread interrupted while placing document in queue.");
-              continue;
-            }
-            break;
-          }
-          if (counter.incrementAndGet() % progressInterval == 0) {
-            final double documentsPerSecond = 1000d * counter.longValue() / (System.currentTimeMillis() - startMillis);
-            log.info(String.format("imported %s documents [%.1f/second]", MessageFormat.format("{0}", counter.longValue()), documentsPerSecond));
-          }
+    try (Connection connection = dataSource.getConnection()) {
+      final PGConnection pgConnection = (PGConnection) ((DelegatingConnection) connection).getInnermostDelegate();
+      try (BinaryCopyReader rows = new BinaryCopyReader(new PGCopyInputStream(pgConnection, "COPY (" + query + ") TO STDOUT (FORMAT binary)"), names)) {
+        while (rows.next()) {
+          reader.add(copyMapper.mapRow(rows), rows.isNull("geometry_sector") ? reader.sector : rows.getLong("geometry_sector"));
         }
       }
-    });
+    } catch (final SQLException | IOException e) {
+      throw new IllegalStateException("could not copy rows of " + reader.name, e);
+    }
+  }
 
-    while (true) {
-      try {
-        documents.put(FINAL_DOCUMENT);
-        importThread.join();
-      } catch (final InterruptedException e) {
-        log.warn("Thread interrupted while placing document in queue.");
-        continue;
+  /**
+   * @return number of rows of the table matching the conditions as estimated by the query planner
+   */
+  private long estimateRows(final String table, final String conditions) {
+    final List<String> plan = template.queryForList("EXPLAIN SELECT 1 FROM " + table + " WHERE true " + conditions, String.class);
+    final Matcher matcher = PLAN_ROWS.matcher(plan.isEmpty() ? "" : plan.get(0));
+    return matcher.find() ? Long.parseLong(matcher.group(1)) : 0;
+  }
+
+  /**
+   * @return geometry sectors dividing the table into parts of roughly equal size, taken from the postgres statistics if available
+   */
+  private List<Long> getSectorBounds(final String table) {
+    final List<String> histograms = template.queryForList("SELECT histogram_bounds::text FROM pg_stats WHERE tablename = ? AND attname = 'geometry_sector'",
+                                                          String.class, table);
+    final List<Long> bounds = new ArrayList<>();
+    if (!histograms.isEmpty() && histograms.get(0) != null) {
+      for (final String bound : histograms.get(0).replaceAll("[{}]", "").split(",")) {
+        bounds.add(Long.parseLong(bound.trim()));
       }
-      break;
+      return bounds;
     }
-    log.info(String.format("finished import of %s photon documents.", MessageFormat.format("{0}", counter.longValue())));
+
+    log.info("no statistics for geometry_sector of " + table + ", splitting sectors evenly");
+    template.query("SELECT min(geometry_sector) AS min_sector, max(geometry_sector) AS max_sector FROM " + table, new RowCallbackHandler() {
+      @Override
+      public void processRow(final ResultSet rs) throws SQLException {
+        bounds.add(rs.getLong("min_sector"));
+        bounds.add(rs.getLong("max_sector"));
+      }
+    });
+    return bounds;
   }
 
   /**
@@ -455,7 +979,10 @@ public class NominatimConnector {
    * querying nominatim's address hierarchy to complete photon doc with missing data (like country, city, street, ...)
    */
   private void completePlace(final PhotonDoc doc) {
-    final List<AddressRow> addresses = getAddresses(doc);
+    completePlace(doc, getAddresses(doc));
+  }
+
+  private void completePlace(final PhotonDoc doc, final List<AddressRow> addresses) {
     for (final AddressRow address : addresses) {
 
       if (address.hasPostcode() && doc.getPostcode() == null) {
@@ -505,29 +1032,413 @@ public class NominatimConnector {
     }
   }
 
-  private class ImportThread implements Runnable {
+  /**
+   * Reads the rows of one partition and hands them over to the completion workers in batches.
+   */
+  private class PartitionReader implements RowCallbackHandler {
+
+    private static final int PROGRESS_INTERVAL = 500000;
+
+    private final String name;
+    private final RowMapper<NominatimResult> rowMapper;
+    private final CompletionWorkers workers;
+    private final SectorProgress progress;
+    private final ImportMetrics.CountryProgress country;
+    private final long startMillis = System.currentTimeMillis();
+    private List<NominatimResult> batch = new ArrayList<>(importBatchSize);
+    private long batchSector;
+    private long sector;
+    private long rows;
+
+    /**
+     * @param country progress of the country the rows belong to, may be null
+     */
+    PartitionReader(final String name, final RowMapper<NominatimResult> rowMapper, final CompletionWorkers workers, final SectorProgress progress,
+                    final ImportMetrics.CountryProgress country) {
+      this.name = name;
+      this.rowMapper = rowMapper;
+      this.workers = workers;
+      this.progress = progress;
+      this.country = country;
+    }
+
+    @Override
+    public void processRow(final ResultSet rs) throws SQLException {
+      // turns a row into a photon document that gathers all de-normalised information
+      final long rowSector = rs.getLong("geometry_sector");
+      // a row without sector counts as part of the last sector read
+      add(rowMapper.mapRow(rs, 0), rs.wasNull() ? sector : rowSector);
+    }
+
+    void add(final NominatimResult docs, final long sector) {
+      this.sector = sector;
+      metrics.rowRead();
+      if (country != null) {
+        country.rowRead();
+      }
 
-    private final BlockingQueue<PhotonDoc> documents;
+      if (docs.isUsefulForIndex()) {
+        if (batch.isEmpty()) {
+          batchSector = sector;
+        }
+        batch.add(docs);
+        if (batch.size() >= importBatchSize) {
+          flush();
+        }
+      }
 
-    public ImportThread(final BlockingQueue<PhotonDoc> documents) {
+      if (++rows % PROGRESS_INTERVAL == 0) {
+        final double rowsPerSecond = 1000d * rows / (System.currentTimeMillis() - startMillis);
+        log.info(String.format("%s: read %s rows [%.1f/second], at sector %d", name, MessageFormat.format("{0}", rows), rowsPerSecond, sector));
+      }
+    }
+
+    void finish() {
+      flush();
+      progress.finish();
+      log.info(String.format("%s: finished reading %s rows in %.1f minutes", name, MessageFormat.format("{0}", rows),
+                             (System.currentTimeMillis() - startMillis) / 60000d));
+    }
+
+    private void flush() {
+      if (!batch.isEmpty()) {
+        final long batchNumber = progress.begin(batchSector, sector);
+        workers.submit(batch, () -> progress.done(batchNumber));
+        batch = new ArrayList<>(importBatchSize);
+      }
+    }
+  }
+
+  /**
+   * Pool of workers that complete documents with their address hierarchy and hand them over to the import thread.
+   * Documents are completed in batches, each worker borrows its own connection from the pool for the address queries.
+   */
+  class CompletionWorkers {
+
+    private static final int PROGRESS_INTERVAL = 50000;
+    private static final int STATUS_INTERVAL = 1000000;
+    private static final int CHUNK_DOCUMENTS = 1000;
+    /**
+     * upper bound of the estimated size of a chunk, a chunk must be small against the budget of the document queue
+     */
+    private static final long CHUNK_BYTES = 1024 * 1024;
+
+    private final LongLruCache<AddressRow> addressCache;
+    private final HandOffQueue<DocumentChunk> documents;
+    private final long chunkBytes;
+    private final ThreadPoolExecutor pool;
+    private final AtomicLong counter = new AtomicLong();
+    private final long startMillis = System.currentTimeMillis();
+    private volatile RuntimeException failure;
+
+    CompletionWorkers(final int threads, final LongLruCache<AddressRow> addressCache, final HandOffQueue<DocumentChunk> documents) {
+      this.addressCache = addressCache;
+      this.documents = documents;
+      // several chunks per worker fit into the queue
+      this.chunkBytes = Math.max(1, Math.min(CHUNK_BYTES, documents.getMaxBytes() / (4 * threads)));
+      // when all workers are busy and the work queue is full the reading thread completes the batch itself
+      this.pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(2 * threads),
+                                         new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * @param onImported called once the importer acknowledged all documents of the batch
+     */
+    void submit(final List<NominatimResult> batch, final Runnable onImported) {
+      checkFailure();
+      pool.execute(() -> complete(batch, onImported));
+    }
+
+    /**
+     * stops handing over documents, all following calls to {@link #submit(List, Runnable)} fail
+     */
+    void abort(final RuntimeException cause) {
+      if (failure == null) {
+        failure = cause;
+      }
+    }
+
+    private void complete(final List<NominatimResult> results, final Runnable onImported) {
+      if (failure != null) {
+        return;
+      }
+
+      try {
+        // finalize documents by taking into account the higher level placex rows assigned to the rows
+        final List<PhotonDoc> baseDocs = new ArrayList<>(results.size());
+        for (final NominatimResult result : results) {
+          baseDocs.add(result.getBaseDoc());
+        }
+        final long start = System.nanoTime();
+        final List<List<AddressRow>> addresses = getAddresses(baseDocs, addressCache);
+        for (int i = 0; i < baseDocs.size(); i++) {
+          completePlace(baseDocs.get(i), addresses.get(i));
+        }
+        metrics.documentsCompleted(baseDocs.size(), System.nanoTime() - start);
+
+        // house numbers are expanded while handing over, a batch with many of them is split into several chunks
+        final Batch batch = new Batch(onImported);
+        List<PhotonDoc> chunk = new ArrayList<>();
+        long chunkSize = 0;
+        for (final NominatimResult result : results) {
+          // the documents of the house numbers share all names with the base document
+          final long docSize = DocumentChunk.estimateSize(result.getBaseDoc());
+          final Iterator<PhotonDoc> docs = result.iterateDocsWithHousenumber();
+          while (docs.hasNext()) {
+            chunk.add(docs.next());
+            chunkSize += docSize;
+            if (chunk.size() == CHUNK_DOCUMENTS || chunkSize >= chunkBytes) {
+              documents.put(new DocumentChunk(batch, chunk, chunkSize, false));
+              chunk = new ArrayList<>();
+              chunkSize = 0;
+            }
+            final long count = counter.incrementAndGet();
+            if (count % PROGRESS_INTERVAL == 0) {
+              final double documentsPerSecond = 1000d * count / (System.currentTimeMillis() - startMillis);
+              log.info(String.format("imported %s documents [%.1f/second]", MessageFormat.format("{0}", count), documentsPerSecond));
+            }
+            if (count % STATUS_INTERVAL == 0) {
+              log.info("import status: " + metrics);
+            }
+          }
+        }
+        documents.put(new DocumentChunk(batch, chunk, chunkSize, true));
+      } catch (final InterruptedException e) {
+        // the import is shut down
+        Thread.currentThread().interrupt();
+        abort(new IllegalStateException("interrupted while handing over documents", e));
+      } catch (final RuntimeException e) {
+        log.error("could not complete batch starting with place {}", results.get(0).getBaseDoc().getPlaceId(), e);
+        abort(e);
+      }
+    }
+
+    /**
+     * waits until all submitted documents are handed over to the import thread
+     */
+    void finish() {
+      pool.shutdown();
+      try {
+        while (!pool.awaitTermination(1, TimeUnit.MINUTES)) {
+          log.info("waiting for address completion of remaining documents");
+        }
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("interrupted while waiting for address completion", e);
+      }
+      checkFailure();
+    }
+
+    void shutdownNow() {
+      pool.shutdownNow();
+    }
+
+    long getCount() {
+      return counter.longValue();
+    }
+
+    /**
+     * @return number of batches waiting for a worker
+     */
+    int getQueueDepth() {
+      return pool.getQueue().size();
+    }
+
+    private void checkFailure() {
+      if (failure != null) {
+        throw failure;
+      }
+    }
+  }
+
+  /**
+   * Maps a row read with binary copy, the counterpart of a {@link RowMapper}.
+   */
+  private interface CopyRowMapper {
+
+    NominatimResult mapRow(BinaryCopyReader row) throws IOException;
+  }
+
+  /**
+   * A batch of completed documents, acknowledged once the importer acknowledged all its chunks.
+   */
+  static class Batch {
+
+    private final Runnable onImported;
+    /**
+     * only used by the import thread
+     */
+    private final List<CompletableFuture<Void>> stored = new ArrayList<>();
+
+    Batch(final Runnable onImported) {
+      this.onImported = onImported;
+    }
+  }
+
+  /**
+   * Documents handed over from a completion worker to the import thread.
+   */
+  @Getter
+  static class DocumentChunk {
+
+    private final Batch batch;
+    private final List<PhotonDoc> docs;
+    private final long size;
+    private final boolean last;
+
+    /**
+     * @param size estimated size of the documents
+     * @param last the chunk is the last of its batch
+     */
+    DocumentChunk(final Batch batch, final List<PhotonDoc> docs, final long size, final boolean last) {
+      this.batch = batch;
+      this.docs = docs;
+      this.size = size;
+      this.last = last;
+    }
+
+    /**
+     * @return rough size of the serialized documents, the budget of the document queue is based on it
+     */
+    long estimateSize() {
+      return size;
+    }
+
+    /**
+     * @return rough size of the serialized document
+     */
+    static long estimateSize(final PhotonDoc doc) {
+      long size = 256 + estimateSize(doc.getName()) + estimateSize(doc.getStreet()) + estimateSize(doc.getCity())
+                  + estimateSize(doc.getState()) + estimateSize(doc.getCountry());
+      if (doc.getContext() != null) {
+        for (final Map<String, String> context : doc.getContext()) {
+          size += estimateSize(context);
+        }
+      }
+      return size;
+    }
+
+    private static long estimateSize(final Map<String, String> names) {
+      if (names == null) {
+        return 0;
+      }
+      long size = 0;
+      for (final Map.Entry<String, String> name : names.entrySet()) {
+        size += 8 + name.getKey().length() + (name.getValue() == null ? 0 : name.getValue().length());
+      }
+      return size;
+    }
+  }
+
+  class ImportThread implements Runnable {
+
+    private static final long ACKNOWLEDGEMENT_TIMEOUT_MILLIS = 60 * 1000;
+
+    private final HandOffQueue<DocumentChunk> documents;
+    private long lastCheckpointMillis = System.currentTimeMillis();
+    /**
+     * batches handed to the importer that are not acknowledged yet, guarded by this
+     */
+    private int batchesInFlight;
+
+    public ImportThread(final HandOffQueue<DocumentChunk> documents) {
       this.documents = documents;
     }
 
     @Override
     public void run() {
-      while (true) {
-        final PhotonDoc doc;
-        try {
-          doc = documents.take();
-          if (doc == FINAL_DOCUMENT) {
-            break;
+      try {
+        DocumentChunk chunk;
+        while ((chunk = documents.take()) != null) {
+          chunk.batch.stored.add(importer.addAll(chunk.docs));
+          if (!chunk.last) {
+            continue;
           }
-          importer.add(doc);
+
+          // the import thread continues with the next chunks while the batch is in flight
+          final Runnable onImported = chunk.batch.onImported;
+          batchStarted();
+          CompletableFuture.allOf(chunk.batch.stored.toArray(new CompletableFuture<?>[0])).whenComplete((result, failure) -> {
+            try {
+              if (failure == null) {
+                onImported.run();
+              } else {
+                // the checkpoint does not advance past the batch, the import fails and can be resumed
+                final Throwable cause = failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+                log.error("batch was not stored completely, the import fails: {}", cause.getMessage());
+                documents.fail(cause);
+              }
+            } finally {
+              batchDone();
+            }
+          });
+          // sinks that do not acknowledge documents have stored them once they are flushed
+          if (checkpoint != null && System.currentTimeMillis() - lastCheckpointMillis > CHECKPOINT_INTERVAL_MILLIS) {
+            importer.flush();
+            saveCheckpoint();
+          }
+        }
+      } catch (final InterruptedException e) {
+        documents.fail(e);
+      } catch (final RuntimeException e) {
+        log.error("could not import document", e);
+        // the workers stop handing over documents
+        documents.fail(e);
+      } finally {
+        try {
+          importer.finish();
+          // failed batches must be recorded before the import counts as done
+          awaitBatches();
+        } catch (final RuntimeException e) {
+          log.error("could not finish import", e);
+          documents.fail(e);
+        }
+        if (checkpoint != null) {
+          saveCheckpoint();
+        }
+      }
+    }
+
+    private synchronized void batchStarted() {
+      batchesInFlight++;
+    }
+
+    private synchronized void batchDone() {
+      batchesInFlight--;
+      notifyAll();
+    }
+
+    /**
+     * waits for the acknowledgements of the batches in flight, the importer is finished so they are due
+     */
+    private synchronized void awaitBatches() {
+      final long deadline = System.currentTimeMillis() + ACKNOWLEDGEMENT_TIMEOUT_MILLIS;
+      boolean interrupted = false;
+      while (batchesInFlight > 0 && System.currentTimeMillis() < deadline) {
+        try {
+          wait(Math.max(1, deadline - System.currentTimeMillis()));
         } catch (final InterruptedException e) {
-          log.info("interrupted exception ", e);
+          interrupted = true;
         }
       }
-      importer.finish();
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+      if (batchesInFlight > 0) {
+        throw new IllegalStateException(batchesInFlight + " batches were not acknowledged by the importer");
+      }
+    }
+
+    /**
+     * all documents passed to the importer must be stored when saving a checkpoint
+     */
+    private void saveCheckpoint() {
+      try {
+        checkpoint.save();
+      } catch (final IOException e) {
+        log.error("could not save import checkpoint {}", checkpoint.getFile(), e);
+      }
+      lastCheckpointMillis = System.currentTimeMillis();
     }
   }
 }
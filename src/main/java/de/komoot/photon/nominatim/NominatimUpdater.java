@@ -1,5 +1,6 @@
 package de.komoot.photon.nominatim;
 
+import de.komoot.photon.FailedDocumentsException;
 import de.komoot.photon.PhotonDoc;
 import de.komoot.photon.Updater;
 import de.komoot.photon.nominatim.model.UpdateRow;
@@ -11,11 +12,28 @@ import org.slf4j.LoggerFactory;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.RowMapper;
 
+import java.io.IOException;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 /**
  * Nominatim update logic
@@ -31,13 +49,25 @@ public class NominatimUpdater {
   private static final int UPDATE = 2;
   private static final int DELETE = 100;
 
+  private static final String PLACEX = "placex";
+  private static final String OSMLINE = "location_property_osmline";
+
+  /**
+   * number of places whose changes are sent to the updater before their status is acknowledged
+   */
+  private static final int ACKNOWLEDGE_PLACES = 1000;
+
   private static final int MIN_RANK = 1;
   private static final int MAX_RANK = 30;
 
+  private final BasicDataSource dataSource;
   private final JdbcTemplate template;
   private final NominatimConnector exporter;
+  private int updateThreads = 1;
+  private final UpdateProgress progress = new UpdateProgress(MAX_RANK);
 
   private Updater updater;
+  private UpdateJournal journal;
 
   /**
    * when updating lockout other threads
@@ -54,7 +84,7 @@ public class NominatimUpdater {
    * @param password Nominatim database password
    */
   public NominatimUpdater(final String host, final int port, final String database, final String username, final String password) {
-    final BasicDataSource dataSource = new BasicDataSource();
+    dataSource = new BasicDataSource();
 
     dataSource.setUrl(String.format("jdbc:postgresql://%s:%d/%s", host, port, database));
     dataSource.setUsername(username);
@@ -70,102 +100,257 @@ public class NominatimUpdater {
     this.updater = updater;
   }
 
-  public void update() {
+  /**
+   * @param journal records the claimed places, so the places of a crashed update are updated again, none if null
+   */
+  public void setJournal(final UpdateJournal journal) {
+    this.journal = journal;
+  }
+
+  /**
+   * @param updateThreads number of geometry sectors of a rank whose places are read in parallel, each over its own database connection
+   */
+  public void setUpdateThreads(final int updateThreads) {
+    this.updateThreads = Math.max(1, updateThreads);
+    // one connection per thread and a spare one for the sector lists and the acknowledgements
+    dataSource.setMaxActive(this.updateThreads + 1);
+    exporter.setMaxConnections(this.updateThreads);
+  }
+
+  public UpdateProgress getProgress() {
+    return progress;
+  }
+
+  /**
+   * @return number of places and interpolations waiting for an update
+   */
+  public long countPendingPlaces() {
+    return template.queryForObject("select (select count(*) from placex where indexed_status > 0)"
+                                   + " + (select count(*) from location_property_osmline where indexed_status > 0);", Long.class);
+  }
+
+  /**
+   * @return true if all changes were stored, false if some changes are left for the next update or an update is already running
+   */
+  public boolean update() {
     if (updateLock.tryLock()) {
+      final ExecutorService readers = Executors.newFixedThreadPool(updateThreads);
+      final Acknowledgements acknowledgements = new Acknowledgements();
+      progress.start();
       try {
-        int updatedPlaces = 0;
-        int deletedPlaces = 0;
+        replayJournal();
+        final Statistics statistics = new Statistics();
         for (int rank = MIN_RANK; rank <= MAX_RANK; rank++) {
           LOGGER.info(String.format("Starting rank %d", rank));
+          final int sectorRank = rank;
+          final List<Callable<List<PlaceChange>>> sectors = new ArrayList<>();
+          long places = 0;
           for (final Map<String, Object> sector : getIndexSectors(rank)) {
-            for (final UpdateRow place : getIndexSectorPlaces(rank, (Integer) sector.get("geometry_sector"))) {
-              final long placeId = place.getPlaceId();
-              template.update("update placex set indexed_status = 0 where place_id = ?;", placeId);
-
-              Integer indexedStatus = place.getIndexdStatus();
-              if (indexedStatus == DELETE || indexedStatus == UPDATE && rank == MAX_RANK) {
-                updater.delete(placeId);
-                if (indexedStatus == DELETE) {
-                  deletedPlaces++;
-                  continue;
-                }
-                indexedStatus = CREATE; // always create
-              }
-              updatedPlaces++;
-
-              final List<PhotonDoc> updatedDocs = exporter.getByPlaceId(place.getPlaceId());
-              boolean wasUseful = false;
-              for (final PhotonDoc updatedDoc : updatedDocs) {
-                switch (indexedStatus) {
-                  case CREATE:
-                    if (updatedDoc.isUsefulForIndex()) {
-                      updater.create(updatedDoc);
-                    }
-                    break;
-                  case UPDATE:
-                    if (updatedDoc.isUsefulForIndex()) {
-                      updater.updateOrCreate(updatedDoc);
-                      wasUseful = true;
-                    }
-                    break;
-                  default:
-                    LOGGER.error(String.format("Unknown index status %d", indexedStatus));
-                    break;
-                }
-              }
-              if (indexedStatus == UPDATE && !wasUseful) {
-                // only true when rank != 30
-                // if no documents for the place id exist this will likely cause moaning
-                updater.delete(placeId);
-                updatedPlaces--;
-              }
-            }
+            final Integer geometrySector = (Integer) sector.get("geometry_sector");
+            places += ((Number) sector.get("count")).longValue();
+            sectors.add(() -> readChanges(acknowledgements.claim(PLACEX, getIndexSectorPlaces(sectorRank, geometrySector)), false));
           }
+          progress.startRank(rank, places);
+          // the places of a rank are all passed to the updater before the next rank is read
+          readInOrder(readers, sectors, changes -> {
+            int documents = 0;
+            for (final PlaceChange change : changes) {
+              acknowledgements.add(PLACEX, change.placeId, change.indexedStatus);
+              updatePlace(change, statistics);
+              documents += change.docs.size();
+            }
+            progress.placesDone(sectorRank, changes.size(), documents);
+            acknowledgements.commitIfFull();
+          });
         }
 
-        LOGGER.info(String.format("%d places created or updated, %d deleted", updatedPlaces, deletedPlaces));
+        LOGGER.info(String.format("%d places created or updated, %d deleted", statistics.updatedPlaces, statistics.deletedPlaces));
 
         // update documents generated from address interpolations
         // .isUsefulForIndex() should always return true for documents
         // created from interpolations so no need to check them
         LOGGER.info("Starting interpolations");
-        int updatedInterpolations = 0;
-        int deletedInterpolations = 0;
-        int interpolationDocuments = 0;
+        final List<Callable<List<PlaceChange>>> sectors = new ArrayList<>();
+        long interpolations = 0;
         for (final Map<String, Object> sector : template.queryForList(
             "select geometry_sector,count(*) from location_property_osmline where indexed_status > 0 group by geometry_sector order by geometry_sector;")) {
-          for (final UpdateRow place : getIndexSectorInterpolations((Integer) sector.get("geometry_sector"))) {
-            final long placeId = place.getPlaceId();
-            template.update("update location_property_osmline set indexed_status = 0 where place_id = ?;", placeId);
-
-            final Integer indexedStatus = place.getIndexdStatus();
-            if (indexedStatus != CREATE) {
-              updater.delete(placeId);
-              if (indexedStatus == DELETE) {
-                deletedInterpolations++;
-                continue;
-              }
-            }
-            updatedInterpolations++;
-
-            final List<PhotonDoc> updatedDocs = exporter.getInterpolationsByPlaceId(place.getPlaceId());
-            for (final PhotonDoc updatedDoc : updatedDocs) {
-              updater.create(updatedDoc);
-              interpolationDocuments++;
-            }
+          final Integer geometrySector = (Integer) sector.get("geometry_sector");
+          interpolations += ((Number) sector.get("count")).longValue();
+          sectors.add(() -> readChanges(acknowledgements.claim(OSMLINE, getIndexSectorInterpolations(geometrySector)), true));
+        }
+        progress.startInterpolations(interpolations);
+        readInOrder(readers, sectors, changes -> {
+          int documents = 0;
+          for (final PlaceChange change : changes) {
+            acknowledgements.add(OSMLINE, change.placeId, change.indexedStatus);
+            updateInterpolation(change, statistics);
+            documents += change.docs.size();
           }
+          progress.placesDone(0, changes.size(), documents);
+          acknowledgements.commitIfFull();
+        });
+        LOGGER.info(String.format("%d interpolations created or updated, %d deleted, %d documents added or updated", statistics.updatedInterpolations,
+                                  statistics.deletedInterpolations, statistics.interpolationDocuments));
+        progress.storing();
+        acknowledgements.commit();
+        if (!acknowledgements.awaitAll()) {
+          LOGGER.warn("Finished updating, changes that could not be stored are retried with the next update");
+          return false;
         }
-        LOGGER.info(String.format("%d interpolations created or updated, %d deleted, %d documents added or updated", updatedInterpolations,
-                                  deletedInterpolations, interpolationDocuments));
-        updater.finish();
         template.update("update import_status set indexed=true;"); // indicate that we are finished
 
         LOGGER.info("Finished updating");
+        return true;
       } finally {
+        progress.finish();
+        readers.shutdownNow();
+        // the places claimed by an interrupted update are left for the next one
+        acknowledgements.release();
         updateLock.unlock();
       }
     } else {
       LOGGER.info("Update already in progress");
+      return false;
+    }
+  }
+
+  /**
+   * gives the places claimed by a crashed update their status back, those that were stored are only updated once more
+   */
+  private void replayJournal() {
+    if (journal == null) {
+      return;
+    }
+    final Map<String, Map<Integer, Set<Long>>> places;
+    try {
+      places = journal.read();
+    } catch (final IOException e) {
+      throw new IllegalStateException("cannot read update journal " + journal.getFile(), e);
+    }
+    for (final Map.Entry<String, Map<Integer, Set<Long>>> table : places.entrySet()) {
+      for (final Map.Entry<Integer, Set<Long>> status : table.getValue().entrySet()) {
+        LOGGER.info(String.format("%d places of %s claimed by an earlier update get their status %d back", status.getValue().size(), table.getKey(),
+                                  status.getKey()));
+        setStatus(table.getKey(), new ArrayList<>(status.getValue()), status.getKey(), 0);
+      }
+    }
+    journal.clear();
+  }
+
+  /**
+   * sets the status of the places that have the expected status
+   */
+  private void setStatus(final String table, final List<Long> placeIds, final int indexedStatus, final int expectedStatus) {
+    if (placeIds.isEmpty()) {
+      return;
+    }
+    template.update("update " + table + " set indexed_status = ? where place_id = ANY(?) and indexed_status = ?;", ps -> {
+      ps.setInt(1, indexedStatus);
+      ps.setArray(2, ps.getConnection().createArrayOf("int8", placeIds.toArray()));
+      ps.setInt(3, expectedStatus);
+    });
+  }
+
+  /**
+   * Runs the tasks on the readers and passes their results to the consumer in the order of the tasks. Only a few
+   * tasks more than there are readers are started ahead, so the results do not pile up in memory.
+   */
+  private <T> void readInOrder(final ExecutorService readers, final List<Callable<T>> tasks, final Consumer<T> consumer) {
+    final Deque<Future<T>> running = new ArrayDeque<>();
+    for (final Callable<T> task : tasks) {
+      running.add(readers.submit(task));
+      if (running.size() > 2 * updateThreads) {
+        consumer.accept(getResult(running.remove()));
+      }
+    }
+    while (!running.isEmpty()) {
+      consumer.accept(getResult(running.remove()));
+    }
+  }
+
+  private static <T> T getResult(final Future<T> future) {
+    try {
+      return future.get();
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("interrupted while reading changed places", e);
+    } catch (final ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IllegalStateException("could not read changed places", e.getCause());
+    }
+  }
+
+  /**
+   * reads the documents of the changed places once they are claimed, runs on the readers
+   */
+  private List<PlaceChange> readChanges(final List<UpdateRow> places, final boolean interpolations) {
+    final List<PlaceChange> changes = new ArrayList<>(places.size());
+    for (final UpdateRow place : places) {
+      final List<PhotonDoc> docs;
+      if (place.getIndexdStatus() == DELETE) {
+        docs = Collections.emptyList();
+      } else if (interpolations) {
+        docs = exporter.getInterpolationsByPlaceId(place.getPlaceId());
+      } else {
+        docs = exporter.getByPlaceId(place.getPlaceId());
+      }
+      changes.add(new PlaceChange(place.getPlaceId(), place.getOsmId(), place.getIndexdStatus(), docs));
+    }
+    return changes;
+  }
+
+  private void updatePlace(final PlaceChange change, final Statistics statistics) {
+    final long placeId = change.placeId;
+    if (change.indexedStatus == DELETE) {
+      updater.replace(placeId, change.osmId, Collections.emptyList());
+      statistics.deletedPlaces++;
+      return;
+    }
+
+    final List<PhotonDoc> usefulDocs = new ArrayList<>(change.docs.size());
+    for (final PhotonDoc updatedDoc : change.docs) {
+      if (updatedDoc.isUsefulForIndex()) {
+        usefulDocs.add(updatedDoc);
+      }
+    }
+    switch (change.indexedStatus) {
+      case CREATE:
+        for (final PhotonDoc updatedDoc : usefulDocs) {
+          updater.create(updatedDoc);
+        }
+        break;
+      case UPDATE:
+        // concurrent bulks may be applied in any order, so a place gets a single change: its new documents
+        // replace the previous ones, documents it no longer has, e.g. of a removed house number, are deleted
+        updater.replace(placeId, change.osmId, usefulDocs);
+        break;
+      default:
+        LOGGER.error(String.format("Unknown index status %d", change.indexedStatus));
+        return;
+    }
+    if (!usefulDocs.isEmpty()) {
+      statistics.updatedPlaces++;
+    }
+  }
+
+  private void updateInterpolation(final PlaceChange change, final Statistics statistics) {
+    if (change.indexedStatus == DELETE) {
+      updater.replace(change.placeId, change.osmId, Collections.emptyList());
+      statistics.deletedInterpolations++;
+      return;
+    }
+    statistics.updatedInterpolations++;
+    statistics.interpolationDocuments += change.docs.size();
+
+    if (change.indexedStatus == CREATE) {
+      for (final PhotonDoc updatedDoc : change.docs) {
+        updater.create(updatedDoc);
+      }
+    } else {
+      // the numbers of a shrunk interpolation that are gone are deleted, see above
+      updater.replace(change.placeId, change.osmId, change.docs);
     }
   }
 
@@ -175,12 +360,13 @@ public class NominatimUpdater {
   }
 
   private List<UpdateRow> getIndexSectorPlaces(final Integer rank, final Integer geometrySector) {
-    return template.query("select place_id, indexed_status from placex where rank_search = ?" + " and geometry_sector = ? and indexed_status > 0;",
+    return template.query("select place_id, osm_id, indexed_status from placex where rank_search = ?" + " and geometry_sector = ? and indexed_status > 0;",
                           new Object[] {rank, geometrySector}, new RowMapper<UpdateRow>() {
           @Override
           public UpdateRow mapRow(final ResultSet rs, final int rowNum) throws SQLException {
             final UpdateRow updateRow = new UpdateRow();
             updateRow.setPlaceId(rs.getLong("place_id"));
+            updateRow.setOsmId(rs.getLong("osm_id"));
             updateRow.setIndexdStatus(rs.getInt("indexed_status"));
             return updateRow;
           }
@@ -188,15 +374,279 @@ public class NominatimUpdater {
   }
 
   private List<UpdateRow> getIndexSectorInterpolations(final Integer geometrySector) {
-    return template.query("select place_id, indexed_status from location_property_osmline where geometry_sector = ? and indexed_status > 0;",
+    return template.query("select place_id, osm_id, indexed_status from location_property_osmline where geometry_sector = ? and indexed_status > 0;",
                           new Object[] {geometrySector}, new RowMapper<UpdateRow>() {
           @Override
           public UpdateRow mapRow(final ResultSet rs, final int rowNum) throws SQLException {
             final UpdateRow updateRow = new UpdateRow();
             updateRow.setPlaceId(rs.getLong("place_id"));
+            updateRow.setOsmId(rs.getLong("osm_id"));
             updateRow.setIndexdStatus(rs.getInt("indexed_status"));
             return updateRow;
           }
         });
   }
+
+  /**
+   * Claims the changed places before their documents are read and acknowledges them once the updater has stored the
+   * documents.
+   * <p>
+   * A claim resets the indexed_status of the places that still have the status that was read, so nominatim indexes
+   * them before their documents are read, and a place that changes again while its documents are in flight gets a new
+   * status that is left for the next update. Places whose documents could not be stored get their status back, unless
+   * they changed meanwhile, as do the claimed places of an update that was interrupted. Deleted places are not claimed,
+   * nominatim removes them with the reset, so their status is reset only once they are deleted from the index.
+   * <p>
+   * The claimed places are recorded in the {@link UpdateJournal} before they are claimed, so the places of an update that
+   * crashed before their documents were stored get their status back when the next update starts. Without a journal
+   * the changes of these places are lost until the places change again.
+   */
+  private class Acknowledgements {
+
+    private final Deque<Batch> pending = new ArrayDeque<>();
+    private Batch current = new Batch();
+    /**
+     * table -> indexed status -> places that are claimed but not stored yet
+     */
+    private final Map<String, Map<Integer, Set<Long>>> claimed = new HashMap<>();
+    private boolean released;
+    /**
+     * number of claims running on the readers, the claims run in parallel and only their results are synchronized
+     */
+    private int claiming;
+    private volatile boolean journaled;
+
+    /**
+     * runs on the readers
+     *
+     * @return the places that are claimed and the deleted places
+     */
+    List<UpdateRow> claim(final String table, final List<UpdateRow> places) {
+      synchronized (this) {
+        if (released) {
+          throw new IllegalStateException("update is finished");
+        }
+        claiming++;
+      }
+      try {
+        return claimPlaces(table, places);
+      } finally {
+        synchronized (this) {
+          claiming--;
+          notifyAll();
+        }
+      }
+    }
+
+    private List<UpdateRow> claimPlaces(final String table, final List<UpdateRow> places) {
+      final Map<Integer, List<Long>> byStatus = new HashMap<>();
+      for (final UpdateRow place : places) {
+        if (place.getIndexdStatus() != DELETE) {
+          byStatus.computeIfAbsent(place.getIndexdStatus(), key -> new ArrayList<>()).add(place.getPlaceId());
+        }
+      }
+      final Set<Long> claimedPlaces = new HashSet<>();
+      for (final Map.Entry<Integer, List<Long>> status : byStatus.entrySet()) {
+        if (journal != null) {
+          try {
+            journal.append(table, status.getKey(), status.getValue());
+          } catch (final IOException e) {
+            throw new IllegalStateException("cannot record claimed places in update journal " + journal.getFile(), e);
+          }
+          journaled = true;
+        }
+        // a place whose status changed since it was read is left for the next update
+        final List<Long> placeIds = template.query("update " + table + " set indexed_status = 0 where place_id = ANY(?) and indexed_status = ? returning place_id;",
+                                                   ps -> {
+                                                     ps.setArray(1, ps.getConnection().createArrayOf("int8", status.getValue().toArray()));
+                                                     ps.setInt(2, status.getKey());
+                                                   }, new RowMapper<Long>() {
+              @Override
+              public Long mapRow(final ResultSet rs, final int rowNum) throws SQLException {
+                return rs.getLong("place_id");
+              }
+            });
+        addClaimed(table, status.getKey(), placeIds);
+        claimedPlaces.addAll(placeIds);
+      }
+      final List<UpdateRow> claimedRows = new ArrayList<>(places.size());
+      for (final UpdateRow place : places) {
+        if (place.getIndexdStatus() == DELETE || claimedPlaces.contains(place.getPlaceId())) {
+          claimedRows.add(place);
+        }
+      }
+      return claimedRows;
+    }
+
+    void add(final String table, final long placeId, final int indexedStatus) {
+      current.placeIds.computeIfAbsent(table, key -> new HashMap<>()).computeIfAbsent(indexedStatus, key -> new ArrayList<>()).add(placeId);
+      current.places++;
+    }
+
+    /**
+     * commits the changes once enough places are collected, places of earlier commits that are stored meanwhile are acknowledged
+     */
+    void commitIfFull() {
+      if (current.places >= ACKNOWLEDGE_PLACES) {
+        commit();
+      }
+      acknowledgeStored(false);
+    }
+
+    void commit() {
+      if (current.places == 0) {
+        return;
+      }
+      current.stored = updater.commit();
+      pending.add(current);
+      current = new Batch();
+    }
+
+    /**
+     * @return true if all changes were stored and acknowledged
+     */
+    boolean awaitAll() {
+      return acknowledgeStored(true);
+    }
+
+    /**
+     * @param wait wait for the pending commits, otherwise only the commits already done are acknowledged
+     * @return true if no commit failed
+     */
+    private boolean acknowledgeStored(final boolean wait) {
+      boolean success = true;
+      while (!pending.isEmpty() && (wait || pending.peek().stored.isDone())) {
+        final Batch batch = pending.remove();
+        Set<Long> failedPlaces = new HashSet<>();
+        try {
+          batch.stored.join();
+        } catch (final CompletionException e) {
+          if (e.getCause() instanceof FailedDocumentsException) {
+            // the other places of the batch are stored
+            for (final String id : ((FailedDocumentsException) e.getCause()).getIds()) {
+              failedPlaces.add(FailedDocumentsException.getPlaceId(id));
+            }
+            LOGGER.error(String.format("could not store the changes of %d of %d places, they are retried with the next update: %s", failedPlaces.size(),
+                                       batch.places, e.getCause().getMessage()));
+          } else {
+            LOGGER.error(String.format("could not store the changes of %d places, they are retried with the next update", batch.places), e);
+            failedPlaces = null;
+          }
+          success = false;
+        } catch (final CancellationException e) {
+          LOGGER.error(String.format("could not store the changes of %d places, they are retried with the next update", batch.places), e);
+          failedPlaces = null;
+          success = false;
+        }
+        for (final Map.Entry<String, Map<Integer, List<Long>>> table : batch.placeIds.entrySet()) {
+          for (final Map.Entry<Integer, List<Long>> status : table.getValue().entrySet()) {
+            final List<Long> stored = new ArrayList<>(status.getValue());
+            final List<Long> failed = new ArrayList<>();
+            if (failedPlaces == null) {
+              failed.addAll(stored);
+              stored.clear();
+            } else {
+              for (final Long placeId : status.getValue()) {
+                if (failedPlaces.contains(placeId)) {
+                  failed.add(placeId);
+                }
+              }
+              stored.removeAll(failed);
+            }
+            if (status.getKey() == DELETE) {
+              // a place that got a different status meanwhile is not acknowledged
+              setStatus(table.getKey(), stored, 0, DELETE);
+            } else {
+              unclaim(table.getKey(), status.getKey(), stored);
+              // the failed places stay claimed until they have their status back, so they are released if this fails
+              setStatus(table.getKey(), failed, status.getKey(), 0);
+              unclaim(table.getKey(), status.getKey(), failed);
+            }
+          }
+        }
+      }
+      return success;
+    }
+
+    private synchronized void addClaimed(final String table, final int indexedStatus, final List<Long> placeIds) {
+      claimed.computeIfAbsent(table, key -> new HashMap<>()).computeIfAbsent(indexedStatus, key -> new HashSet<>()).addAll(placeIds);
+    }
+
+    private synchronized void unclaim(final String table, final int indexedStatus, final List<Long> placeIds) {
+      claimed.getOrDefault(table, Collections.emptyMap()).getOrDefault(indexedStatus, Collections.emptySet()).removeAll(placeIds);
+    }
+
+    /**
+     * gives the places that are claimed but not acknowledged their status back, no more places are claimed afterwards
+     */
+    synchronized void release() {
+      released = true;
+      // the claims that are running are released as well
+      boolean interrupted = false;
+      while (claiming > 0) {
+        try {
+          wait();
+        } catch (final InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+      boolean complete = true;
+      for (final Map.Entry<String, Map<Integer, Set<Long>>> table : claimed.entrySet()) {
+        for (final Map.Entry<Integer, Set<Long>> status : table.getValue().entrySet()) {
+          try {
+            setStatus(table.getKey(), new ArrayList<>(status.getValue()), status.getKey(), 0);
+          } catch (final RuntimeException e) {
+            LOGGER.error(String.format("could not give %d places of %s their status %d back, the next update retries them from its journal",
+                                       status.getValue().size(), table.getKey(), status.getKey()), e);
+            complete = false;
+          }
+        }
+      }
+      claimed.clear();
+      if (journal != null && journaled && complete) {
+        // all claimed places are stored or have their status back
+        journal.clear();
+      }
+    }
+  }
+
+  private static class Batch {
+
+    /**
+     * table -> indexed status -> places
+     */
+    private final Map<String, Map<Integer, List<Long>>> placeIds = new HashMap<>();
+    private int places;
+    private CompletableFuture<Void> stored;
+  }
+
+  /**
+   * A changed place with its new documents, read in parallel and passed to the updater in order.
+   */
+  private static class PlaceChange {
+
+    private final long placeId;
+    private final long osmId;
+    private final int indexedStatus;
+    private final List<PhotonDoc> docs;
+
+    PlaceChange(final long placeId, final long osmId, final int indexedStatus, final List<PhotonDoc> docs) {
+      this.placeId = placeId;
+      this.osmId = osmId;
+      this.indexedStatus = indexedStatus;
+      this.docs = docs;
+    }
+  }
+
+  private static class Statistics {
+
+    private int updatedPlaces;
+    private int deletedPlaces;
+    private int updatedInterpolations;
+    private int deletedInterpolations;
+    private int interpolationDocuments;
+  }
 }
@@ -0,0 +1,62 @@
+package de.komoot.photon.nominatim;
+
+import java.util.TreeMap;
+
+/**
+ * Keeps track of the batches of one partition that are still being imported, to find the highest geometry sector
+ * that is completely imported. Rows of a partition must be read in ascending sector order.
+ */
+class SectorProgress {
+
+  /**
+   * sector returned by {@link #getCompletedSector()} once the whole partition is imported
+   */
+  static final long ALL_SECTORS = Long.MAX_VALUE;
+  /**
+   * sector returned by {@link #getCompletedSector()} as long as no sector is completely imported
+   */
+  static final long NO_SECTOR = Long.MIN_VALUE;
+
+  private final TreeMap<Long, Long> pendingBatches = new TreeMap<>(); // batch number -> first sector of the batch
+  private long nextBatch;
+  private long lastStartedSector = NO_SECTOR;
+  private boolean finished;
+
+  /**
+   * @param firstSector sector of the first row in the batch
+   * @param lastSector  sector of the last row read so far, rows of this sector may follow in the next batch
+   * @return number of the batch to pass to {@link #done(long)}
+   */
+  synchronized long begin(final long firstSector, final long lastSector) {
+    pendingBatches.put(nextBatch, firstSector);
+    lastStartedSector = lastSector;
+    return nextBatch++;
+  }
+
+  synchronized void done(final long batch) {
+    pendingBatches.remove(batch);
+  }
+
+  /**
+   * all batches of the partition have been started
+   */
+  synchronized void finish() {
+    finished = true;
+  }
+
+  /**
+   * @return the highest sector whose rows are all imported, {@link #ALL_SECTORS} if the partition is done or {@link #NO_SECTOR}
+   */
+  synchronized long getCompletedSector() {
+    if (!pendingBatches.isEmpty()) {
+      final long firstPending = pendingBatches.firstEntry().getValue();
+      return firstPending == NO_SECTOR ? NO_SECTOR : firstPending - 1;
+    }
+
+    if (finished) {
+      return ALL_SECTORS;
+    }
+
+    return lastStartedSector == NO_SECTOR ? NO_SECTOR : lastStartedSector - 1;
+  }
+}
@@ -0,0 +1,65 @@
+package de.komoot.photon.nominatim;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import lombok.Getter;
+
+/**
+ * A range of geometry sectors that is read independently of all other ranges during import.
+ */
+@Getter
+class SectorRange {
+
+  private final long from; // inclusive
+  private final long to; // exclusive
+
+  SectorRange(final long from, final long to) {
+    this.from = from;
+    this.to = to;
+  }
+
+  /**
+   * Splits the whole sector space into ranges holding roughly the same number of rows.
+   *
+   * @param bounds ascending sector values that divide the rows into groups of equal size, e.g. a postgres histogram
+   *               or just the minimum and the maximum sector
+   * @param count  number of ranges wanted, fewer ranges are returned if the bounds are too coarse
+   * @return consecutive ranges covering all possible sectors
+   */
+  static List<SectorRange> split(final List<Long> bounds, final int count) {
+    final List<SectorRange> ranges = new ArrayList<>(count);
+    long from = Long.MIN_VALUE;
+    if (bounds.size() >= 2) {
+      final int last = bounds.size() - 1;
+      for (int i = 1; i < count; i++) {
+        final double position = (double) i * last / count;
+        final int lower = (int) position;
+        final int upper = Math.min(lower + 1, last);
+        final long split = Math.round(bounds.get(lower) + (bounds.get(upper) - bounds.get(lower)) * (position - lower));
+        if (split > from) {
+          ranges.add(new SectorRange(from, split));
+          from = split;
+        }
+      }
+    }
+    ranges.add(new SectorRange(from, Long.MAX_VALUE));
+
+    return ranges;
+  }
+
+  /**
+   * @param from          first sector to read, not before the start of the range
+   * @param withoutSector also select the rows without geometry sector, which must belong to exactly one range of a table
+   * @return sql condition selecting the rows of the range
+   */
+  String getCondition(final long from, final boolean withoutSector) {
+    final String sectors = "geometry_sector >= " + from + " AND geometry_sector < " + to;
+    return withoutSector ? "(" + sectors + " OR geometry_sector IS NULL)" : sectors;
+  }
+
+  @Override
+  public String toString() {
+    return "sectors [" + (from == Long.MIN_VALUE ? "" : from) + ".." + (to == Long.MAX_VALUE ? "" : to) + ")";
+  }
+}
@@ -0,0 +1,81 @@
+package de.komoot.photon.nominatim;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Durable record of the places an update claimed in nominatim, so their changes survive a crashed update.
+ * <p>
+ * A claim resets the indexed_status of the places before their documents are stored, so the places are appended to the
+ * journal and synced before they are claimed. The next update gives the places of the journal their status back
+ * before it starts, places that were stored meanwhile are only indexed once more. The journal is cleared once all
+ * claimed places are stored or have their status back.
+ */
+@Slf4j
+public class UpdateJournal {
+
+  private final File file;
+
+  public UpdateJournal(final File file) {
+    this.file = file;
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * records places that are about to be claimed, returns once the record is on disk
+   */
+  public synchronized void append(final String table, final int indexedStatus, final List<Long> placeIds) throws IOException {
+    final StringBuilder line = new StringBuilder().append(table).append(' ').append(indexedStatus).append(' ');
+    for (int i = 0; i < placeIds.size(); i++) {
+      if (i > 0) {
+        line.append(',');
+      }
+      line.append(placeIds.get(i));
+    }
+    line.append('\n');
+    try (FileOutputStream out = new FileOutputStream(file, true)) {
+      out.write(line.toString().getBytes(StandardCharsets.UTF_8));
+      out.getFD().sync();
+    }
+  }
+
+  /**
+   * @return table -> indexed status -> places recorded since the journal was cleared
+   */
+  public synchronized Map<String, Map<Integer, Set<Long>>> read() throws IOException {
+    final Map<String, Map<Integer, Set<Long>>> places = new HashMap<>();
+    if (!file.exists()) {
+      return places;
+    }
+    final String[] lines = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).split("\n", -1);
+    // the last line is empty unless a crashed update left it incomplete, its places were not claimed yet
+    for (int i = 0; i < lines.length - 1; i++) {
+      final String[] fields = lines[i].split(" ");
+      final Set<Long> placeIds = places.computeIfAbsent(fields[0], key -> new HashMap<>())
+          .computeIfAbsent(Integer.parseInt(fields[1]), key -> new HashSet<>());
+      for (final String placeId : fields[2].split(",")) {
+        placeIds.add(Long.parseLong(placeId));
+      }
+    }
+    return places;
+  }
+
+  public synchronized void clear() {
+    if (file.exists() && !file.delete()) {
+      log.warn("could not clear update journal {}", file);
+    }
+  }
+}
@@ -0,0 +1,120 @@
+package de.komoot.photon.nominatim;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Progress of the running or last update from nominatim, written by the updating thread and read by status requests.
+ */
+public class UpdateProgress {
+
+  /**
+   * index of the interpolations in the arrays indexed by rank
+   */
+  private static final int INTERPOLATIONS = 0;
+
+  private final int maxRank;
+  private final AtomicLongArray places;
+  private final AtomicLongArray placesDone;
+  private final AtomicLong documents = new AtomicLong();
+  private volatile String phase = "idle";
+  private volatile long startMillis;
+  private volatile long endMillis;
+
+  UpdateProgress(final int maxRank) {
+    this.maxRank = maxRank;
+    this.places = new AtomicLongArray(maxRank + 1);
+    this.placesDone = new AtomicLongArray(maxRank + 1);
+  }
+
+  void start() {
+    for (int i = 0; i <= maxRank; i++) {
+      places.set(i, 0);
+      placesDone.set(i, 0);
+    }
+    documents.set(0);
+    startMillis = System.currentTimeMillis();
+    endMillis = 0;
+    phase = "reading sectors";
+  }
+
+  /**
+   * @param places number of changed places of the rank
+   */
+  void startRank(final int rank, final long places) {
+    this.places.set(rank, places);
+    phase = "rank " + rank;
+  }
+
+  void startInterpolations(final long places) {
+    this.places.set(INTERPOLATIONS, places);
+    phase = "interpolations";
+  }
+
+  /**
+   * @param rank rank of the places, 0 for interpolations
+   */
+  void placesDone(final int rank, final int places, final int documents) {
+    this.placesDone.addAndGet(rank, places);
+    this.documents.addAndGet(documents);
+  }
+
+  void storing() {
+    phase = "storing";
+  }
+
+  void finish() {
+    endMillis = System.currentTimeMillis();
+    phase = "idle";
+  }
+
+  public String getPhase() {
+    return phase;
+  }
+
+  /**
+   * @return changed places of the current update that are not passed to the updater yet
+   */
+  public long getRemainingPlaces() {
+    long remaining = 0;
+    for (int i = 0; i <= maxRank; i++) {
+      remaining += Math.max(0, places.get(i) - placesDone.get(i));
+    }
+    return remaining;
+  }
+
+  public double getDocumentsPerSecond() {
+    if (startMillis == 0) {
+      return 0d;
+    }
+    final long millis = (endMillis == 0 ? System.currentTimeMillis() : endMillis) - startMillis;
+    return millis == 0 ? 0d : documents.get() * 1000d / millis;
+  }
+
+  public JSONObject toJson() {
+    final JSONObject json = new JSONObject();
+    json.put("phase", phase);
+    if (startMillis == 0) {
+      return json;
+    }
+    json.put("started", startMillis);
+    if (endMillis != 0) {
+      json.put("finished", endMillis);
+    }
+    final JSONArray ranks = new JSONArray();
+    for (int rank = 1; rank <= maxRank; rank++) {
+      if (places.get(rank) > 0) {
+        ranks.put(new JSONObject().put("rank", rank).put("places", places.get(rank)).put("done", placesDone.get(rank)));
+      }
+    }
+    json.put("ranks", ranks);
+    json.put("interpolations", new JSONObject().put("places", places.get(INTERPOLATIONS)).put("done", placesDone.get(INTERPOLATIONS)));
+    json.put("documents", documents.get());
+    json.put("documents_per_second", Math.round(getDocumentsPerSecond()));
+    json.put("remaining_places", getRemainingPlaces());
+    return json;
+  }
+}
@@ -0,0 +1,184 @@
+package de.komoot.photon.nominatim;
+
+import org.json.JSONObject;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongSupplier;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Runs the updates from nominatim one after the other on a thread of its own, regularly and on request.
+ * <p>
+ * Requests while an update is waiting to start are covered by that update, a request while an update is running starts
+ * one more update afterwards. After a failed update the next regular update is delayed more and more, up to the
+ * maximum backoff. The places still pending are counted once after every update, not on every status request.
+ */
+@Slf4j
+public class UpdateScheduler {
+
+  private final BooleanSupplier update;
+  private final UpdateProgress progress;
+  private final LongSupplier pendingPlaces;
+  private final long intervalMillis;
+  private final long maxBackoffMillis;
+  private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+    final Thread thread = new Thread(runnable, "nominatim update");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private final AtomicBoolean queued = new AtomicBoolean();
+  private volatile boolean running;
+  private volatile long updates;
+  private volatile long lastSuccessMillis;
+  private volatile long lastFailureMillis;
+  private volatile String lastFailure;
+  private volatile int failures;
+  private volatile long nextUpdateMillis;
+  private volatile long pendingPlacesCount = -1;
+  private ScheduledFuture<?> nextUpdate;
+
+  /**
+   * @param intervalSeconds   seconds between the end of an update and the start of the next, 0 to update on request only
+   * @param maxBackoffSeconds longest delay of the next update after failed updates
+   */
+  public UpdateScheduler(final NominatimUpdater updater, final long intervalSeconds, final long maxBackoffSeconds) {
+    this(updater::update, updater.getProgress(), updater::countPendingPlaces, intervalSeconds, maxBackoffSeconds);
+  }
+
+  /**
+   * @param update        runs an update, true if all changes were stored
+   * @param pendingPlaces number of places waiting for an update, asked for after every update
+   */
+  UpdateScheduler(final BooleanSupplier update, final UpdateProgress progress, final LongSupplier pendingPlaces, final long intervalSeconds,
+                  final long maxBackoffSeconds) {
+    this.update = update;
+    this.progress = progress;
+    this.pendingPlaces = pendingPlaces;
+    this.intervalMillis = TimeUnit.SECONDS.toMillis(Math.max(0, intervalSeconds));
+    this.maxBackoffMillis = Math.max(intervalMillis, TimeUnit.SECONDS.toMillis(maxBackoffSeconds));
+  }
+
+  /**
+   * starts the regular updates, the first one right away
+   */
+  public void start() {
+    if (intervalMillis > 0) {
+      log.info("updating from nominatim every {} seconds", intervalMillis / 1000);
+      trigger();
+    }
+  }
+
+  /**
+   * @return false if an update is already waiting to start, which covers this request
+   */
+  public boolean trigger() {
+    if (!queued.compareAndSet(false, true)) {
+      return false;
+    }
+    executor.execute(this::runUpdate);
+    return true;
+  }
+
+  private void runUpdate() {
+    queued.set(false);
+    running = true;
+    boolean success = false;
+    try {
+      success = update.getAsBoolean();
+      if (!success) {
+        lastFailure = "not all changes could be stored";
+      }
+    } catch (final RuntimeException e) {
+      log.error("update from nominatim failed", e);
+      lastFailure = e.toString();
+    } finally {
+      running = false;
+    }
+
+    if (success) {
+      failures = 0;
+      lastSuccessMillis = System.currentTimeMillis();
+    } else {
+      failures++;
+      lastFailureMillis = System.currentTimeMillis();
+    }
+    // counted before the update is reported as done
+    countPendingPlaces();
+    updates++;
+    scheduleNext();
+  }
+
+  /**
+   * runs on the update thread only
+   */
+  private void countPendingPlaces() {
+    try {
+      pendingPlacesCount = pendingPlaces.getAsLong();
+    } catch (final RuntimeException e) {
+      log.warn("could not count pending places", e);
+      pendingPlacesCount = -1;
+    }
+  }
+
+  /**
+   * runs on the update thread only
+   */
+  private void scheduleNext() {
+    if (intervalMillis == 0) {
+      return;
+    }
+    if (nextUpdate != null) {
+      nextUpdate.cancel(false);
+    }
+    final long delay = getDelayMillis(intervalMillis, maxBackoffMillis, failures);
+    if (failures > 0) {
+      log.warn("{} updates from nominatim failed in a row, next update in {} seconds", failures, delay / 1000);
+    }
+    nextUpdateMillis = System.currentTimeMillis() + delay;
+    nextUpdate = executor.schedule(this::trigger, delay, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * @return the interval, doubled for every failed update up to the maximum backoff
+   */
+  static long getDelayMillis(final long intervalMillis, final long maxBackoffMillis, final int failures) {
+    long delay = intervalMillis;
+    for (int i = 0; i < failures && delay < maxBackoffMillis; i++) {
+      delay *= 2;
+    }
+    return Math.min(delay, Math.max(intervalMillis, maxBackoffMillis));
+  }
+
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+
+  public JSONObject getStatus() {
+    final JSONObject json = new JSONObject();
+    json.put("state", running ? "running" : "idle");
+    json.put("queued", queued.get());
+    json.put("updates", updates);
+    if (lastSuccessMillis != 0) {
+      json.put("last_success", lastSuccessMillis);
+    }
+    if (lastFailureMillis != 0) {
+      json.put("last_failure", lastFailureMillis);
+      json.put("last_failure_message", lastFailure);
+    }
+    json.put("failures_in_a_row", failures);
+    if (intervalMillis > 0) {
+      json.put("next_update", nextUpdateMillis);
+    }
+    json.put("progress", progress.toJson());
+    if (pendingPlacesCount >= 0) {
+      json.put("pending_places", pendingPlacesCount);
+    }
+    return json;
+  }
+}
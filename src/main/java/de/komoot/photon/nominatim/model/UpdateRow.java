@@ -9,5 +9,6 @@ import lombok.Data;
 public class UpdateRow {
 
   public Long placeId;
+  public Long osmId;
   public Integer indexdStatus; // 1 - index, 2 - update, 100 - delete
 }
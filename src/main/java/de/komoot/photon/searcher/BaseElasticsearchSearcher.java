@@ -1,5 +1,7 @@
 package de.komoot.photon.searcher;
 
+import de.komoot.photon.elasticsearch.Server;
+
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.action.search.SearchType;
 import org.elasticsearch.client.Client;
@@ -20,7 +22,7 @@ public class BaseElasticsearchSearcher implements ElasticsearchSearcher {
   @Override
   public SearchResponse search(final QueryBuilder queryBuilder, final Integer limit) {
     final TimeValue timeout = TimeValue.timeValueSeconds(7);
-    return client.prepareSearch("photon").
+    return client.prepareSearch(Server.ALIAS).
         setSearchType(SearchType.DEFAULT).
         setQuery(queryBuilder).
         setSize(limit).
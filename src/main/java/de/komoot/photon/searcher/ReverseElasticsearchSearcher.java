@@ -2,6 +2,8 @@ package de.komoot.photon.searcher;
 
 import com.vividsolutions.jts.geom.Point;
 
+import de.komoot.photon.elasticsearch.Server;
+
 import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.action.search.SearchType;
@@ -29,7 +31,7 @@ public class ReverseElasticsearchSearcher implements ElasticsearchReverseSearche
     final TimeValue timeout = TimeValue.timeValueSeconds(7L);
 
     final SearchRequestBuilder builder = client
-        .prepareSearch("photon")
+        .prepareSearch(Server.ALIAS)
         .setSearchType(SearchType.DEFAULT)
         .setQuery(queryBuilder)
         .setSize(limit)
@@ -0,0 +1,174 @@
+package de.komoot.photon.snapshot;
+
+import com.neovisionaries.i18n.CountryCode;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Point;
+
+import de.komoot.photon.PhotonDoc;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decodes the documents of one snapshot block written by {@link SnapshotEncoder}.
+ */
+class SnapshotDecoder {
+
+  private final GeometryFactory factory = new GeometryFactory();
+  private final byte[] block;
+  private final List<String> dictionary = new ArrayList<>();
+  private int position;
+
+  SnapshotDecoder(final byte[] block) {
+    this.block = block;
+  }
+
+  List<PhotonDoc> readDocs(final int count) throws IOException {
+    final List<PhotonDoc> docs = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      docs.add(readDoc());
+    }
+    if (position != block.length) {
+      throw new IOException("snapshot block has " + (block.length - position) + " unexpected bytes after " + count + " documents");
+    }
+    return docs;
+  }
+
+  private PhotonDoc readDoc() throws IOException {
+    final long placeId = readLong();
+    final String osmType = readString();
+    final long osmId = readLong();
+    final String tagKey = readString();
+    final String tagValue = readString();
+    final Map<String, String> name = readMap();
+    final String houseNumber = readString();
+    final Map<String, String> extratags = readMap();
+    final Envelope bbox = readEnvelope();
+    final long parentPlaceId = readLong();
+    final double importance = readDouble();
+    final String countryCode = readString();
+    final Point centroid = readPoint();
+    final long linkedPlaceId = readLong();
+    final int rankSearch = (int) readLong();
+
+    final PhotonDoc doc = new PhotonDoc(placeId, osmType, osmId, tagKey, tagValue, name, houseNumber, extratags, bbox, parentPlaceId,
+                                        importance, countryCode == null ? null : CountryCode.getByCode(countryCode), centroid,
+                                        linkedPlaceId, rankSearch);
+    doc.setPostcode(readString());
+    doc.setStreet(readMap());
+    doc.setCity(readMap());
+    doc.setContext(readContext());
+    doc.setCountry(readMap());
+    doc.setState(readMap());
+    return doc;
+  }
+
+  private long readLong() throws IOException {
+    final long value = readVarLong();
+    return value >>> 1 ^ -(value & 1);
+  }
+
+  private long readVarLong() throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      final byte b = readByte();
+      value |= (long) (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("malformed number in snapshot block");
+  }
+
+  private byte readByte() throws IOException {
+    if (position >= block.length) {
+      throw new IOException("unexpected end of snapshot block");
+    }
+    return block[position++];
+  }
+
+  private double readDouble() throws IOException {
+    long bits = 0;
+    for (int i = 0; i < 8; i++) {
+      bits = bits << 8 | readByte() & 0xff;
+    }
+    return Double.longBitsToDouble(bits);
+  }
+
+  private String readString() throws IOException {
+    final long reference = readVarLong();
+    if (reference == 0) {
+      return null;
+    }
+    if (reference > 1) {
+      if (reference - 2 >= dictionary.size()) {
+        throw new IOException("unknown string " + reference + " in snapshot block");
+      }
+      return dictionary.get((int) (reference - 2));
+    }
+
+    final int length = (int) readVarLong();
+    if (length < 0 || position + length > block.length) {
+      throw new IOException("unexpected end of snapshot block");
+    }
+    final String value = new String(block, position, length, StandardCharsets.UTF_8);
+    position += length;
+    dictionary.add(value);
+    return value;
+  }
+
+  private Map<String, String> readMap() throws IOException {
+    final int size = (int) readVarLong() - 1;
+    if (size < 0) {
+      return null;
+    }
+
+    final Map<String, String> map = new HashMap<>(Math.max(4, 2 * size));
+    for (int i = 0; i < size; i++) {
+      final String key = readString();
+      map.put(key, readString());
+    }
+    return map;
+  }
+
+  private Set<Map<String, String>> readContext() throws IOException {
+    final int size = (int) readVarLong() - 1;
+    if (size < 0) {
+      return null;
+    }
+
+    final Set<Map<String, String>> context = new HashSet<>();
+    for (int i = 0; i < size; i++) {
+      context.add(readMap());
+    }
+    return context;
+  }
+
+  private Envelope readEnvelope() throws IOException {
+    if (readByte() == 0) {
+      return null;
+    }
+    final double minX = readDouble();
+    final double maxX = readDouble();
+    final double minY = readDouble();
+    final double maxY = readDouble();
+    return new Envelope(minX, maxX, minY, maxY);
+  }
+
+  private Point readPoint() throws IOException {
+    if (readByte() == 0) {
+      return null;
+    }
+    final Point point = factory.createPoint(new Coordinate(readDouble(), readDouble()));
+    point.setSRID((int) readLong());
+    return point;
+  }
+}
@@ -0,0 +1,171 @@
+package de.komoot.photon.snapshot;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Point;
+
+import de.komoot.photon.PhotonDoc;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Encodes the documents of one snapshot block, see {@link SnapshotWriter} for the format.
+ * <p>
+ * Strings are written once per block and referenced by number afterwards, so that repeated keys, tags and address
+ * names take a byte or two.
+ */
+class SnapshotEncoder {
+
+  private final ByteArrayOutputStream out = new ByteArrayOutputStream(1 << 16);
+  private final Map<String, Integer> dictionary = new HashMap<>();
+  private final byte[] scratch = new byte[10];
+  private int documents;
+
+  void writeDoc(final PhotonDoc doc) {
+    writeLong(doc.getPlaceId());
+    writeString(doc.getOsmType());
+    writeLong(doc.getOsmId());
+    writeString(doc.getTagKey());
+    writeString(doc.getTagValue());
+    writeMap(doc.getName());
+    writeString(doc.getHouseNumber());
+    writeMap(doc.getExtratags());
+    writeEnvelope(doc.getBbox());
+    writeLong(doc.getParentPlaceId());
+    writeDouble(doc.getImportance());
+    writeString(doc.getCountryCode() == null ? null : doc.getCountryCode().getAlpha2());
+    writePoint(doc.getCentroid());
+    writeLong(doc.getLinkedPlaceId());
+    writeLong(doc.getRankSearch());
+    writeString(doc.getPostcode());
+    writeMap(doc.getStreet());
+    writeMap(doc.getCity());
+    writeContext(doc.getContext());
+    writeMap(doc.getCountry());
+    writeMap(doc.getState());
+    documents++;
+  }
+
+  int getDocuments() {
+    return documents;
+  }
+
+  int size() {
+    return out.size();
+  }
+
+  byte[] toByteArray() {
+    return out.toByteArray();
+  }
+
+  /**
+   * starts a new block with an empty dictionary
+   */
+  void reset() {
+    out.reset();
+    dictionary.clear();
+    documents = 0;
+  }
+
+  /**
+   * zigzag encoded variable length long, small values of either sign take a single byte
+   */
+  private void writeLong(final long value) {
+    writeVarLong(value << 1 ^ value >> 63);
+  }
+
+  private void writeVarLong(long value) {
+    int length = 0;
+    while ((value & ~0x7fL) != 0) {
+      scratch[length++] = (byte) (value & 0x7f | 0x80);
+      value >>>= 7;
+    }
+    scratch[length++] = (byte) value;
+    out.write(scratch, 0, length);
+  }
+
+  private void writeDouble(final double value) {
+    final long bits = Double.doubleToRawLongBits(value);
+    for (int shift = 56; shift >= 0; shift -= 8) {
+      out.write((int) (bits >>> shift));
+    }
+  }
+
+  /**
+   * 0 for null, 1 followed by length and UTF-8 bytes for a string new to the block, otherwise number of the string + 2
+   */
+  private void writeString(final String value) {
+    if (value == null) {
+      writeVarLong(0);
+      return;
+    }
+
+    final Integer known = dictionary.get(value);
+    if (known != null) {
+      writeVarLong(known + 2);
+      return;
+    }
+
+    dictionary.put(value, dictionary.size());
+    final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    writeVarLong(1);
+    writeVarLong(bytes.length);
+    out.write(bytes, 0, bytes.length);
+  }
+
+  /**
+   * 0 for null, otherwise number of entries + 1 followed by keys and values
+   */
+  private void writeMap(final Map<String, String> map) {
+    if (map == null) {
+      writeVarLong(0);
+      return;
+    }
+
+    writeVarLong(map.size() + 1);
+    for (final Map.Entry<String, String> entry : map.entrySet()) {
+      writeString(entry.getKey());
+      writeString(entry.getValue());
+    }
+  }
+
+  private void writeContext(final Set<Map<String, String>> context) {
+    if (context == null) {
+      writeVarLong(0);
+      return;
+    }
+
+    writeVarLong(context.size() + 1);
+    for (final Map<String, String> map : context) {
+      writeMap(map);
+    }
+  }
+
+  private void writeEnvelope(final Envelope envelope) {
+    if (envelope == null) {
+      out.write(0);
+      return;
+    }
+
+    out.write(1);
+    writeDouble(envelope.getMinX());
+    writeDouble(envelope.getMaxX());
+    writeDouble(envelope.getMinY());
+    writeDouble(envelope.getMaxY());
+  }
+
+  private void writePoint(final Point point) {
+    if (point == null) {
+      out.write(0);
+      return;
+    }
+
+    out.write(1);
+    writeDouble(point.getX());
+    writeDouble(point.getY());
+    writeLong(point.getSRID());
+  }
+}
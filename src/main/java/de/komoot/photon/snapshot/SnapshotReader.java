@@ -0,0 +1,130 @@
+package de.komoot.photon.snapshot;
+
+import de.komoot.photon.Importer;
+import de.komoot.photon.PhotonDoc;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.text.MessageFormat;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Reads a snapshot written by {@link SnapshotWriter} and passes all documents to an {@link Importer}.
+ * <p>
+ * The blocks are decoded by a pool of threads while the calling thread reads the file and hands the decoded documents
+ * to the importer, so the importer is only called from a single thread. Documents are not necessarily passed in the
+ * order of the snapshot.
+ */
+@Slf4j
+public class SnapshotReader {
+
+  private static final long PROGRESS_INTERVAL = 1000000;
+
+  private final int threads;
+
+  /**
+   * @param threads number of threads decoding blocks
+   */
+  public SnapshotReader(final int threads) {
+    this.threads = Math.max(1, threads);
+  }
+
+  /**
+   * passes all documents of the snapshot to the importer and finishes the importer
+   *
+   * @return number of documents read
+   */
+  public long read(final File file, final Importer importer) throws IOException {
+    final ExecutorService decoders = Executors.newFixedThreadPool(threads);
+    final CompletionService<List<PhotonDoc>> decoded = new ExecutorCompletionService<>(decoders);
+    final long startMillis = System.currentTimeMillis();
+    long documents = 0;
+    long nextProgress = PROGRESS_INTERVAL;
+    int pending = 0;
+
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+      readHeader(in, file);
+
+      while (true) {
+        final int length;
+        try {
+          length = in.readInt();
+        } catch (final EOFException e) {
+          break;
+        }
+        final int count = in.readInt();
+        final byte[] block = new byte[length];
+        in.readFully(block);
+        decoded.submit(() -> new SnapshotDecoder(block).readDocs(count));
+        pending++;
+
+        // keep the decoders busy without holding more than a few blocks in memory
+        while (pending >= 2 * threads) {
+          documents += importBlock(decoded, importer);
+          pending--;
+        }
+
+        if (documents >= nextProgress) {
+          final double documentsPerSecond = 1000d * documents / (System.currentTimeMillis() - startMillis);
+          log.info(String.format("read %s documents from snapshot [%.1f/second]", MessageFormat.format("{0}", documents), documentsPerSecond));
+          nextProgress += PROGRESS_INTERVAL;
+        }
+      }
+
+      while (pending > 0) {
+        documents += importBlock(decoded, importer);
+        pending--;
+      }
+    } finally {
+      decoders.shutdownNow();
+    }
+
+    importer.finish();
+    log.info(String.format("read %s documents from snapshot %s", MessageFormat.format("{0}", documents), file));
+    return documents;
+  }
+
+  private static void readHeader(final DataInputStream in, final File file) throws IOException {
+    final byte[] magic = new byte[SnapshotWriter.MAGIC.length];
+    in.readFully(magic);
+    if (!Arrays.equals(magic, SnapshotWriter.MAGIC)) {
+      throw new IOException(file + " is not a photon snapshot");
+    }
+    final int version = in.readInt();
+    if (version != SnapshotWriter.VERSION) {
+      throw new IOException(file + " is a snapshot of version " + version + ", only version " + SnapshotWriter.VERSION + " is supported");
+    }
+  }
+
+  private static int importBlock(final CompletionService<List<PhotonDoc>> decoded, final Importer importer) throws IOException {
+    final List<PhotonDoc> docs;
+    try {
+      docs = decoded.take().get();
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("interrupted while reading snapshot", e);
+    } catch (final ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException("cannot decode snapshot block", e.getCause());
+    }
+
+    for (final PhotonDoc doc : docs) {
+      importer.add(doc);
+    }
+    return docs.size();
+  }
+}
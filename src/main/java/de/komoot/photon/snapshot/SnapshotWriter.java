@@ -0,0 +1,96 @@
+package de.komoot.photon.snapshot;
+
+import de.komoot.photon.Importer;
+import de.komoot.photon.PhotonDoc;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.text.MessageFormat;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Writes complete photon documents to a snapshot file, from which an index can be rebuilt with any languages or
+ * mapping by a {@link SnapshotReader} without reading nominatim again.
+ * <p>
+ * A snapshot starts with the bytes {@code PHOTONSNAP} and the format version as int, followed by blocks of documents.
+ * Every block is written as its length in bytes and its number of documents, both ints, and the encoded documents. A
+ * block only refers to strings of its own, so the blocks can be decoded independently.
+ */
+@Slf4j
+public class SnapshotWriter implements Importer {
+
+  static final byte[] MAGIC = "PHOTONSNAP".getBytes(StandardCharsets.US_ASCII);
+  static final int VERSION = 1;
+  private static final int BLOCK_DOCUMENTS = 8192;
+  private static final int BLOCK_BYTES = 4 * 1024 * 1024;
+
+  private final File file;
+  private final DataOutputStream out;
+  private final SnapshotEncoder encoder = new SnapshotEncoder();
+  private long documents;
+  private long blocks;
+  private boolean finished;
+
+  public SnapshotWriter(final File file) throws IOException {
+    this.file = file;
+    this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+    this.out.write(MAGIC);
+    this.out.writeInt(VERSION);
+  }
+
+  @Override
+  public void add(final PhotonDoc doc) {
+    encoder.writeDoc(doc);
+    documents++;
+    if (encoder.getDocuments() >= BLOCK_DOCUMENTS || encoder.size() >= BLOCK_BYTES) {
+      writeBlock();
+    }
+  }
+
+  private void writeBlock() {
+    if (encoder.getDocuments() == 0) {
+      return;
+    }
+
+    try {
+      out.writeInt(encoder.size());
+      out.writeInt(encoder.getDocuments());
+      out.write(encoder.toByteArray());
+    } catch (final IOException e) {
+      throw new IllegalStateException("cannot write snapshot " + file, e);
+    }
+    blocks++;
+    encoder.reset();
+  }
+
+  @Override
+  public void flush() {
+    writeBlock();
+    try {
+      out.flush();
+    } catch (final IOException e) {
+      throw new IllegalStateException("cannot write snapshot " + file, e);
+    }
+  }
+
+  @Override
+  public void finish() {
+    if (finished) {
+      return;
+    }
+    finished = true;
+
+    writeBlock();
+    try {
+      out.close();
+    } catch (final IOException e) {
+      throw new IllegalStateException("cannot write snapshot " + file, e);
+    }
+    log.info(String.format("wrote %s documents in %d blocks to snapshot %s", MessageFormat.format("{0}", documents), blocks, file));
+  }
+}
@@ -0,0 +1,226 @@
+package de.komoot.photon.utils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToLongFunction;
+
+/**
+ * Hands items from producer threads over to consumer threads, bounded by the estimated size of the waiting items
+ * instead of their number.
+ * <p>
+ * Once all producers are done, {@link #complete()} lets consumers drain the remaining items, after which {@link #take()}
+ * returns null. {@link #fail(Throwable)} stops both sides: waiting and following calls throw an exception with the cause.
+ * An item larger than the whole budget is accepted when the queue is empty, so it cannot block forever.
+ *
+ * @param <T> type of the items
+ */
+public class HandOffQueue<T> {
+
+  private final long maxBytes;
+  private final ToLongFunction<T> sizeEstimator;
+  private final ArrayDeque<T> items = new ArrayDeque<>();
+  private final ArrayDeque<Long> sizes = new ArrayDeque<>();
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notEmpty = lock.newCondition();
+  private final Condition notFull = lock.newCondition();
+  private long bytes;
+  private long peakBytes;
+  private long producerWaitNanos;
+  private long consumerWaitNanos;
+  private boolean completed;
+  private Throwable failure;
+
+  /**
+   * @param maxBytes      producers wait while the estimated size of the waiting items exceeds this budget
+   * @param sizeEstimator estimated size of an item in bytes
+   */
+  public HandOffQueue(final long maxBytes, final ToLongFunction<T> sizeEstimator) {
+    if (maxBytes < 1) {
+      throw new IllegalArgumentException("budget must be positive: " + maxBytes);
+    }
+    this.maxBytes = maxBytes;
+    this.sizeEstimator = sizeEstimator;
+  }
+
+  /**
+   * waits until the item fits into the budget
+   *
+   * @throws IllegalStateException if the queue failed or is already completed
+   */
+  public void put(final T item) throws InterruptedException {
+    final long size = Math.max(0, sizeEstimator.applyAsLong(item));
+    lock.lockInterruptibly();
+    try {
+      checkFailure();
+      if (!items.isEmpty() && bytes + size > maxBytes) {
+        final long start = System.nanoTime();
+        while (failure == null && !completed && !items.isEmpty() && bytes + size > maxBytes) {
+          notFull.await();
+        }
+        producerWaitNanos += System.nanoTime() - start;
+        checkFailure();
+      }
+      if (completed) {
+        throw new IllegalStateException("hand-off queue is already completed");
+      }
+      items.add(item);
+      sizes.add(size);
+      bytes += size;
+      peakBytes = Math.max(peakBytes, bytes);
+      notEmpty.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the next item or null if the queue is completed and all items are taken
+   * @throws IllegalStateException if the queue failed
+   */
+  public T take() throws InterruptedException {
+    lock.lockInterruptibly();
+    try {
+      checkFailure();
+      if (items.isEmpty() && !completed) {
+        final long start = System.nanoTime();
+        while (failure == null && items.isEmpty() && !completed) {
+          notEmpty.await();
+        }
+        consumerWaitNanos += System.nanoTime() - start;
+        checkFailure();
+      }
+      if (items.isEmpty()) {
+        return null;
+      }
+      bytes -= sizes.remove();
+      notFull.signalAll();
+      return items.remove();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * no more items are put, consumers take the remaining items
+   */
+  public void complete() {
+    lock.lock();
+    try {
+      completed = true;
+      notEmpty.signalAll();
+      notFull.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Discards the waiting items and wakes up all producers and consumers, they and all following calls throw an
+   * exception with the first cause.
+   *
+   * @return the discarded items
+   */
+  public List<T> fail(final Throwable cause) {
+    lock.lock();
+    try {
+      if (failure == null) {
+        failure = cause;
+      }
+      final List<T> discarded = new ArrayList<>(items);
+      items.clear();
+      sizes.clear();
+      bytes = 0;
+      notEmpty.signalAll();
+      notFull.signalAll();
+      return discarded;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the cause of the failure or null if the queue did not fail
+   */
+  public Throwable getFailure() {
+    lock.lock();
+    try {
+      return failure;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void checkFailure() {
+    if (failure != null) {
+      throw new IllegalStateException("hand-off queue failed", failure);
+    }
+  }
+
+  public int size() {
+    lock.lock();
+    try {
+      return items.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return estimated size of the waiting items
+   */
+  public long getBytes() {
+    lock.lock();
+    try {
+      return bytes;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  public long getPeakBytes() {
+    lock.lock();
+    try {
+      return peakBytes;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return total time producers waited for the budget
+   */
+  public long getProducerWaitMillis() {
+    lock.lock();
+    try {
+      return TimeUnit.NANOSECONDS.toMillis(producerWaitNanos);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return total time consumers waited for items
+   */
+  public long getConsumerWaitMillis() {
+    lock.lock();
+    try {
+      return TimeUnit.NANOSECONDS.toMillis(consumerWaitNanos);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%d items, %d of %d KB (peak %d KB), producers waited %d ms, consumers waited %d ms", size(),
+                         getBytes() / 1024, maxBytes / 1024, getPeakBytes() / 1024, getProducerWaitMillis(), getConsumerWaitMillis());
+  }
+}
@@ -0,0 +1,202 @@
+package de.komoot.photon.utils;
+
+/**
+ * A size bounded cache with primitive long keys that evicts the least recently used entry when it is full.
+ * <p>
+ * Keys are kept in an open addressing hash table pointing into fixed size entry arrays, so neither lookups
+ * nor insertions box keys or allocate entry objects. All methods are synchronized.
+ *
+ * @param <V> type of the cached values
+ */
+public class LongLruCache<V> {
+
+  private static final int NONE = -1;
+
+  private final int capacity;
+  private final int mask;
+  /**
+   * hash table of entry index + 1, 0 marks an empty slot
+   */
+  private final int[] table;
+  private final long[] keys;
+  private final Object[] values;
+  private final int[] prev;
+  private final int[] next;
+  /**
+   * most recently used entry
+   */
+  private int head = NONE;
+  /**
+   * least recently used entry
+   */
+  private int tail = NONE;
+  private int size;
+  private long hits;
+  private long misses;
+  private long evictions;
+
+  public LongLruCache(final int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("capacity must be positive: " + capacity);
+    }
+
+    int tableSize = 2;
+    while (tableSize < 2 * capacity) {
+      tableSize <<= 1;
+    }
+
+    this.capacity = capacity;
+    this.mask = tableSize - 1;
+    this.table = new int[tableSize];
+    this.keys = new long[capacity];
+    this.values = new Object[capacity];
+    this.prev = new int[capacity];
+    this.next = new int[capacity];
+  }
+
+  /**
+   * @return the cached value or null if the key is not cached
+   */
+  @SuppressWarnings("unchecked")
+  public synchronized V get(final long key) {
+    final int slot = findSlot(key);
+    if (slot == NONE) {
+      misses++;
+      return null;
+    }
+
+    hits++;
+    final int entry = table[slot] - 1;
+    moveToFront(entry);
+    return (V) values[entry];
+  }
+
+  public synchronized void put(final long key, final V value) {
+    final int slot = findSlot(key);
+    if (slot != NONE) {
+      final int entry = table[slot] - 1;
+      values[entry] = value;
+      moveToFront(entry);
+      return;
+    }
+
+    final int entry;
+    if (size == capacity) {
+      entry = tail;
+      removeSlot(findSlot(keys[entry]));
+      unlink(entry);
+      evictions++;
+    } else {
+      entry = size++;
+    }
+
+    keys[entry] = key;
+    values[entry] = value;
+    int i = hash(key);
+    while (table[i] != 0) {
+      i = (i + 1) & mask;
+    }
+    table[i] = entry + 1;
+    linkFront(entry);
+  }
+
+  public synchronized int size() {
+    return size;
+  }
+
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+
+  /**
+   * @return share of lookups that were answered from the cache, 0 if there was no lookup yet
+   */
+  public synchronized double getHitRate() {
+    final long lookups = hits + misses;
+    return lookups == 0 ? 0d : (double) hits / lookups;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("%d entries, %d hits, %d misses (%.1f%% hit rate), %d evictions", size, hits, misses, 100d * getHitRate(), evictions);
+  }
+
+  private int hash(final long key) {
+    final long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32)) & mask;
+  }
+
+  private int findSlot(final long key) {
+    int i = hash(key);
+    while (table[i] != 0) {
+      if (keys[table[i] - 1] == key) {
+        return i;
+      }
+      i = (i + 1) & mask;
+    }
+    return NONE;
+  }
+
+  /**
+   * empties a slot of the hash table and shifts back following entries of the same probe sequence
+   */
+  private void removeSlot(int slot) {
+    table[slot] = 0;
+    int i = slot;
+    while (true) {
+      i = (i + 1) & mask;
+      if (table[i] == 0) {
+        return;
+      }
+
+      final int home = hash(keys[table[i] - 1]);
+      final boolean reachable = slot <= i ? slot < home && home <= i : slot < home || home <= i;
+      if (!reachable) {
+        table[slot] = table[i];
+        table[i] = 0;
+        slot = i;
+      }
+    }
+  }
+
+  private void linkFront(final int entry) {
+    prev[entry] = NONE;
+    next[entry] = head;
+    if (head != NONE) {
+      prev[head] = entry;
+    }
+    head = entry;
+    if (tail == NONE) {
+      tail = entry;
+    }
+  }
+
+  private void unlink(final int entry) {
+    if (prev[entry] != NONE) {
+      next[prev[entry]] = next[entry];
+    } else {
+      head = next[entry];
+    }
+
+    if (next[entry] != NONE) {
+      prev[next[entry]] = prev[entry];
+    } else {
+      tail = prev[entry];
+    }
+  }
+
+  private void moveToFront(final int entry) {
+    if (head != entry) {
+      unlink(entry);
+      linkFront(entry);
+    }
+  }
+}
@@ -0,0 +1,141 @@
+package de.komoot.photon;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.PrecisionModel;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DocSerializerTest {
+
+    private final GeometryFactory factory = new GeometryFactory(new PrecisionModel(), 4326);
+
+    private PhotonDoc createDoc() {
+        PhotonDoc doc = new PhotonDoc(1, "W", 2, "highway", "residential",
+                ImmutableMap.of("name", "Hauptstraße", "name:en", "Main Street", "name:fr", "Rue Principale", "alt_name", "Alte Straße"),
+                "12a", null, new Envelope(13.3, 13.5, 52.4, 52.6), 0, 0.25, null, factory.createPoint(new Coordinate(13.4, 52.5)), 0, 26);
+        doc.setPostcode("10115");
+        doc.setCity(ImmutableMap.of("name", "Berlin", "name:fr", "Berlin"));
+        doc.setContext(ImmutableSet.of(ImmutableMap.of("name", "Mitte", "name:en", "Centre"), ImmutableMap.of("name", "Mitte")));
+        return doc;
+    }
+
+    private JSONObject serialize(PhotonDoc doc, String... languages) throws Exception {
+        return new JSONObject(new String(BytesReference.toBytes(new DocSerializer(languages).serialize(doc)), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testSerialize() throws Exception {
+        JSONObject json = serialize(createDoc(), "en", "de");
+
+        assertEquals(2, json.getLong(Constants.OSM_ID));
+        assertEquals("W", json.getString(Constants.OSM_TYPE));
+        assertEquals("highway", json.getString(Constants.OSM_KEY));
+        assertEquals("residential", json.getString(Constants.OSM_VALUE));
+        assertEquals(0.25, json.getDouble(Constants.IMPORTANCE), 1e-9);
+        assertEquals(52.5, json.getJSONObject("coordinate").getDouble("lat"), 1e-9);
+        assertEquals(13.4, json.getJSONObject("coordinate").getDouble("lon"), 1e-9);
+        assertEquals("12a", json.getString("housenumber"));
+        assertEquals("10115", json.getString("postcode"));
+
+        assertTrue(json.getJSONObject("name").similar(new JSONObject()
+                .put("default", "Hauptstraße").put("en", "Main Street").put("alt", "Alte Straße")));
+        assertTrue(json.getJSONObject("city").similar(new JSONObject().put("default", "Berlin")));
+        assertTrue(json.getJSONObject("context").similar(new JSONObject().put("default", "Mitte").put("en", "Centre")));
+        assertFalse(json.has("street"));
+        assertEquals("envelope", json.getJSONObject("extent").getString("type"));
+        assertEquals("[[13.3,52.6],[13.5,52.4]]", json.getJSONObject("extent").getJSONArray("coordinates").toString());
+    }
+
+    private static final String[] LANGUAGES = {"en", "de", "fr", "it", "es", "nl", "pl", "ru", "ja", "zh", "ko", "ar", "pt", "sv"};
+
+    private Map<String, String> randomNames(Random random, String prefix, boolean variants) {
+        Map<String, String> names = new HashMap<>();
+        if (random.nextInt(4) > 0) {
+            names.put("name", prefix);
+        }
+        for (String language : LANGUAGES) {
+            if (random.nextInt(3) == 0) {
+                names.put("name:" + language, prefix + " " + language);
+            }
+        }
+        if (variants) {
+            for (String variant : new String[]{"alt_name", "int_name", "loc_name", "old_name", "reg_name"}) {
+                if (random.nextInt(4) == 0) {
+                    names.put(variant, prefix + " " + variant);
+                }
+            }
+        }
+        return names;
+    }
+
+    private PhotonDoc randomDoc(Random random, long id) {
+        PhotonDoc doc = new PhotonDoc(id, "NWR".substring((int) id % 3, (int) id % 3 + 1), id * 10, "highway", "residential",
+                randomNames(random, "Straße " + id, true), random.nextBoolean() ? String.valueOf(random.nextInt(200)) : null, null,
+                random.nextBoolean() ? new Envelope(13.3, 13.3 + random.nextDouble(), 52.4, 52.4 + random.nextDouble()) : null, 0,
+                random.nextDouble(), null, random.nextInt(10) > 0 ? factory.createPoint(new Coordinate(random.nextDouble(), random.nextDouble())) : null,
+                0, 26);
+        if (random.nextBoolean()) {
+            doc.setPostcode(String.valueOf(10000 + random.nextInt(90000)));
+        }
+        doc.setCity(random.nextBoolean() ? randomNames(random, "City " + random.nextInt(5), false) : null);
+        doc.setCountry(randomNames(random, "Country", false));
+        doc.setState(random.nextBoolean() ? randomNames(random, "State " + random.nextInt(5), false) : null);
+        doc.setStreet(random.nextBoolean() ? randomNames(random, "Street " + random.nextInt(5), false) : null);
+        Set<Map<String, String>> context = new HashSet<>();
+        for (int i = random.nextInt(6); i > 0; i--) {
+            context.add(randomNames(random, "Area " + random.nextInt(8), false));
+        }
+        doc.setContext(context);
+        return doc;
+    }
+
+    @Test
+    public void testSameBytesAsConvert() throws Exception {
+        Random random = new Random(42);
+        for (String[] languages : new String[][]{{"en", "de"}, {"en", "de", "fr", "it"}, LANGUAGES, {}}) {
+            // one serializer for all documents, it reuses its buffer
+            DocSerializer serializer = new DocSerializer(languages);
+            for (long id = 1; id <= 1000; id++) {
+                PhotonDoc doc = id == 1 ? createDoc() : randomDoc(random, id);
+                byte[] converted = BytesReference.toBytes(BytesReference.bytes(Utils.convert(doc, languages)));
+                byte[] serialized = BytesReference.toBytes(serializer.serialize(doc));
+                assertEquals(new String(converted, StandardCharsets.UTF_8), new String(serialized, StandardCharsets.UTF_8));
+                assertArrayEquals(converted, serialized);
+            }
+        }
+    }
+
+    @Test
+    public void testBinaryFormats() throws Exception {
+        PhotonDoc doc = createDoc();
+        Map<String, Object> json = XContentHelper.convertToMap(new DocSerializer(new String[]{"en"}).serialize(doc), false, XContentType.JSON).v2();
+        for (XContentType type : new XContentType[]{XContentType.SMILE, XContentType.CBOR}) {
+            assertEquals(json, XContentHelper.convertToMap(new DocSerializer(new String[]{"en"}, type).serialize(doc), false, type).v2());
+        }
+    }
+
+    @Test
+    public void testDuplicateLanguage() throws Exception {
+        JSONObject json = serialize(createDoc(), "en", "en");
+        assertEquals("Main Street", json.getJSONObject("name").getString("en"));
+    }
+}
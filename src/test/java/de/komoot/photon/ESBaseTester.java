@@ -28,6 +28,10 @@ public class ESBaseTester {
         refresh();
     }
 
+    protected Server getServer() {
+        return server;
+    }
+
     protected Client getClient() {
         if (server == null) {
             throw new RuntimeException("call setUpES before using getClient");
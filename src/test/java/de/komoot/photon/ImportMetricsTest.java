@@ -0,0 +1,48 @@
+package de.komoot.photon;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ImportMetricsTest {
+
+    @Test
+    public void testEtaUnknownWithoutExpectedRows() {
+        ImportMetrics metrics = new ImportMetrics();
+        metrics.rowRead();
+        assertEquals(-1, metrics.getEtaSeconds());
+
+        metrics.setExpectedRows(1);
+        assertEquals(0, metrics.getEtaSeconds());
+
+        metrics.setExpectedRows(1000000000L);
+        assertTrue(metrics.getEtaSeconds() > 0);
+    }
+
+    @Test
+    public void testBulks() {
+        ImportMetrics metrics = new ImportMetrics();
+        metrics.bulkStarted();
+        metrics.bulkStarted();
+        metrics.bulkDone(100, 2, 30);
+        assertEquals(1, metrics.getBulksInFlight());
+        assertEquals(1, metrics.getBulks());
+        assertEquals(100, metrics.getBulkActions());
+        assertEquals(2, metrics.getBulkFailedActions());
+        assertEquals(30, metrics.getAverageBulkLatencyMillis(), 0);
+    }
+
+    @Test
+    public void testAverages() {
+        ImportMetrics metrics = new ImportMetrics();
+        metrics.documentsCompleted(10, 20000000);
+        metrics.documentSerialized(3000);
+        metrics.documentSerialized(5000);
+        assertEquals(2, metrics.getAverageCompletionMillis(), 1e-9);
+        assertEquals(4, metrics.getAverageSerializationMicros(), 1e-9);
+        metrics.setQueues(() -> 3, () -> 7);
+        assertEquals(3, metrics.getCompletionQueueDepth());
+        assertEquals(7, metrics.getDocumentQueueDepth());
+    }
+}
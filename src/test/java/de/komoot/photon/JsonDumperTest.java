@@ -0,0 +1,72 @@
+package de.komoot.photon;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class JsonDumperTest {
+
+    private PhotonDoc createDoc(long placeId) {
+        return new PhotonDoc(placeId, "N", placeId, "place", "city", null, null, null, null, 0, 0.5, null, null, 0, 30);
+    }
+
+    @Test(timeout = 60000)
+    public void testStoppedShardFailsInsteadOfBlocking() throws Exception {
+        File dump = File.createTempFile("photon-dump", ".json");
+        dump.deleteOnExit();
+        JsonDumper dumper = new JsonDumper(dump.getPath(), "en");
+        List<Thread> threads = ReflectionTestUtil.getFieldValue(dumper, "threads");
+        threads.get(0).interrupt();
+        threads.get(0).join();
+
+        try {
+            // far more documents than the queue of the shard holds
+            for (long i = 0; i < 10000; i++) {
+                dumper.add(createDoc(i));
+            }
+            fail("documents are accepted by a stopped shard");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("interrupted"));
+        }
+        try {
+            dumper.flush();
+            fail("flush does not report the stopped shard");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("interrupted"));
+        }
+        try {
+            dumper.finish();
+            fail("finish does not report the stopped shard");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("interrupted"));
+        }
+    }
+
+    @Test
+    public void testShardThatCannotBeOpenedStartsNoThreads() throws Exception {
+        File directory = Files.createTempDirectory("photon-dump").toFile();
+        // the file of the last shard cannot be created
+        File blocked = new File(directory, "dump.002.0000.json");
+        assertTrue(blocked.mkdir());
+        try {
+            new JsonDumper(new File(directory, "dump.json").getPath(), "en", 3, false, 0);
+            fail("the missing shard file is not reported");
+        } catch (FileNotFoundException e) {
+            // expected
+        } finally {
+            FileUtils.deleteDirectory(directory);
+        }
+
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            assertFalse(thread.getName(), thread.getName().startsWith("json dump shard"));
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package de.komoot.photon;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TeeImporterTest {
+
+    private static class RecordingImporter implements Importer {
+        private final List<Long> ids = Collections.synchronizedList(new ArrayList<>());
+        private volatile int flushes;
+        private volatile boolean finished;
+
+        @Override
+        public void add(PhotonDoc doc) {
+            ids.add(doc.getPlaceId());
+        }
+
+        @Override
+        public void flush() {
+            flushes++;
+        }
+
+        @Override
+        public void finish() {
+            finished = true;
+        }
+    }
+
+    private static class FailingImporter implements Importer {
+        private final boolean failToFinish;
+        private volatile boolean finished;
+
+        FailingImporter(boolean failToFinish) {
+            this.failToFinish = failToFinish;
+        }
+
+        @Override
+        public void add(PhotonDoc doc) {
+            throw new IllegalStateException("disk full");
+        }
+
+        @Override
+        public void finish() {
+            finished = true;
+            if (failToFinish) {
+                throw new IllegalStateException("cannot close");
+            }
+        }
+    }
+
+    private PhotonDoc createDoc(long placeId) {
+        return new PhotonDoc(placeId, "N", placeId, "place", "city", null, null, null, null, 0, 0.5, null, null, 0, 30);
+    }
+
+    private List<PhotonDoc> createDocs(long from, int count) {
+        List<PhotonDoc> docs = new ArrayList<>();
+        for (long i = from; i < from + count; i++) {
+            docs.add(createDoc(i));
+        }
+        return docs;
+    }
+
+    @Test
+    public void testAllImportersGetAllDocuments() throws Exception {
+        RecordingImporter first = new RecordingImporter();
+        RecordingImporter second = new RecordingImporter();
+        TeeImporter tee = new TeeImporter(Arrays.asList(first, second), 1500);
+
+        for (PhotonDoc doc : createDocs(0, 2500)) {
+            tee.add(doc);
+        }
+        tee.addAll(createDocs(2500, 10)).get();
+        tee.flush();
+        assertEquals(1, first.flushes);
+        assertEquals(1, second.flushes);
+        assertEquals(2510, first.ids.size());
+
+        tee.add(createDoc(2510));
+        tee.finish();
+
+        for (RecordingImporter importer : Arrays.asList(first, second)) {
+            assertTrue(importer.finished);
+            assertEquals(2511, importer.ids.size());
+            for (int i = 0; i < 2511; i++) {
+                assertEquals(i, (long) importer.ids.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testFailingImporter() throws Exception {
+        RecordingImporter recording = new RecordingImporter();
+        FailingImporter failing = new FailingImporter(false);
+        TeeImporter tee = new TeeImporter(Arrays.asList(recording, failing), 100);
+
+        CompletableFuture<Void> stored = tee.addAll(createDocs(0, 10));
+        try {
+            stored.get();
+            fail("documents of a failing importer must not be acknowledged");
+        } catch (ExecutionException e) {
+            assertEquals("disk full", e.getCause().getMessage());
+        }
+
+        try {
+            tee.finish();
+            fail("the failure of an importer must be reported");
+        } catch (IllegalStateException e) {
+            assertEquals("disk full", e.getCause().getMessage());
+        }
+        // the failed importer is finished as well
+        assertTrue(failing.finished);
+    }
+
+    @Test
+    public void testFailureIsReportedIfImporterCannotFinish() throws Exception {
+        FailingImporter failing = new FailingImporter(true);
+        TeeImporter tee = new TeeImporter(Collections.singletonList(failing), 100);
+
+        tee.add(createDoc(1));
+        try {
+            tee.finish();
+            fail("the failure of an importer must be reported");
+        } catch (IllegalStateException e) {
+            assertEquals("disk full", e.getCause().getMessage());
+        }
+        assertTrue(failing.finished);
+    }
+}
@@ -0,0 +1,64 @@
+package de.komoot.photon.elasticsearch;
+
+import de.komoot.photon.ESBaseTester;
+import de.komoot.photon.FailedDocumentsException;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BulkIndexerTest extends ESBaseTester {
+
+    @Before
+    public void setUp() throws Exception {
+        setUpES();
+    }
+
+    private IndexRequest index(String id) {
+        return new IndexRequest("photon", "place", id).source(Collections.singletonMap("osm_id", Long.parseLong(id)), XContentType.JSON);
+    }
+
+    @Test
+    public void testAddAllReportsOnlyFailedIds() throws Exception {
+        BulkSettings settings = new BulkSettings();
+        settings.setBulkActions(4);
+        BulkIndexer indexer = new BulkIndexer(getClient(), settings, "test");
+
+        // updating a document that does not exist fails, the other requests of the same bulk are stored
+        List<DocWriteRequest<?>> partly = Arrays.asList(index("1"), new UpdateRequest("photon", "place", "2")
+                .doc(Collections.singletonMap("osm_id", 2L), XContentType.JSON), index("3"));
+        CompletableFuture<Void> failed = indexer.addAll(partly);
+        CompletableFuture<Void> stored = indexer.addAll(Arrays.asList(index("4"), index("5")));
+
+        try {
+            failed.get(1, TimeUnit.MINUTES);
+            fail("failed update is not reported");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof FailedDocumentsException);
+            assertEquals(Collections.singleton("2"), ((FailedDocumentsException) e.getCause()).getIds());
+        }
+        stored.get(1, TimeUnit.MINUTES);
+        indexer.close();
+        assertEquals(1, indexer.getFailedActions());
+
+        refresh();
+        for (String id : Arrays.asList("1", "3", "4", "5")) {
+            assertTrue(getClient().prepareGet("photon", "place", id).get().isExists());
+        }
+        assertFalse(getClient().prepareGet("photon", "place", "2").get().isExists());
+    }
+}
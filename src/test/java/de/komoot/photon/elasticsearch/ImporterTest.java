@@ -0,0 +1,53 @@
+package de.komoot.photon.elasticsearch;
+
+import com.google.common.collect.ImmutableMap;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.PrecisionModel;
+import de.komoot.photon.ESBaseTester;
+import de.komoot.photon.PhotonDoc;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class ImporterTest extends ESBaseTester {
+
+    private final GeometryFactory factory = new GeometryFactory(new PrecisionModel(), 4326);
+
+    @Before
+    public void setUp() throws Exception {
+        setUpES();
+    }
+
+    @Test
+    public void testAddAllIsAcknowledged() throws Exception {
+        BulkSettings settings = new BulkSettings();
+        settings.setBulkActions(7);
+        Importer importer = new Importer(getClient(), "en", settings);
+
+        List<CompletableFuture<Void>> stored = new ArrayList<>();
+        for (int batch = 0; batch < 4; batch++) {
+            List<PhotonDoc> docs = new ArrayList<>();
+            for (int i = 1; i <= 5; i++) {
+                long id = batch * 10 + i;
+                docs.add(new PhotonDoc(id, "N", id, "place", "city", ImmutableMap.of("name", "city " + id), null, null, null, 0, 0.5,
+                        null, factory.createPoint(new Coordinate(10., 47.)), 0, 16));
+            }
+            stored.add(importer.addAll(docs));
+        }
+
+        // completes without a flush once the bulks have returned, the last bulk is sent by the flush interval
+        CompletableFuture.allOf(stored.toArray(new CompletableFuture<?>[0])).get(1, TimeUnit.MINUTES);
+        importer.finish();
+        refresh();
+        assertEquals(20, importer.count());
+        assertEquals(20, importer.getDocuments());
+        assertEquals(0, importer.getFailedDocuments());
+    }
+}
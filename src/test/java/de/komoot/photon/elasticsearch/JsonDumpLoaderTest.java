@@ -0,0 +1,88 @@
+package de.komoot.photon.elasticsearch;
+
+import com.google.common.collect.ImmutableMap;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.PrecisionModel;
+import de.komoot.photon.ESBaseTester;
+import de.komoot.photon.JsonDumper;
+import de.komoot.photon.PhotonDoc;
+import org.junit.Before;
+import org.apache.commons.io.FileUtils;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class JsonDumpLoaderTest extends ESBaseTester {
+
+    private final GeometryFactory factory = new GeometryFactory(new PrecisionModel(), 4326);
+
+    @Before
+    public void setUp() throws Exception {
+        setUpES();
+    }
+
+    @Test
+    public void testFindDocumentsEnd() {
+        byte[] chunk = "{\"index\": {}}\n{\"a\": 1}\n{\"index\": {}}\n{\"a\"".getBytes(StandardCharsets.UTF_8);
+        assertEquals(23, JsonDumpLoader.findDocumentsEnd(chunk, chunk.length));
+        assertEquals(0, JsonDumpLoader.findDocumentsEnd(chunk, 20));
+    }
+
+    @Test
+    public void testLoadDump() throws Exception {
+        File dump = File.createTempFile("photon-dump", ".json");
+        dump.deleteOnExit();
+
+        JsonDumper dumper = new JsonDumper(dump.getPath(), "en");
+        for (int i = 1; i <= 25; i++) {
+            dumper.add(createDoc(i));
+        }
+        PhotonDoc house = new PhotonDoc(26, "N", 26, "place", "house", ImmutableMap.of(), "4\"a", null, null, 0, 0.5,
+                null, factory.createPoint(new Coordinate(10., 47.)), 0, 30);
+        dumper.add(house);
+        dumper.finish();
+
+        assertEquals(26, new JsonDumpLoader(getClient(), new BulkSettings()).load(dump));
+        refresh();
+
+        assertEquals(26, new Importer(getClient(), "en").count());
+        assertTrue(getClient().prepareGet("photon", "place", "26.4\"a").get().isExists());
+    }
+
+    @Test
+    public void testLoadShardedDump() throws Exception {
+        File directory = Files.createTempDirectory("photon-dump").toFile();
+        try {
+            File manifest = new File(directory, "dump.json");
+            JsonDumper dumper = new JsonDumper(manifest.getPath(), "en", 3, true, 1);
+            for (int i = 1; i <= 30; i++) {
+                dumper.add(createDoc(i));
+            }
+            dumper.finish();
+
+            JSONObject json = new JSONObject(FileUtils.readFileToString(manifest, StandardCharsets.UTF_8));
+            assertEquals(30, json.getLong("documents"));
+            // every part is closed once it holds a document
+            assertEquals(30, json.getJSONArray("parts").length());
+            assertTrue(new File(directory, "dump.002.0009.json.gz").exists());
+
+            assertEquals(30, new JsonDumpLoader(getClient(), new BulkSettings()).load(manifest));
+            refresh();
+            assertEquals(30, new Importer(getClient(), "en").count());
+        } finally {
+            FileUtils.deleteDirectory(directory);
+        }
+    }
+
+    private PhotonDoc createDoc(int id) {
+        return new PhotonDoc(id, "N", id, "place", "city", ImmutableMap.of("name", "city " + id), null, null, null, 0, 0.5,
+                null, factory.createPoint(new Coordinate(10., 47.)), 0, 16);
+    }
+}
@@ -0,0 +1,109 @@
+package de.komoot.photon.elasticsearch;
+
+import com.google.common.collect.ImmutableMap;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.PrecisionModel;
+import de.komoot.photon.ESBaseTester;
+import de.komoot.photon.PhotonDoc;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ServerTest extends ESBaseTester {
+
+    private final GeometryFactory factory = new GeometryFactory(new PrecisionModel(), 4326);
+
+    @Before
+    public void setUp() throws Exception {
+        setUpES();
+    }
+
+    @Test
+    public void testActivateIndex() throws Exception {
+        Server server = getServer();
+        String first = importIndex(server, 3);
+        server.activateIndex(first, 1, 3, 0);
+        assertEquals(3, new Importer(getClient(), "en").count());
+
+        String second = importIndex(server, 5);
+        // the first index keeps serving during the import
+        assertEquals(3, new Importer(getClient(), "en").count());
+        server.activateIndex(second, 0, 5, 0);
+        assertEquals(5, new Importer(getClient(), "en").count());
+
+        assertFalse(getClient().admin().indices().prepareExists(first).get().isExists());
+        assertTrue(getClient().admin().indices().prepareGetAliases(Server.ALIAS).get().getAliases().containsKey(second));
+    }
+
+    @Test
+    public void testEmptyIndexIsNotActivated() throws Exception {
+        Server server = getServer();
+        String index = importIndex(server, 2);
+        server.activateIndex(index, 1, 2, 0);
+
+        String empty = server.createIndex();
+        try {
+            server.activateIndex(empty, 1, -1, 0);
+            fail("an empty index must not be activated");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(2, new Importer(getClient(), "en").count());
+    }
+
+    @Test
+    public void testIndexWithFailedDocumentsIsNotActivated() throws Exception {
+        Server server = getServer();
+        String index = importIndex(server, 2);
+        server.activateIndex(index, 1, 2, 0);
+
+        String failed = importIndex(server, 4);
+        try {
+            server.activateIndex(failed, 1, 5, 1);
+            fail("an index with failed documents must not be activated");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(2, new Importer(getClient(), "en").count());
+        assertTrue(getClient().admin().indices().prepareGetAliases(Server.ALIAS).get().getAliases().containsKey(index));
+    }
+
+    @Test
+    public void testIndexWithMissingDocumentsIsNotActivated() throws Exception {
+        Server server = getServer();
+        String index = importIndex(server, 2);
+        server.activateIndex(index, 1, 2, 0);
+
+        String incomplete = importIndex(server, 4);
+        try {
+            server.activateIndex(incomplete, 1, 5, 0);
+            fail("an index with less documents than imported must not be activated");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(2, new Importer(getClient(), "en").count());
+        assertTrue(getClient().admin().indices().prepareGetAliases(Server.ALIAS).get().getAliases().containsKey(index));
+
+        // unknown after a resumed import
+        server.activateIndex(incomplete, 1, -1, 0);
+        assertEquals(4, new Importer(getClient(), "en").count());
+    }
+
+    private String importIndex(Server server, int documents) throws Exception {
+        String index = server.createIndex();
+        server.applyImportSettings(index);
+        Importer importer = new Importer(getClient(), index, "en", new BulkSettings());
+        for (int i = 1; i <= documents; i++) {
+            importer.add(new PhotonDoc(i, "N", i, "place", "city", ImmutableMap.of("name", "city " + i), null, null, null, 0, 0.5,
+                    null, factory.createPoint(new Coordinate(10., 47.)), 0, 16));
+        }
+        importer.finish();
+        server.finishImport(index, 0);
+        return index;
+    }
+}
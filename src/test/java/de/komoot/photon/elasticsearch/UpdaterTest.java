@@ -0,0 +1,130 @@
+package de.komoot.photon.elasticsearch;
+
+import com.google.common.collect.ImmutableMap;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.PrecisionModel;
+import de.komoot.photon.ESBaseTester;
+import de.komoot.photon.FailedDocumentsException;
+import de.komoot.photon.PhotonDoc;
+import org.elasticsearch.action.get.GetResponse;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class UpdaterTest extends ESBaseTester {
+
+    private final GeometryFactory factory = new GeometryFactory(new PrecisionModel(), 4326);
+
+    @Before
+    public void setUp() throws Exception {
+        setUpES();
+    }
+
+    private PhotonDoc createDoc(String name, String housenumber) {
+        return createDoc(42, name, housenumber);
+    }
+
+    private PhotonDoc createDoc(long placeId, String name, String housenumber) {
+        return new PhotonDoc(placeId, "N", placeId, "place", "house", ImmutableMap.of("name", name), housenumber, null, null, 0, 0.5,
+                null, factory.createPoint(new Coordinate(10., 47.)), 0, 30);
+    }
+
+    @Test
+    public void testReplaceDeletesRemovedHouseNumber() throws Exception {
+        Updater updater = new Updater(getClient(), "en");
+
+        updater.replace(42, 42, Collections.singletonList(createDoc("old name", "12")));
+        updater.commit().get(1, TimeUnit.MINUTES);
+        refresh();
+        updater.replace(42, 42, Collections.singletonList(createDoc("new name", null)));
+        updater.commit().get(1, TimeUnit.MINUTES);
+        refresh();
+
+        GetResponse response = getClient().prepareGet(Server.ALIAS, "place", "42").get();
+        Map<String, Object> source = response.getSource();
+        assertEquals("new name", ((Map<?, ?>) source.get("name")).get("default"));
+        assertFalse(source.containsKey("housenumber"));
+        assertFalse(getClient().prepareGet(Server.ALIAS, "place", "42.12").get().isExists());
+    }
+
+    private List<PhotonDoc> createInterpolation(long placeId, int from, int to) {
+        List<PhotonDoc> docs = new ArrayList<>();
+        for (int number = from; number <= to; number++) {
+            docs.add(createDoc(placeId, "", String.valueOf(number)));
+        }
+        return docs;
+    }
+
+    @Test
+    public void testReplaceDeletesNumbersOfShrunkInterpolation() throws Exception {
+        Updater updater = new Updater(getClient(), "en");
+
+        updater.replace(42, 42, createInterpolation(42, 2, 10));
+        // another place with the same osm id is not touched
+        updater.create(new PhotonDoc(43, "W", 42, "place", "house", ImmutableMap.of("name", "other"), "7", null, null, 0, 0.5,
+                null, factory.createPoint(new Coordinate(10., 47.)), 0, 30));
+        updater.commit().get(1, TimeUnit.MINUTES);
+        refresh();
+        updater.replace(42, 42, createInterpolation(42, 2, 5));
+        updater.commit().get(1, TimeUnit.MINUTES);
+        refresh();
+
+        for (int number = 2; number <= 10; number++) {
+            assertEquals("number " + number, number <= 5, getClient().prepareGet(Server.ALIAS, "place", "42." + number).get().isExists());
+        }
+        assertTrue(getClient().prepareGet(Server.ALIAS, "place", "43.7").get().isExists());
+
+        updater.replace(42, 42, Collections.emptyList());
+        updater.commit().get(1, TimeUnit.MINUTES);
+        refresh();
+        assertEquals(1, getClient().prepareSearch(Server.ALIAS).setSize(0).get().getHits().getTotalHits().value);
+    }
+
+    @Test
+    public void testChangesAreSentInBulks() throws Exception {
+        BulkSettings settings = new BulkSettings();
+        settings.setBulkActions(100);
+        Updater updater = new Updater(getClient(), "en", settings);
+
+        for (long id = 1; id <= 2500; id++) {
+            updater.create(createDoc(id, "house " + id, null));
+        }
+        for (long id = 1; id <= 500; id++) {
+            updater.delete(id);
+        }
+        updater.commit().get(1, TimeUnit.MINUTES);
+        refresh();
+
+        assertEquals(2000, getClient().prepareSearch(Server.ALIAS).setSize(0).get().getHits().getTotalHits().value);
+    }
+
+    @Test
+    public void testFailedChangesAreReported() throws Exception {
+        Updater updater = new Updater(getClient(), "en");
+
+        updater.create(createDoc(1, "house 1", null));
+        // a partial update of a document that does not exist fails
+        updater.update(createDoc(2, "house 2", null));
+        try {
+            updater.commit().get(1, TimeUnit.MINUTES);
+            fail("the failed update must be reported");
+        } catch (ExecutionException e) {
+            assertEquals(Collections.singleton("2"), ((FailedDocumentsException) e.getCause()).getIds());
+        }
+        refresh();
+
+        assertTrue(getClient().prepareGet(Server.ALIAS, "place", "1").get().isExists());
+    }
+}
@@ -0,0 +1,117 @@
+package de.komoot.photon.nominatim;
+
+import com.google.common.collect.ImmutableList;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.io.WKBWriter;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BinaryCopyReaderTest {
+
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private final DataOutputStream out = new DataOutputStream(bytes);
+
+    private void writeHeader() throws IOException {
+        out.write(new byte[]{'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xff, '\r', '\n', 0});
+        out.writeInt(0);
+        out.writeInt(0);
+    }
+
+    private void writeText(String value) throws IOException {
+        byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(encoded.length);
+        out.write(encoded);
+    }
+
+    private BinaryCopyReader reader(String... columns) throws IOException {
+        out.writeShort(-1);
+        return new BinaryCopyReader(new ByteArrayInputStream(bytes.toByteArray()), ImmutableList.copyOf(columns));
+    }
+
+    @Test
+    public void testReadRows() throws IOException {
+        writeHeader();
+        for (long placeId = 1; placeId <= 2; placeId++) {
+            out.writeShort(5);
+            out.writeInt(8);
+            out.writeLong(placeId);
+            out.writeInt(4);
+            out.writeInt(30);
+            out.writeInt(8);
+            out.writeDouble(0.5);
+            writeText("straße " + placeId);
+            out.writeInt(-1);
+        }
+
+        BinaryCopyReader reader = reader("place_id", "rank_search", "importance", "name", "postcode");
+        assertTrue(reader.next());
+        assertEquals(1, reader.getLong("place_id"));
+        assertTrue(reader.next());
+        assertEquals(2, reader.getLong("place_id"));
+        assertEquals(30, reader.getInt("rank_search"));
+        assertEquals(0.5, reader.getDouble("importance"), 0);
+        assertEquals("straße 2", reader.getString("name"));
+        assertTrue(reader.isNull("postcode"));
+        assertNull(reader.getString("postcode"));
+        assertFalse(reader.next());
+    }
+
+    @Test
+    public void testReadHstore() throws IOException {
+        writeHeader();
+        out.writeShort(2);
+        ByteArrayOutputStream hstore = new ByteArrayOutputStream();
+        DataOutputStream hstoreOut = new DataOutputStream(hstore);
+        hstoreOut.writeInt(2);
+        for (String text : new String[]{"name", "Berlin", "name:de"}) {
+            byte[] encoded = text.getBytes(StandardCharsets.UTF_8);
+            hstoreOut.writeInt(encoded.length);
+            hstoreOut.write(encoded);
+        }
+        hstoreOut.writeInt(-1);
+        out.writeInt(hstore.size());
+        out.write(hstore.toByteArray(), 0, hstore.size());
+        out.writeInt(-1);
+
+        BinaryCopyReader reader = reader("name", "extratags");
+        assertTrue(reader.next());
+        Map<String, String> name = reader.getMap("name");
+        assertEquals(2, name.size());
+        assertEquals("Berlin", name.get("name"));
+        assertTrue(name.containsKey("name:de"));
+        assertNull(name.get("name:de"));
+        assertTrue(reader.getMap("extratags").isEmpty());
+    }
+
+    @Test
+    public void testReadGeometry() throws IOException {
+        Point point = new GeometryFactory().createPoint(new Coordinate(13.4, 52.5));
+        point.setSRID(4326);
+        byte[] ewkb = new WKBWriter(2, true).write(point);
+
+        writeHeader();
+        out.writeShort(1);
+        out.writeInt(ewkb.length);
+        out.write(ewkb);
+
+        BinaryCopyReader reader = reader("centroid");
+        assertTrue(reader.next());
+        Point read = (Point) reader.getGeometry("centroid");
+        assertEquals(13.4, read.getX(), 0);
+        assertEquals(52.5, read.getY(), 0);
+        assertEquals(4326, read.getSRID());
+    }
+}
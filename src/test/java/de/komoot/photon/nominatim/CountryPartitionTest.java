@@ -0,0 +1,51 @@
+package de.komoot.photon.nominatim;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class CountryPartitionTest {
+
+    @Test
+    public void testOnePartitionPerCountry() {
+        List<CountryPartition> partitions = CountryPartition.create(ImmutableList.of("DE", "", "fr", "de"), false);
+
+        assertEquals(2, partitions.size());
+        assertEquals("de", partitions.get(0).getName());
+        assertEquals("AND country_code = 'de'", partitions.get(0).getConditions());
+        assertEquals("fr", partitions.get(1).getName());
+    }
+
+    @Test
+    public void testOthersCoverRemainingPlaces() {
+        List<CountryPartition> partitions = CountryPartition.create(ImmutableList.of("de", "fr"), true);
+
+        assertEquals(3, partitions.size());
+        assertEquals(CountryPartition.OTHER, partitions.get(2).getName());
+        assertEquals("AND (country_code IS NULL OR country_code NOT IN ('de','fr'))", partitions.get(2).getConditions());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidCountryCode() {
+        CountryPartition.create(ImmutableList.of("deu"), false);
+    }
+
+    @Test
+    public void testLargestFirst() {
+        List<CountryPartition> partitions = CountryPartition.create(ImmutableList.of("li", "de", "fr"), true);
+        partitions.get(0).setExpectedRows(100);
+        partitions.get(1).setExpectedRows(30000);
+        partitions.get(2).setExpectedRows(20000);
+        partitions.get(3).setExpectedRows(500);
+
+        CountryPartition.sortLargestFirst(partitions);
+
+        assertEquals("de", partitions.get(0).getName());
+        assertEquals("fr", partitions.get(1).getName());
+        assertEquals(CountryPartition.OTHER, partitions.get(2).getName());
+        assertEquals("li", partitions.get(3).getName());
+    }
+}
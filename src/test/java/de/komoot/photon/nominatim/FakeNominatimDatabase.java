@@ -0,0 +1,384 @@
+package de.komoot.photon.nominatim;
+
+import org.openstreetmap.osmosis.hstore.PGHStore;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementSetter;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.RowMapper;
+
+import java.lang.reflect.Proxy;
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In memory stand-in for the tables of a nominatim database, answers the address queries of {@link NominatimConnector}
+ * and the status queries of {@link NominatimUpdater}.
+ */
+class FakeNominatimDatabase extends JdbcTemplate {
+
+    private final Map<Long, Map<String, Object>> places = new HashMap<>();
+    private final Map<Long, List<Long>> addressLines = new TreeMap<>();
+    /**
+     * table -> place id -> rank_search, geometry_sector, indexed_status
+     */
+    private final Map<String, Map<Long, int[]>> changes = new HashMap<>();
+    private final AtomicInteger queries = new AtomicInteger();
+    private volatile RuntimeException failure;
+    private volatile CyclicBarrier claimBarrier;
+
+    /**
+     * adds a place of placex that is part of the address of other places
+     */
+    void addAddressPlace(long placeId, String name, String osmKey, String osmValue, int rankAddress) {
+        Map<String, Object> row = new HashMap<>();
+        row.put("place_id", placeId);
+        row.put("osm_type", "R");
+        row.put("osm_id", placeId * 10);
+        row.put("name", new PGHStore(Collections.singletonMap("name", name)));
+        row.put("class", osmKey);
+        row.put("type", osmValue);
+        row.put("rank_address", rankAddress);
+        places.put(placeId, row);
+    }
+
+    /**
+     * adds an address line of place_addressline, the lines of a place are returned in the order they are added
+     */
+    void addAddressLine(long placeId, long addressPlaceId) {
+        addressLines.computeIfAbsent(placeId, k -> new ArrayList<>()).add(addressPlaceId);
+    }
+
+    /**
+     * all following queries fail
+     */
+    void setFailure(RuntimeException failure) {
+        this.failure = failure;
+    }
+
+    /**
+     * adds a place of placex or location_property_osmline with an indexed_status
+     */
+    synchronized void addChangedPlace(String table, long placeId, int rankSearch, int geometrySector, int indexedStatus) {
+        changes.computeIfAbsent(table, k -> new TreeMap<>()).put(placeId, new int[] {rankSearch, geometrySector, indexedStatus});
+    }
+
+    synchronized void setIndexedStatus(String table, long placeId, int indexedStatus) {
+        changes.get(table).get(placeId)[2] = indexedStatus;
+    }
+
+    synchronized int getIndexedStatus(String table, long placeId) {
+        return changes.get(table).get(placeId)[2];
+    }
+
+    /**
+     * the claims of changed places wait for each other at the barrier
+     */
+    void setClaimBarrier(CyclicBarrier claimBarrier) {
+        this.claimBarrier = claimBarrier;
+    }
+
+    int getQueries() {
+        return queries.get();
+    }
+
+    @Override
+    public List<Map<String, Object>> queryForList(String sql, Object... args) {
+        if (!sql.contains("from placex where rank_search = ?")) {
+            throw new UnsupportedOperationException(sql);
+        }
+        return getSectors("placex", (Integer) args[0]);
+    }
+
+    @Override
+    public List<Map<String, Object>> queryForList(String sql) {
+        if (!sql.contains("from location_property_osmline where indexed_status > 0")) {
+            throw new UnsupportedOperationException(sql);
+        }
+        return getSectors("location_property_osmline", null);
+    }
+
+    @Override
+    public <T> List<T> query(String sql, PreparedStatementSetter pss, RowMapper<T> rowMapper) {
+        if (!sql.contains("set indexed_status = 0 where place_id = ANY(?) and indexed_status = ? returning place_id")) {
+            throw new UnsupportedOperationException(sql);
+        }
+        Object[] parameters = bind(pss);
+        if (claimBarrier != null) {
+            try {
+                claimBarrier.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException | BrokenBarrierException | TimeoutException e) {
+                throw new IllegalStateException("claims do not run in parallel", e);
+            }
+        }
+        List<T> rows = new ArrayList<>();
+        for (Long placeId : setIndexedStatus(getTable(sql), toPlaceIds(parameters[0]), 0, (Integer) parameters[1])) {
+            rows.add(mapRow(rowMapper, Collections.singletonMap("place_id", placeId)));
+        }
+        return rows;
+    }
+
+    @Override
+    public int update(String sql, PreparedStatementSetter pss) {
+        if (!sql.contains("set indexed_status = ? where place_id = ANY(?) and indexed_status = ?")) {
+            throw new UnsupportedOperationException(sql);
+        }
+        Object[] parameters = bind(pss);
+        return setIndexedStatus(getTable(sql), toPlaceIds(parameters[1]), (Integer) parameters[0], (Integer) parameters[2]).size();
+    }
+
+    @Override
+    public int update(String sql) {
+        if (!sql.contains("update import_status set indexed=true")) {
+            throw new UnsupportedOperationException(sql);
+        }
+        return 1;
+    }
+
+    private static String getTable(String sql) {
+        return sql.split(" ")[1];
+    }
+
+    /**
+     * @param rankSearch null for all ranks
+     */
+    private synchronized List<Map<String, Object>> getSectors(String table, Integer rankSearch) {
+        Map<Integer, Long> counts = new TreeMap<>();
+        for (int[] place : changes.getOrDefault(table, Collections.emptyMap()).values()) {
+            if ((rankSearch == null || place[0] == rankSearch) && place[2] > 0) {
+                counts.merge(place[1], 1L, Long::sum);
+            }
+        }
+        List<Map<String, Object>> sectors = new ArrayList<>();
+        for (Map.Entry<Integer, Long> count : counts.entrySet()) {
+            Map<String, Object> sector = new HashMap<>();
+            sector.put("geometry_sector", count.getKey());
+            sector.put("count", count.getValue());
+            sectors.add(sector);
+        }
+        return sectors;
+    }
+
+    /**
+     * @param rankSearch null for all ranks
+     */
+    private synchronized List<Map<String, Object>> getChangedPlaces(String table, Integer rankSearch, int geometrySector) {
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (Map.Entry<Long, int[]> place : changes.getOrDefault(table, Collections.emptyMap()).entrySet()) {
+            int[] row = place.getValue();
+            if ((rankSearch == null || row[0] == rankSearch) && row[1] == geometrySector && row[2] > 0) {
+                Map<String, Object> columns = new HashMap<>();
+                columns.put("place_id", place.getKey());
+                columns.put("osm_id", place.getKey() * 10);
+                columns.put("indexed_status", row[2]);
+                rows.add(columns);
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * @return the places that had the expected status
+     */
+    private synchronized List<Long> setIndexedStatus(String table, List<Long> placeIds, int indexedStatus, int expectedStatus) {
+        List<Long> changed = new ArrayList<>();
+        for (Long placeId : placeIds) {
+            int[] row = changes.get(table).get(placeId);
+            if (row != null && row[2] == expectedStatus) {
+                row[2] = indexedStatus;
+                changed.add(placeId);
+            }
+        }
+        return changed;
+    }
+
+    @Override
+    public <T> List<T> query(String sql, Object[] args, RowMapper<T> rowMapper) {
+        List<T> rows = new ArrayList<>();
+        if (sql.contains("from placex where rank_search = ?")) {
+            for (Map<String, Object> row : getChangedPlaces("placex", (Integer) args[0], (Integer) args[1])) {
+                rows.add(mapRow(rowMapper, row));
+            }
+            return rows;
+        }
+        if (sql.contains("from location_property_osmline where geometry_sector = ?")) {
+            for (Map<String, Object> row : getChangedPlaces("location_property_osmline", null, (Integer) args[0])) {
+                rows.add(mapRow(rowMapper, row));
+            }
+            return rows;
+        }
+        long placeId = ((Number) args[0]).longValue();
+        startQuery();
+        if (sql.contains("pa.place_id = ?")) {
+            for (Long addressPlaceId : getAddressLines(placeId)) {
+                rows.add(mapRow(rowMapper, places.get(addressPlaceId)));
+            }
+        } else if (sql.contains("FROM placex p WHERE p.place_id = ?")) {
+            if (places.containsKey(placeId)) {
+                rows.add(mapRow(rowMapper, places.get(placeId)));
+            }
+        } else {
+            throw new UnsupportedOperationException(sql);
+        }
+        return rows;
+    }
+
+    @Override
+    public void query(String sql, PreparedStatementSetter pss, RowCallbackHandler rch) {
+        List<Long> placeIds = toPlaceIds(bind(pss)[0]);
+        startQuery();
+        if (sql.contains("pa.address_place_id FROM")) {
+            for (Long placeId : addressLines.keySet()) {
+                if (placeIds.contains(placeId)) {
+                    for (Long addressPlaceId : getAddressLines(placeId)) {
+                        Map<String, Object> row = new HashMap<>();
+                        row.put("place_id", placeId);
+                        row.put("address_place_id", addressPlaceId);
+                        processRow(rch, row);
+                    }
+                }
+            }
+        } else if (sql.contains("FROM placex p WHERE p.place_id = ANY(?)")) {
+            for (Long placeId : placeIds) {
+                if (places.containsKey(placeId)) {
+                    processRow(rch, places.get(placeId));
+                }
+            }
+        } else {
+            throw new UnsupportedOperationException(sql);
+        }
+    }
+
+    /**
+     * @return the address places of a place that exist in placex, without the place itself
+     */
+    private List<Long> getAddressLines(long placeId) {
+        List<Long> addressPlaceIds = new ArrayList<>();
+        for (Long addressPlaceId : addressLines.getOrDefault(placeId, Collections.emptyList())) {
+            if (addressPlaceId != placeId && places.containsKey(addressPlaceId)) {
+                addressPlaceIds.add(addressPlaceId);
+            }
+        }
+        return addressPlaceIds;
+    }
+
+    private void startQuery() {
+        if (failure != null) {
+            throw failure;
+        }
+        queries.incrementAndGet();
+    }
+
+    private static <T> T mapRow(RowMapper<T> rowMapper, Map<String, Object> row) {
+        try {
+            return rowMapper.mapRow(resultSet(row), 0);
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void processRow(RowCallbackHandler rch, Map<String, Object> row) {
+        try {
+            rch.processRow(resultSet(row));
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static List<Long> toPlaceIds(Object array) {
+        List<Long> placeIds = new ArrayList<>();
+        for (Object placeId : (Object[]) array) {
+            placeIds.add(((Number) placeId).longValue());
+        }
+        return placeIds;
+    }
+
+    /**
+     * @return the parameters the setter binds, arrays as Object[]
+     */
+    static Object[] bind(PreparedStatementSetter pss) {
+        Map<Integer, Object> parameters = new TreeMap<>();
+        Connection connection = proxy(Connection.class, (method, args) -> {
+            if (method.equals("createArrayOf")) {
+                Object[] elements = (Object[]) args[1];
+                return proxy(Array.class, (arrayMethod, arrayArgs) -> elements);
+            }
+            throw new UnsupportedOperationException(method);
+        });
+        PreparedStatement ps = proxy(PreparedStatement.class, (method, args) -> {
+            if (method.equals("getConnection")) {
+                return connection;
+            }
+            if (method.equals("setArray")) {
+                try {
+                    parameters.put((Integer) args[0], ((Array) args[1]).getArray());
+                } catch (SQLException e) {
+                    throw new IllegalStateException(e);
+                }
+                return null;
+            }
+            if (method.startsWith("set")) {
+                parameters.put((Integer) args[0], args[1]);
+                return null;
+            }
+            throw new UnsupportedOperationException(method);
+        });
+        try {
+            pss.setValues(ps);
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+        return parameters.values().toArray();
+    }
+
+    /**
+     * @return a result set positioned on the single row
+     */
+    static ResultSet resultSet(Map<String, Object> row) {
+        Object[] last = new Object[1];
+        return proxy(ResultSet.class, (method, args) -> {
+            if (method.equals("wasNull")) {
+                return last[0] == null;
+            }
+            last[0] = row.get((String) args[0]);
+            switch (method) {
+                case "getObject":
+                    return last[0];
+                case "getString":
+                    return last[0] == null ? null : last[0].toString();
+                case "getLong":
+                    return last[0] == null ? 0L : ((Number) last[0]).longValue();
+                case "getInt":
+                    return last[0] == null ? 0 : ((Number) last[0]).intValue();
+                case "getDouble":
+                    return last[0] == null ? 0d : ((Number) last[0]).doubleValue();
+                default:
+                    throw new UnsupportedOperationException(method);
+            }
+        });
+    }
+
+    private interface Handler {
+
+        Object invoke(String method, Object[] args);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, Handler handler) {
+        return (T) Proxy.newProxyInstance(FakeNominatimDatabase.class.getClassLoader(), new Class<?>[] {type},
+                (instance, method, args) -> handler.invoke(method.getName(), args));
+    }
+}
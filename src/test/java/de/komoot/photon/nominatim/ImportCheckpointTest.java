@@ -0,0 +1,76 @@
+package de.komoot.photon.nominatim;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ImportCheckpointTest {
+
+    @Test
+    public void testCompletedSectorFollowsOldestPendingBatch() {
+        SectorProgress progress = new SectorProgress();
+        assertEquals(SectorProgress.NO_SECTOR, progress.getCompletedSector());
+
+        long first = progress.begin(10, 12);
+        long second = progress.begin(12, 15);
+        assertEquals(9, progress.getCompletedSector());
+
+        progress.done(second);
+        assertEquals(9, progress.getCompletedSector());
+
+        progress.done(first);
+        // sector 15 may continue in the next batch
+        assertEquals(14, progress.getCompletedSector());
+
+        progress.finish();
+        assertEquals(SectorProgress.ALL_SECTORS, progress.getCompletedSector());
+    }
+
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        File file = File.createTempFile("photon-checkpoint", ".properties");
+        file.deleteOnExit();
+
+        ImportCheckpoint checkpoint = ImportCheckpoint.create(file);
+        checkpoint.setParameter("country_codes", "de,at");
+        checkpoint.setRanges("placex", ImmutableList.of(new SectorRange(Long.MIN_VALUE, 100), new SectorRange(100, Long.MAX_VALUE)));
+        SectorProgress progress = new SectorProgress();
+        progress.done(progress.begin(120, 130));
+        checkpoint.track("placex", 1, progress);
+        checkpoint.save();
+
+        ImportCheckpoint loaded = ImportCheckpoint.load(file);
+        assertEquals("de,at", loaded.getParameter("country_codes"));
+        List<SectorRange> ranges = loaded.getRanges("placex");
+        assertEquals(2, ranges.size());
+        assertEquals(100, ranges.get(0).getTo());
+        assertEquals(Long.MAX_VALUE, ranges.get(1).getTo());
+        assertEquals(SectorProgress.NO_SECTOR, loaded.getCompletedSector("placex", 0));
+        assertEquals(129, loaded.getCompletedSector("placex", 1));
+        assertNull(loaded.getRanges("location_property_osmline"));
+    }
+
+    @Test
+    public void testCompletedSectorNeverGoesBack() throws Exception {
+        File file = File.createTempFile("photon-checkpoint", ".properties");
+        file.deleteOnExit();
+
+        ImportCheckpoint checkpoint = ImportCheckpoint.create(file);
+        SectorProgress progress = new SectorProgress();
+        progress.done(progress.begin(50, 60));
+        checkpoint.track("placex", 0, progress);
+        checkpoint.save();
+
+        // a resumed import starts without progress
+        ImportCheckpoint resumed = ImportCheckpoint.load(file);
+        resumed.track("placex", 0, new SectorProgress());
+        resumed.save();
+
+        assertEquals(59, ImportCheckpoint.load(file).getCompletedSector("placex", 0));
+    }
+}
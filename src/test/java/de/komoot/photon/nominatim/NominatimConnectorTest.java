@@ -1,15 +1,302 @@
 package de.komoot.photon.nominatim;
 
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import de.komoot.photon.FailedDocumentsException;
+import de.komoot.photon.Importer;
+import de.komoot.photon.PhotonDoc;
+import de.komoot.photon.ReflectionTestUtil;
+import de.komoot.photon.nominatim.model.AddressRow;
+import de.komoot.photon.utils.HandOffQueue;
+import de.komoot.photon.utils.LongLruCache;
+import org.junit.Before;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class NominatimConnectorTest {
 
+    private final GeometryFactory factory = new GeometryFactory();
+    private FakeNominatimDatabase database;
+    private NominatimConnector connector;
+
+    @Before
+    public void setUp() {
+        database = new FakeNominatimDatabase();
+        connector = new NominatimConnector("localhost", 5432, "nominatim", "nominatim", "");
+        ReflectionTestUtil.setFieldValue(connector, NominatimConnector.class, "template", database);
+    }
+
+    private PhotonDoc createDoc(long placeId, long parentPlaceId, int rankSearch) {
+        return new PhotonDoc(placeId, "N", placeId, "place", "house", Collections.emptyMap(), null, Collections.emptyMap(),
+                null, parentPlaceId, 0, null, factory.createPoint(new Coordinate(1, 1)), 0, rankSearch);
+    }
+
     @Test
     public void testConvertCountryCode() {
         assertEquals("", NominatimConnector.convertCountryCode("".split(",")));
         assertEquals("'uk'", NominatimConnector.convertCountryCode("uk".split(",")));
         assertEquals("'uk','de'", NominatimConnector.convertCountryCode("uk,de".split(",")));
     }
-}
\ No newline at end of file
+
+    private static List<Long> getPlaceIds(List<AddressRow> addresses) {
+        List<Long> placeIds = new ArrayList<>();
+        for (AddressRow address : addresses) {
+            placeIds.add(address.getPlaceId());
+        }
+        return placeIds;
+    }
+
+    @Test
+    public void testBatchedAddressesMatchSingleLookups() {
+        database.addAddressPlace(1000, "Berlin", "place", "city", 16);
+        database.addAddressPlace(1001, "Brandenburg", "boundary", "administrative", 8);
+        database.addAddressPlace(1002, "Hauptstraße", "highway", "residential", 26);
+        database.addAddressPlace(1003, "Mitte", "place", "suburb", 20);
+        database.addAddressLine(1, 1003);
+        database.addAddressLine(1, 1000);
+        database.addAddressLine(1, 1001);
+        database.addAddressLine(1, 1);
+        database.addAddressLine(1002, 1000);
+        database.addAddressLine(1002, 1001);
+
+        List<PhotonDoc> docs = Arrays.asList(
+                createDoc(1, 1002, 26),
+                // two POIs sharing their parent street
+                createDoc(2, 1002, 30),
+                createDoc(3, 1002, 30),
+                // no address lines at all, with and without a parent in placex
+                createDoc(4, 0, 20),
+                createDoc(5, 9999, 30),
+                // the parent street itself
+                createDoc(1002, 1000, 26));
+
+        LongLruCache<AddressRow> cache = new LongLruCache<>(100);
+        List<List<AddressRow>> batched = connector.getAddresses(docs, cache);
+        assertEquals(docs.size(), batched.size());
+        for (int i = 0; i < docs.size(); i++) {
+            assertEquals("addresses of place " + docs.get(i).getPlaceId(), getPlaceIds(connector.getAddresses(docs.get(i))),
+                    getPlaceIds(batched.get(i)));
+        }
+        assertEquals(Arrays.asList(1003L, 1000L, 1001L), getPlaceIds(batched.get(0)));
+        assertEquals(Arrays.asList(1002L, 1000L, 1001L), getPlaceIds(batched.get(1)));
+        assertEquals(Collections.emptyList(), batched.get(3));
+        assertEquals(Collections.emptyList(), batched.get(4));
+
+        // the second time the address rows come from the cache, only the parent missing in placex is looked up again
+        int queries = database.getQueries();
+        List<List<AddressRow>> cached = connector.getAddresses(docs, cache);
+        assertEquals(queries + 2, database.getQueries());
+        for (int i = 0; i < docs.size(); i++) {
+            assertEquals(getPlaceIds(batched.get(i)), getPlaceIds(cached.get(i)));
+        }
+    }
+
+    @Test
+    public void testCompletionKeepsOrderWithinBatches() throws Exception {
+        HandOffQueue<NominatimConnector.DocumentChunk> documents = new HandOffQueue<>(1024 * 1024, NominatimConnector.DocumentChunk::estimateSize);
+        NominatimConnector.CompletionWorkers workers = connector.new CompletionWorkers(3, new LongLruCache<>(100), documents);
+
+        Map<NominatimConnector.Batch, List<String>> handedOver = new IdentityHashMap<>();
+        Map<NominatimConnector.Batch, Boolean> finished = new IdentityHashMap<>();
+        AtomicReference<Throwable> consumerFailure = new AtomicReference<>();
+        Thread consumer = new Thread(() -> {
+            try {
+                NominatimConnector.DocumentChunk chunk;
+                while ((chunk = documents.take()) != null) {
+                    assertFalse("chunk after the last chunk of its batch", finished.containsKey(chunk.getBatch()));
+                    List<String> uids = handedOver.computeIfAbsent(chunk.getBatch(), k -> new ArrayList<>());
+                    for (PhotonDoc doc : chunk.getDocs()) {
+                        uids.add(doc.getUid());
+                    }
+                    if (chunk.isLast()) {
+                        finished.put(chunk.getBatch(), true);
+                    }
+                }
+            } catch (Throwable e) {
+                consumerFailure.set(e);
+                documents.fail(e);
+            }
+        });
+        consumer.start();
+
+        List<List<String>> expected = new ArrayList<>();
+        for (int b = 0; b < 20; b++) {
+            List<NominatimResult> batch = new ArrayList<>();
+            List<String> uids = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                long placeId = b * 100 + i;
+                NominatimResult result = new NominatimResult(createDoc(placeId, 0, 30));
+                // every other batch is split into several chunks
+                int housenumbers = b % 2 == 0 ? 0 : 400 * i;
+                if (housenumbers == 0) {
+                    uids.add(String.valueOf(placeId));
+                }
+                StringBuilder numbers = new StringBuilder();
+                for (int n = 1; n <= housenumbers; n++) {
+                    numbers.append(n).append(';');
+                    uids.add(placeId + "." + n);
+                }
+                result.addHousenumbersFromString(numbers.toString());
+                batch.add(result);
+            }
+            expected.add(uids);
+            workers.submit(batch, () -> {
+            });
+        }
+        workers.finish();
+        documents.complete();
+        consumer.join();
+
+        assertNull(consumerFailure.get());
+        assertEquals(20, handedOver.size());
+        assertEquals(20, finished.size());
+        for (List<String> uids : handedOver.values()) {
+            long batch = Long.parseLong(uids.get(0).split("\\.")[0]) / 100;
+            assertEquals(expected.get((int) batch), uids);
+        }
+        assertEquals(expected.stream().mapToInt(List::size).sum(), workers.getCount());
+    }
+
+    @Test
+    public void testChunksAreBoundedBySize() throws Exception {
+        HandOffQueue<NominatimConnector.DocumentChunk> documents = new HandOffQueue<>(64 * 1024, NominatimConnector.DocumentChunk::estimateSize);
+        NominatimConnector.CompletionWorkers workers = connector.new CompletionWorkers(1, new LongLruCache<>(100), documents);
+
+        char[] name = new char[1000];
+        Arrays.fill(name, 'x');
+        PhotonDoc doc = new PhotonDoc(1, "W", 1, "building", "yes", Collections.singletonMap("name", new String(name)), null,
+                Collections.emptyMap(), null, 0, 0, null, factory.createPoint(new Coordinate(1, 1)), 0, 30);
+        long docSize = NominatimConnector.DocumentChunk.estimateSize(doc);
+        NominatimResult result = new NominatimResult(doc);
+        StringBuilder numbers = new StringBuilder();
+        for (int n = 1; n <= 3000; n++) {
+            numbers.append(n).append(';');
+        }
+        result.addHousenumbersFromString(numbers.toString());
+
+        List<NominatimConnector.DocumentChunk> chunks = new ArrayList<>();
+        Thread consumer = new Thread(() -> {
+            try {
+                NominatimConnector.DocumentChunk chunk;
+                while ((chunk = documents.take()) != null) {
+                    chunks.add(chunk);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        consumer.start();
+        workers.submit(Collections.singletonList(result), () -> {
+        });
+        workers.finish();
+        documents.complete();
+        consumer.join();
+
+        // a chunk of the single worker takes a quarter of the queue budget, far below the count limit
+        int count = 0;
+        for (NominatimConnector.DocumentChunk chunk : chunks) {
+            assertTrue(chunk.estimateSize() <= 16 * 1024 + docSize);
+            assertEquals(chunk.getDocs().size() * docSize, chunk.estimateSize());
+            count += chunk.getDocs().size();
+        }
+        assertEquals(3000, count);
+        assertTrue(chunks.size() > 200);
+        assertTrue(chunks.get(chunks.size() - 1).isLast());
+    }
+
+    @Test
+    public void testFailedBatchFailsImport() throws Exception {
+        FailedDocumentsException failure = new FailedDocumentsException("could not store 1 documents", Collections.singleton("2"));
+        List<PhotonDoc> added = new ArrayList<>();
+        AtomicBoolean finished = new AtomicBoolean();
+        connector.setImporter(new Importer() {
+            @Override
+            public void add(PhotonDoc doc) {
+                added.add(doc);
+            }
+
+            @Override
+            public CompletableFuture<Void> addAll(List<PhotonDoc> docs) {
+                added.addAll(docs);
+                // acknowledged by another thread once the bulk returned
+                CompletableFuture<Void> stored = new CompletableFuture<>();
+                new Thread(() -> {
+                    try {
+                        Thread.sleep(200);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    if (docs.get(0).getPlaceId() == 2) {
+                        stored.completeExceptionally(failure);
+                    } else {
+                        stored.complete(null);
+                    }
+                }).start();
+                return stored;
+            }
+
+            @Override
+            public void finish() {
+                finished.set(true);
+            }
+        });
+
+        HandOffQueue<NominatimConnector.DocumentChunk> documents = new HandOffQueue<>(1024 * 1024, NominatimConnector.DocumentChunk::estimateSize);
+        AtomicInteger imported = new AtomicInteger();
+        NominatimConnector.Batch stored = new NominatimConnector.Batch(imported::incrementAndGet);
+        documents.put(new NominatimConnector.DocumentChunk(stored, Collections.singletonList(createDoc(1, 0, 30)), 0, true));
+        NominatimConnector.Batch failed = new NominatimConnector.Batch(() -> fail("failed batch is acknowledged"));
+        documents.put(new NominatimConnector.DocumentChunk(failed, Collections.singletonList(createDoc(2, 0, 30)), 0, false));
+        documents.put(new NominatimConnector.DocumentChunk(failed, Collections.singletonList(createDoc(3, 0, 30)), 0, true));
+        documents.complete();
+
+        // the failure arrives after all documents are handed to the importer
+        connector.new ImportThread(documents).run();
+
+        assertEquals(3, added.size());
+        assertTrue(finished.get());
+        assertEquals(1, imported.get());
+        assertSame(failure, documents.getFailure());
+    }
+
+    @Test
+    public void testCompletionFailureIsPassedOn() throws Exception {
+        HandOffQueue<NominatimConnector.DocumentChunk> documents = new HandOffQueue<>(1024 * 1024, NominatimConnector.DocumentChunk::estimateSize);
+        NominatimConnector.CompletionWorkers workers = connector.new CompletionWorkers(2, new LongLruCache<>(100), documents);
+        IllegalStateException failure = new IllegalStateException("database gone");
+        database.setFailure(failure);
+
+        workers.submit(Collections.singletonList(new NominatimResult(createDoc(1, 0, 30))), () -> fail("batch was not imported"));
+        try {
+            workers.finish();
+            fail("failure of a worker is not passed on");
+        } catch (IllegalStateException e) {
+            assertSame(failure, e);
+        }
+        try {
+            workers.submit(Collections.singletonList(new NominatimResult(createDoc(2, 0, 30))), () -> fail("batch was not imported"));
+            fail("batches are accepted after a failure");
+        } catch (IllegalStateException e) {
+            assertSame(failure, e);
+        }
+        assertEquals(0, documents.size());
+        assertEquals(0, workers.getCount());
+    }
+}
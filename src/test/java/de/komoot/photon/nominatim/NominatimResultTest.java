@@ -0,0 +1,70 @@
+package de.komoot.photon.nominatim;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import de.komoot.photon.PhotonDoc;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class NominatimResultTest {
+
+    private final GeometryFactory factory = new GeometryFactory();
+
+    private NominatimResult createResult() {
+        PhotonDoc doc = new PhotonDoc(1, "W", 2, "place", "house_number", Collections.emptyMap(), null, Collections.emptyMap(),
+                null, 0, 0, null, factory.createPoint(new Coordinate(1, 1)), 0, 30);
+        return new NominatimResult(doc);
+    }
+
+    @Test
+    public void testNoHousenumbers() {
+        NominatimResult result = createResult();
+        List<PhotonDoc> docs = result.getDocsWithHousenumber();
+        assertEquals(1, docs.size());
+        assertSame(result.getBaseDoc(), docs.get(0));
+    }
+
+    @Test
+    public void testHousenumbersFromString() {
+        NominatimResult result = createResult();
+        result.addHousenumbersFromString("1; 2a;;1");
+        List<PhotonDoc> docs = result.getDocsWithHousenumber();
+        assertEquals(2, docs.size());
+        assertEquals("1", docs.get(0).getHouseNumber());
+        assertEquals("2a", docs.get(1).getHouseNumber());
+        assertSame(result.getBaseDoc().getCentroid(), docs.get(1).getCentroid());
+    }
+
+    @Test
+    public void testInterpolation() {
+        LineString line = factory.createLineString(new Coordinate[]{new Coordinate(0, 0), new Coordinate(10, 0)});
+
+        NominatimResult all = createResult();
+        all.addHouseNumbersFromInterpolation(10, 20, "all", line);
+        List<PhotonDoc> docs = all.getDocsWithHousenumber();
+        assertEquals(9, docs.size());
+        assertEquals("11", docs.get(0).getHouseNumber());
+        assertEquals(1, docs.get(0).getCentroid().getX(), 1e-9);
+        assertEquals("19", docs.get(8).getHouseNumber());
+
+        NominatimResult odd = createResult();
+        odd.addHouseNumbersFromInterpolation(10, 20, "odd", line);
+        docs = odd.getDocsWithHousenumber();
+        assertEquals(5, docs.size());
+        assertEquals("11", docs.get(0).getHouseNumber());
+        assertEquals("19", docs.get(4).getHouseNumber());
+
+        NominatimResult even = createResult();
+        even.addHouseNumbersFromInterpolation(10, 20, "even", line);
+        docs = even.getDocsWithHousenumber();
+        assertEquals(4, docs.size());
+        assertEquals("12", docs.get(0).getHouseNumber());
+        assertEquals(8, docs.get(3).getCentroid().getX(), 1e-9);
+    }
+}
@@ -0,0 +1,284 @@
+package de.komoot.photon.nominatim;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import de.komoot.photon.PhotonDoc;
+import de.komoot.photon.ReflectionTestUtil;
+import de.komoot.photon.Updater;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CyclicBarrier;
+import java.util.function.LongUnaryOperator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NominatimUpdaterTest {
+
+    private final GeometryFactory factory = new GeometryFactory();
+    private FakeNominatimDatabase database;
+    private Map<Long, List<PhotonDoc>> docs;
+    private RecordingUpdater recording;
+    private NominatimUpdater nominatimUpdater;
+
+    private FakeExporter exporter;
+
+    @Before
+    public void setUp() {
+        database = new FakeNominatimDatabase();
+        docs = new HashMap<>();
+        recording = new RecordingUpdater();
+        exporter = new FakeExporter(docs);
+        nominatimUpdater = new NominatimUpdater("localhost", 5432, "nominatim", "nominatim", "");
+        ReflectionTestUtil.setFieldValue(nominatimUpdater, NominatimUpdater.class, "template", database);
+        ReflectionTestUtil.setFieldValue(nominatimUpdater, NominatimUpdater.class, "exporter", exporter);
+        nominatimUpdater.setUpdater(recording);
+    }
+
+    private PhotonDoc createDoc(long placeId, int rankSearch, String housenumber) {
+        return new PhotonDoc(placeId, "W", placeId * 10, "highway", "residential", Collections.singletonMap("name", "street " + placeId),
+                housenumber, Collections.emptyMap(), null, 0, 0, null, factory.createPoint(new Coordinate(1, 1)), 0, rankSearch);
+    }
+
+    private void addPlace(long placeId, int rankSearch, int geometrySector, int indexedStatus) {
+        database.addChangedPlace("placex", placeId, rankSearch, geometrySector, indexedStatus);
+        docs.put(placeId, Collections.singletonList(createDoc(placeId, rankSearch, null)));
+    }
+
+    @Test
+    public void testPlaceChangedWhileStoredIsUpdatedAgain() {
+        addPlace(1, 26, 10, 2);
+        addPlace(2, 26, 10, 2);
+        addPlace(3, 30, 11, 100);
+        // place 1 changes again after its documents were read, while they are stored
+        recording.onCommit = () -> database.setIndexedStatus("placex", 1, 2);
+
+        assertTrue(nominatimUpdater.update());
+        assertEquals(2, database.getIndexedStatus("placex", 1));
+        assertEquals(0, database.getIndexedStatus("placex", 2));
+        assertEquals(0, database.getIndexedStatus("placex", 3));
+        assertTrue(recording.changes.contains("replace 3 []"));
+
+        recording.onCommit = null;
+        recording.changes.clear();
+        assertTrue(nominatimUpdater.update());
+        assertEquals(0, database.getIndexedStatus("placex", 1));
+        assertEquals(Collections.singletonList("replace 1 [1]"), recording.changes);
+    }
+
+    @Test
+    public void testPlacesOfFailedCommitGetTheirStatusBack() {
+        addPlace(1, 26, 10, 1);
+        addPlace(2, 26, 10, 2);
+        addPlace(3, 30, 11, 100);
+        database.addChangedPlace("location_property_osmline", 4, 30, 12, 2);
+        docs.put(4L, Collections.emptyList());
+        recording.failure = new IllegalStateException("index is gone");
+
+        assertFalse(nominatimUpdater.update());
+        assertEquals(1, database.getIndexedStatus("placex", 1));
+        assertEquals(2, database.getIndexedStatus("placex", 2));
+        assertEquals(100, database.getIndexedStatus("placex", 3));
+        assertEquals(2, database.getIndexedStatus("location_property_osmline", 4));
+
+        // a place that changed meanwhile keeps its new status
+        recording.onCommit = () -> database.setIndexedStatus("placex", 1, 2);
+        assertFalse(nominatimUpdater.update());
+        assertEquals(2, database.getIndexedStatus("placex", 1));
+
+        recording.onCommit = null;
+        recording.failure = null;
+        assertTrue(nominatimUpdater.update());
+        for (long placeId = 1; placeId <= 3; placeId++) {
+            assertEquals(0, database.getIndexedStatus("placex", placeId));
+        }
+        assertEquals(0, database.getIndexedStatus("location_property_osmline", 4));
+    }
+
+    @Test
+    public void testPlacesOfCrashedUpdateAreReplayedFromJournal() throws Exception {
+        File file = File.createTempFile("photon-update-journal", "");
+        file.deleteOnExit();
+        UpdateJournal journal = new UpdateJournal(file);
+        nominatimUpdater.setJournal(journal);
+        // place 1 was claimed by an update that crashed before its documents were stored
+        addPlace(1, 26, 10, 0);
+        journal.append("placex", 2, Collections.singletonList(1L));
+        addPlace(2, 26, 10, 1);
+        List<Set<Long>> journaled = new ArrayList<>();
+        recording.onCommit = () -> {
+            try {
+                journaled.add(journal.read().get("placex").get(1));
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        };
+
+        assertTrue(nominatimUpdater.update());
+        assertEquals(Arrays.asList("replace 1 [1]", "create 2"), recording.changes);
+        // the claims are on disk while the documents are stored
+        assertEquals(Collections.singletonList(Collections.singleton(2L)), journaled);
+        assertEquals(0, database.getIndexedStatus("placex", 1));
+        assertEquals(0, database.getIndexedStatus("placex", 2));
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void testClaimsRunInParallel() {
+        for (long placeId = 1; placeId <= 4; placeId++) {
+            addPlace(placeId, 26, (int) placeId, 2);
+        }
+        nominatimUpdater.setUpdateThreads(4);
+        database.setClaimBarrier(new CyclicBarrier(4));
+
+        assertTrue(nominatimUpdater.update());
+        for (long placeId = 1; placeId <= 4; placeId++) {
+            assertEquals(0, database.getIndexedStatus("placex", placeId));
+        }
+    }
+
+    /**
+     * @return the changes an update of many places in several sectors passes to the updater
+     */
+    private List<String> updateManyPlaces(int updateThreads) {
+        setUp();
+        Random random = new Random(42);
+        int[] statuses = {1, 2, 100};
+        for (long placeId = 1; placeId <= 500; placeId++) {
+            int rankSearch = 26 + random.nextInt(5);
+            database.addChangedPlace("placex", placeId, rankSearch, random.nextInt(20), statuses[random.nextInt(3)]);
+            List<PhotonDoc> placeDocs = new ArrayList<>();
+            placeDocs.add(createDoc(placeId, rankSearch, null));
+            for (int number = 1; number < random.nextInt(4); number++) {
+                placeDocs.add(createDoc(placeId, rankSearch, String.valueOf(number)));
+            }
+            docs.put(placeId, placeDocs);
+        }
+        for (long placeId = 1001; placeId <= 1100; placeId++) {
+            database.addChangedPlace("location_property_osmline", placeId, 30, random.nextInt(10), 1 + random.nextInt(2));
+            List<PhotonDoc> numbers = new ArrayList<>();
+            for (int number = 2; number <= 2 + random.nextInt(10); number += 2) {
+                numbers.add(createDoc(placeId, 30, String.valueOf(number)));
+            }
+            docs.put(placeId, numbers);
+        }
+        // readers that finish in a different order than they started
+        exporter.delay = placeId -> placeId % 7 == 0 ? 2 : 0;
+        nominatimUpdater.setUpdateThreads(updateThreads);
+
+        assertTrue(nominatimUpdater.update());
+        return new ArrayList<>(recording.changes);
+    }
+
+    @Test
+    public void testParallelReadsMatchSerialReads() {
+        List<String> serial = updateManyPlaces(1);
+        assertEquals(1, exporter.readers.size());
+        List<String> parallel = updateManyPlaces(4);
+        assertTrue(exporter.readers.size() > 1);
+
+        assertEquals(serial, parallel);
+        assertEquals(600, serial.stream().map(change -> change.split(" ")[1].split("\\.")[0]).distinct().count());
+    }
+
+    private static class FakeExporter extends NominatimConnector {
+
+        private final Map<Long, List<PhotonDoc>> docs;
+        private final Set<String> readers = ConcurrentHashMap.newKeySet();
+        private volatile LongUnaryOperator delay = placeId -> 0;
+
+        FakeExporter(Map<Long, List<PhotonDoc>> docs) {
+            super("localhost", 5432, "nominatim", "nominatim", "");
+            this.docs = docs;
+        }
+
+        @Override
+        public List<PhotonDoc> getByPlaceId(long placeId) {
+            return read(placeId);
+        }
+
+        @Override
+        public List<PhotonDoc> getInterpolationsByPlaceId(long placeId) {
+            return read(placeId);
+        }
+
+        private List<PhotonDoc> read(long placeId) {
+            readers.add(Thread.currentThread().getName());
+            try {
+                Thread.sleep(delay.applyAsLong(placeId));
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            return docs.get(placeId);
+        }
+    }
+
+    private static class RecordingUpdater implements Updater {
+
+        private final List<String> changes = Collections.synchronizedList(new ArrayList<>());
+        private volatile Runnable onCommit;
+        private volatile RuntimeException failure;
+
+        @Override
+        public void create(PhotonDoc doc) {
+            changes.add("create " + doc.getUid());
+        }
+
+        @Override
+        public void update(PhotonDoc doc) {
+            changes.add("update " + doc.getPlaceId());
+        }
+
+        @Override
+        public void delete(Long id) {
+            changes.add("delete " + id);
+        }
+
+        @Override
+        public void replace(long placeId, long osmId, List<PhotonDoc> docs) {
+            assertEquals(placeId * 10, osmId);
+            List<String> uids = new ArrayList<>();
+            for (PhotonDoc doc : docs) {
+                uids.add(doc.getUid());
+            }
+            changes.add("replace " + placeId + " " + uids);
+        }
+
+        @Override
+        public void updateOrCreate(PhotonDoc updatedDoc) {
+            changes.add("updateOrCreate " + updatedDoc.getPlaceId());
+        }
+
+        @Override
+        public void finish() {
+        }
+
+        @Override
+        public CompletableFuture<Void> commit() {
+            if (onCommit != null) {
+                onCommit.run();
+            }
+            CompletableFuture<Void> stored = new CompletableFuture<>();
+            if (failure == null) {
+                stored.complete(null);
+            } else {
+                stored.completeExceptionally(failure);
+            }
+            return stored;
+        }
+    }
+}
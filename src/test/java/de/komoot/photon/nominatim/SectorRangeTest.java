@@ -0,0 +1,68 @@
+package de.komoot.photon.nominatim;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class SectorRangeTest {
+
+    @Test
+    public void testSingleRangeCoversEverything() {
+        List<SectorRange> ranges = SectorRange.split(ImmutableList.of(10L, 20L), 1);
+
+        assertEquals(1, ranges.size());
+        assertEquals(Long.MIN_VALUE, ranges.get(0).getFrom());
+        assertEquals(Long.MAX_VALUE, ranges.get(0).getTo());
+    }
+
+    @Test
+    public void testSplitsMinMaxEvenly() {
+        List<SectorRange> ranges = SectorRange.split(ImmutableList.of(0L, 100L), 4);
+
+        assertEquals(4, ranges.size());
+        assertEquals(25, ranges.get(0).getTo());
+        assertEquals(25, ranges.get(1).getFrom());
+        assertEquals(50, ranges.get(1).getTo());
+        assertEquals(75, ranges.get(2).getTo());
+        assertEquals(Long.MAX_VALUE, ranges.get(3).getTo());
+    }
+
+    @Test
+    public void testFollowsHistogram() {
+        // half of the rows are in sectors 0..10, the other half in 10..1000
+        List<SectorRange> ranges = SectorRange.split(ImmutableList.of(0L, 10L, 1000L), 2);
+
+        assertEquals(2, ranges.size());
+        assertEquals(10, ranges.get(0).getTo());
+        assertEquals(10, ranges.get(1).getFrom());
+    }
+
+    @Test
+    public void testDropsEmptyRanges() {
+        List<SectorRange> ranges = SectorRange.split(ImmutableList.of(5L, 5L, 5L, 6L), 3);
+
+        assertEquals(2, ranges.size());
+        assertEquals(5, ranges.get(0).getTo());
+        assertEquals(5, ranges.get(1).getFrom());
+    }
+
+    @Test
+    public void testWithoutBounds() {
+        List<SectorRange> ranges = SectorRange.split(ImmutableList.<Long>of(), 8);
+
+        assertEquals(1, ranges.size());
+    }
+
+    @Test
+    public void testOnlyRequestedRangeSelectsRowsWithoutSector() {
+        List<SectorRange> ranges = SectorRange.split(ImmutableList.of(0L, 100L), 2);
+
+        assertEquals("geometry_sector >= " + Long.MIN_VALUE + " AND geometry_sector < 50",
+                     ranges.get(0).getCondition(Long.MIN_VALUE, false));
+        assertEquals("(geometry_sector >= 60 AND geometry_sector < " + Long.MAX_VALUE + " OR geometry_sector IS NULL)",
+                     ranges.get(1).getCondition(60, true));
+    }
+}
@@ -0,0 +1,44 @@
+package de.komoot.photon.nominatim;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class UpdateJournalTest {
+
+    @Test
+    public void testIncompleteLastLineIsSkipped() throws Exception {
+        File file = File.createTempFile("photon-update-journal", "");
+        file.deleteOnExit();
+        UpdateJournal journal = new UpdateJournal(file);
+
+        journal.append("placex", 2, Arrays.asList(1L, 2L));
+        journal.append("placex", 1, Collections.singletonList(3L));
+        journal.append("location_property_osmline", 2, Collections.singletonList(4L));
+        journal.append("placex", 2, Collections.singletonList(5L));
+        // a crash while the next claim was recorded
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write("placex 2 6,".getBytes(StandardCharsets.UTF_8));
+        }
+
+        Map<String, Map<Integer, Set<Long>>> places = journal.read();
+        assertEquals(new HashSet<>(Arrays.asList(1L, 2L, 5L)), places.get("placex").get(2));
+        assertEquals(Collections.singleton(3L), places.get("placex").get(1));
+        assertEquals(Collections.singleton(4L), places.get("location_property_osmline").get(2));
+
+        journal.clear();
+        assertFalse(file.exists());
+        assertTrue(journal.read().isEmpty());
+    }
+}
@@ -0,0 +1,102 @@
+package de.komoot.photon.nominatim;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class UpdateSchedulerTest {
+
+    @Test
+    public void testTriggersAreCoalesced() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(2);
+        AtomicInteger updates = new AtomicInteger();
+        UpdateScheduler scheduler = new UpdateScheduler(() -> {
+            updates.incrementAndGet();
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            done.countDown();
+            return true;
+        }, new UpdateProgress(30), () -> 0, 0, 0);
+
+        assertTrue(scheduler.trigger());
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        // one more update after the running one covers all requests in the meantime
+        assertTrue(scheduler.trigger());
+        assertFalse(scheduler.trigger());
+        assertFalse(scheduler.trigger());
+        release.countDown();
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        scheduler.shutdown();
+        assertEquals(2, updates.get());
+    }
+
+    @Test
+    public void testFailedUpdateIsReported() throws Exception {
+        CountDownLatch done = new CountDownLatch(1);
+        UpdateScheduler scheduler = new UpdateScheduler(() -> {
+            done.countDown();
+            throw new IllegalStateException("database gone");
+        }, new UpdateProgress(30), () -> 42, 0, 0);
+
+        scheduler.trigger();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        // the status is written after the update returned
+        for (int i = 0; i < 100 && scheduler.getStatus().getInt("updates") == 0; i++) {
+            Thread.sleep(50);
+        }
+        scheduler.shutdown();
+
+        assertEquals(1, scheduler.getStatus().getInt("failures_in_a_row"));
+        assertTrue(scheduler.getStatus().getString("last_failure_message").contains("database gone"));
+        assertEquals(42, scheduler.getStatus().getLong("pending_places"));
+    }
+
+    @Test
+    public void testPendingPlacesAreCountedOncePerUpdate() throws Exception {
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicInteger counts = new AtomicInteger();
+        UpdateScheduler scheduler = new UpdateScheduler(() -> true, new UpdateProgress(30), () -> {
+            counts.incrementAndGet();
+            done.countDown();
+            return 7;
+        }, 0, 0);
+
+        // nothing counted before the first update
+        assertFalse(scheduler.getStatus().has("pending_places"));
+        assertEquals(0, counts.get());
+
+        scheduler.trigger();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < 100 && scheduler.getStatus().getInt("updates") == 0; i++) {
+            Thread.sleep(50);
+        }
+        for (int i = 0; i < 10; i++) {
+            assertEquals(7, scheduler.getStatus().getLong("pending_places"));
+        }
+        scheduler.shutdown();
+
+        assertEquals(1, counts.get());
+    }
+
+    @Test
+    public void testBackoff() {
+        assertEquals(60000, UpdateScheduler.getDelayMillis(60000, 3600000, 0));
+        assertEquals(120000, UpdateScheduler.getDelayMillis(60000, 3600000, 1));
+        assertEquals(480000, UpdateScheduler.getDelayMillis(60000, 3600000, 3));
+        assertEquals(3600000, UpdateScheduler.getDelayMillis(60000, 3600000, 10));
+        assertEquals(3600000, UpdateScheduler.getDelayMillis(60000, 3600000, 100));
+    }
+}
@@ -0,0 +1,96 @@
+package de.komoot.photon.snapshot;
+
+import com.google.common.collect.ImmutableMap;
+import com.neovisionaries.i18n.CountryCode;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.PrecisionModel;
+import de.komoot.photon.Importer;
+import de.komoot.photon.PhotonDoc;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SnapshotTest {
+
+    private final GeometryFactory factory = new GeometryFactory(new PrecisionModel(), 4326);
+
+    private PhotonDoc createDoc(long id) {
+        PhotonDoc doc = new PhotonDoc(id, "W", id * 10, "highway", "residential", ImmutableMap.of("name", "Street " + id, "name:de", "Straße " + id),
+                id % 2 == 0 ? String.valueOf(id % 100) : null, ImmutableMap.of("surface", "asphalt"), new Envelope(1, 2, 3, 4 + id), id + 1,
+                0.5 + id / 1e6, CountryCode.DE, factory.createPoint(new Coordinate(13.4, 52.5 + id / 1e6)), 0, 26);
+        doc.setPostcode("1011" + id % 10);
+        doc.setCity(ImmutableMap.of("name", "Berlin"));
+        doc.getContext().add(ImmutableMap.of("name", "Mitte"));
+        doc.setCountry(ImmutableMap.of("name", "Deutschland", "name:en", "Germany"));
+        return doc;
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        File file = File.createTempFile("photon", ".snapshot");
+        file.deleteOnExit();
+
+        SnapshotWriter writer = new SnapshotWriter(file);
+        // more than one block
+        for (long id = 1; id <= 20000; id++) {
+            writer.add(createDoc(id));
+        }
+        PhotonDoc sparse = new PhotonDoc(20001, "N", 5, "place", "city", new HashMap<>(), null, null, null, 0, 0.1, null, null, 0, 16);
+        writer.add(sparse);
+        writer.finish();
+
+        Map<Long, PhotonDoc> read = new HashMap<>();
+        long count = new SnapshotReader(4).read(file, new Importer() {
+            @Override
+            public void add(PhotonDoc doc) {
+                read.put(doc.getPlaceId(), doc);
+            }
+
+            @Override
+            public void finish() {
+            }
+        });
+
+        assertEquals(20001, count);
+        assertEquals(20001, read.size());
+        for (long id = 1; id <= 20000; id++) {
+            PhotonDoc expected = createDoc(id);
+            PhotonDoc actual = read.get(id);
+            assertEquals(expected.getUid(), actual.getUid());
+            assertEquals(expected.getOsmType(), actual.getOsmType());
+            assertEquals(expected.getOsmId(), actual.getOsmId());
+            assertEquals(expected.getTagKey(), actual.getTagKey());
+            assertEquals(expected.getTagValue(), actual.getTagValue());
+            assertEquals(expected.getName(), actual.getName());
+            assertEquals(expected.getExtratags(), actual.getExtratags());
+            assertEquals(expected.getBbox(), actual.getBbox());
+            assertEquals(expected.getParentPlaceId(), actual.getParentPlaceId());
+            assertEquals(expected.getImportance(), actual.getImportance(), 0);
+            assertEquals(expected.getCountryCode(), actual.getCountryCode());
+            assertEquals(expected.getCentroid().getX(), actual.getCentroid().getX(), 0);
+            assertEquals(expected.getCentroid().getY(), actual.getCentroid().getY(), 0);
+            assertEquals(4326, actual.getCentroid().getSRID());
+            assertEquals(expected.getRankSearch(), actual.getRankSearch());
+            assertEquals(expected.getPostcode(), actual.getPostcode());
+            assertNull(actual.getStreet());
+            assertEquals(expected.getCity(), actual.getCity());
+            assertEquals(expected.getContext(), actual.getContext());
+            assertEquals(expected.getCountry(), actual.getCountry());
+        }
+
+        PhotonDoc actual = read.get(20001L);
+        assertTrue(actual.getName().isEmpty());
+        assertNull(actual.getExtratags());
+        assertNull(actual.getBbox());
+        assertNull(actual.getCountryCode());
+        assertNull(actual.getCentroid());
+    }
+}
@@ -0,0 +1,121 @@
+package de.komoot.photon.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HandOffQueueTest {
+
+    @Test
+    public void testBoundedByBytes() throws Exception {
+        HandOffQueue<String> queue = new HandOffQueue<>(10, String::length);
+        queue.put("aaaa");
+        queue.put("bbbb");
+        assertEquals(8, queue.getBytes());
+
+        CountDownLatch added = new CountDownLatch(1);
+        Thread producer = new Thread(() -> {
+            try {
+                queue.put("cccc");
+                added.countDown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        producer.start();
+        assertFalse(added.await(200, TimeUnit.MILLISECONDS));
+
+        assertEquals("aaaa", queue.take());
+        assertTrue(added.await(5, TimeUnit.SECONDS));
+        assertEquals(8, queue.getBytes());
+        assertEquals(2, queue.size());
+    }
+
+    @Test
+    public void testOversizedItem() throws Exception {
+        HandOffQueue<String> queue = new HandOffQueue<>(2, String::length);
+        queue.put("too large");
+        assertEquals("too large", queue.take());
+    }
+
+    @Test
+    public void testComplete() throws Exception {
+        HandOffQueue<Integer> queue = new HandOffQueue<>(1000, i -> 10);
+        List<Integer> taken = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> threads = new ArrayList<>();
+        for (int c = 0; c < 3; c++) {
+            threads.add(new Thread(() -> {
+                try {
+                    Integer item;
+                    while ((item = queue.take()) != null) {
+                        taken.add(item);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+        }
+        for (int p = 0; p < 3; p++) {
+            final int offset = p * 1000;
+            threads.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < 1000; i++) {
+                        queue.put(offset + i);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads.subList(3, 6)) {
+            thread.join();
+        }
+        queue.complete();
+        for (Thread thread : threads.subList(0, 3)) {
+            thread.join();
+        }
+
+        assertEquals(3000, taken.size());
+        assertEquals(3000, taken.stream().distinct().count());
+        assertNull(queue.take());
+        assertEquals(0, queue.getBytes());
+    }
+
+    @Test
+    public void testFail() throws Exception {
+        HandOffQueue<String> queue = new HandOffQueue<>(4, String::length);
+        queue.put("aaaa");
+
+        RuntimeException cause = new RuntimeException("importer failed");
+        Thread failing = new Thread(() -> queue.fail(cause));
+        failing.start();
+        try {
+            // waits for the budget until the queue fails
+            queue.put("bbbb");
+            fail("put must fail");
+        } catch (IllegalStateException e) {
+            assertSame(cause, e.getCause());
+        }
+        try {
+            queue.take();
+            fail("take must fail");
+        } catch (IllegalStateException e) {
+            assertSame(cause, e.getCause());
+        }
+        assertSame(cause, queue.getFailure());
+    }
+}
@@ -0,0 +1,67 @@
+package de.komoot.photon.utils;
+
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class LongLruCacheTest {
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        LongLruCache<String> cache = new LongLruCache<>(2);
+        cache.put(1, "one");
+        cache.put(2, "two");
+        assertEquals("one", cache.get(1));
+
+        cache.put(3, "three");
+
+        assertNull(cache.get(2));
+        assertEquals("one", cache.get(1));
+        assertEquals("three", cache.get(3));
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictions());
+    }
+
+    @Test
+    public void testCountsHitsAndMisses() {
+        LongLruCache<String> cache = new LongLruCache<>(10);
+        cache.put(42, "answer");
+
+        cache.get(42);
+        cache.get(42);
+        cache.get(43);
+
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(2d / 3d, cache.getHitRate(), 1e-9);
+    }
+
+    @Test
+    public void testBehavesLikeAccessOrderedMap() {
+        final int capacity = 50;
+        Map<Long, Long> reference = new LinkedHashMap<Long, Long>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+                return size() > capacity;
+            }
+        };
+        LongLruCache<Long> cache = new LongLruCache<>(capacity);
+
+        Random random = new Random(1234);
+        for (int i = 0; i < 100000; i++) {
+            long key = random.nextInt(200) * 1024L;
+            if (random.nextBoolean()) {
+                cache.put(key, (long) i);
+                reference.put(key, (long) i);
+            } else {
+                assertEquals(reference.get(key), cache.get(key));
+            }
+        }
+        assertEquals(reference.size(), cache.size());
+    }
+}